@@ -0,0 +1,25 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks, accepts the regular JMH command line options.
+ * The GC profiler is always enabled, so allocation rates are reported next to the timings.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder()
+            .parent(commandLine)
+            .addProfiler(GCProfiler.class)
+            .build()
+        ).run();
+    }
+}
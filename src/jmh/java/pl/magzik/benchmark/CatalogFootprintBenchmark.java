@@ -0,0 +1,165 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import pl.magzik.catalog.CompactMediaStore;
+import pl.magzik.catalog.MediaIndex;
+import pl.magzik.media.MediaTypeRegistry;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+import pl.magzik.model.MediaQuery;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap footprint of the media catalog with {@code entries} media spread over 1000 albums,
+ * kept either as a sorted {@code List<Media>} ({@code store=list}), or in a {@link CompactMediaStore} ({@code store=compact}).
+ * <p>
+ *     {@code store=catalog} measures everything the {@link pl.magzik.catalog.MediaCatalog} keeps per file,
+ *     once every file has been probed: the compact store with the metadata, including a SHA-256 checksum of every file,
+ *     and the {@link MediaIndex} of the queries, built by a query.
+ * </p>
+ * <p>
+ *     The heap retained by the catalog is measured once, after a full collection, and reported as the
+ *     {@code retainedBytes} and {@code bytesPerEntry} counters, don't change the number of measurement iterations.
+ *     The timings are of reading a page, for which the compact store has to create the {@link Media}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+// Counters of measurement iterations add up, so there's a single, longer one.
+@Measurement(iterations = 1, time = 10)
+// A fixed heap, and a collector whose explicit collections are always full and stop the world.
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g", "-XX:+UseSerialGC" })
+public class CatalogFootprintBenchmark {
+
+    private static final int ALBUMS = 1000;
+
+    private static final int PAGE_SIZE = 20;
+
+    private static final Path MEDIA_DIRECTORY = Path.of("/media");
+
+    @Param({ "100000", "1000000" })
+    private int entries;
+
+    @Param({ "list", "compact", "catalog" })
+    private String store;
+
+    private List<Media> list;
+
+    private CompactMediaStore compactStore;
+
+    // Kept, so it's retained, only with store=catalog.
+    private MediaIndex mediaIndex;
+
+    private long retainedBytes;
+
+    private int offset;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Loads and initializes everything involved, so only the catalog itself is measured.
+        media(0);
+        CompactMediaStore warmUp = new CompactMediaStore(MEDIA_DIRECTORY);
+        warmUp.put(media(0), 1024, 1_700_000_000_000L);
+        warmUp.putMetadata(metadata(media(0), 0));
+        new MediaIndex(warmUp).query(sizeQuery(), 0, PAGE_SIZE);
+
+        long before = usedHeap();
+        if ("list".equals(store)) {
+            list = new ArrayList<>(entries);
+            for (int i = 0; i < entries; i++) list.add(media(i));
+            Collections.sort(list);
+        } else if ("compact".equals(store)) {
+            compactStore = new CompactMediaStore(MEDIA_DIRECTORY);
+            for (int i = 0; i < entries; i++) compactStore.put(media(i), 1024L + i, 1_700_000_000_000L + i);
+            // Merges the remaining changes, as the catalog does after a scan.
+            compactStore.merge();
+        } else {
+            // Filled the way the catalog does, probed right after being indexed.
+            compactStore = new CompactMediaStore(MEDIA_DIRECTORY);
+            for (int i = 0; i < entries; i++) {
+                Media media = media(i);
+                MediaMetadata metadata = metadata(media, i);
+                compactStore.put(media, metadata.size(), metadata.lastModified());
+                compactStore.putMetadata(metadata);
+            }
+            compactStore.merge();
+            mediaIndex = new MediaIndex(compactStore);
+            mediaIndex.query(sizeQuery(), 0, PAGE_SIZE);
+        }
+        retainedBytes = usedHeap() - before;
+    }
+
+    @Benchmark
+    public List<Media> page(Footprint footprint) {
+        footprint.retainedBytes = retainedBytes;
+        footprint.bytesPerEntry = retainedBytes / entries;
+
+        // Pages all over the catalog, so none of them is kept hot in the caches.
+        offset = (offset + 7919 * PAGE_SIZE) % (entries - PAGE_SIZE);
+        return "list".equals(store)
+            ? Collections.unmodifiableList(list.subList(offset, offset + PAGE_SIZE))
+            : compactStore.slice(offset, PAGE_SIZE);
+    }
+
+    /**
+     * Counters of the retained heap, reported next to the timings.
+     * */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long retainedBytes;
+
+        public long bytesPerEntry;
+    }
+
+    // Created the way the catalog does, with new strings for every name and path.
+    private static Media media(int i) {
+        String name = String.format("album-%04d/%s", i % ALBUMS, Fixtures.mediaName(i));
+        return MediaTypeRegistry.DEFAULTS.toMedia(name, MEDIA_DIRECTORY.resolve(name)).orElseThrow();
+    }
+
+    // Builds all the indexes of a segment, like any query.
+    private static MediaQuery sizeQuery() {
+        return new MediaQuery(null, null, null, null, null, null, MediaQuery.Sort.SIZE, true);
+    }
+
+    // Metadata of a probed photo, with a distinct checksum, like the ones of the dedup store.
+    private static MediaMetadata metadata(Media media, int i) {
+        byte[] hash = new byte[32];
+        for (int j = 0; j < Integer.BYTES; j++) hash[j] = (byte) (i >>> (8 * j));
+        return new MediaMetadata(media.fileName(), 1024L + i, 1_700_000_000_000L + i, HexFormat.of().formatHex(hash),
+            4000, 3000, MediaMetadata.UNKNOWN, media.mimeType());
+    }
+
+    // The heap left after a full collection, collecting until nothing more is freed.
+    private static long usedHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long current = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+                if (usage != null) current += usage.getUsed();
+            }
+            if (current >= used) break;
+            used = current;
+        }
+        return used;
+    }
+}
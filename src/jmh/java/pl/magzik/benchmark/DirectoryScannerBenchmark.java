@@ -0,0 +1,66 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import pl.magzik.utils.DirectoryScanner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of scanning a media directory with {@code entries} files, either flat, or spread over {@code albums}.
+ * {@code walk} is the sequential baseline, {@link Files#find} reads attributes of every entry, as the scanner does.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryScannerBenchmark {
+
+    @Param({ "10000", "100000" })
+    private int entries;
+
+    @Param({ "0", "100" })
+    private int albums;
+
+    private Path mediaDirectory;
+
+    private DirectoryScanner directoryScanner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Fixtures.quietLogs();
+        mediaDirectory = Fixtures.mediaDirectory(entries, albums);
+        directoryScanner = Fixtures.directoryScanner();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        directoryScanner.stop();
+        Fixtures.delete(mediaDirectory);
+    }
+
+    @Benchmark
+    public long walk() throws IOException {
+        try (Stream<Path> files = Files.find(mediaDirectory, 8, (path, attributes) -> attributes.isRegularFile())) {
+            return files.count();
+        }
+    }
+
+    @Benchmark
+    public long scan() throws IOException {
+        try (Stream<DirectoryScanner.Entry> entries = directoryScanner.scan(mediaDirectory, Fixtures.mediaScanOptions())) {
+            return entries.map(DirectoryScanner.Entry::attributes)
+                    .filter(BasicFileAttributes::isRegularFile)
+                    .count();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package pl.magzik.benchmark;
+
+import ch.qos.logback.classic.Level;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.magzik.utils.DirectoryScanner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Builds synthetic media and game directories for the benchmarks.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+final class Fixtures {
+
+    static final String[] MEDIA_EXTENSIONS = { "jpg", "jpeg", "png", "gif", "bmp", "webp", "mp4", "webm", "ogg", "avi", "mov" };
+
+    private Fixtures() {}
+
+    /**
+     * Limits logging to warnings. Catalogs log every rescan, which would flood the benchmark output.
+     * */
+    static void quietLogs() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    }
+
+    /**
+     * @return Scanner with the default number of threads.
+     * */
+    static DirectoryScanner directoryScanner() {
+        return new DirectoryScanner(4, new SimpleMeterRegistry());
+    }
+
+    /**
+     * @return Default scan options of the media directory.
+     * */
+    static DirectoryScanner.Options mediaScanOptions() {
+        return DirectoryScanner.Options.of(8, List.of(".*"));
+    }
+
+    /**
+     * Creates a media directory with the given number of small files, spread evenly over the given number of albums.
+     * @param entries The number of files.
+     * @param albums The number of subdirectories, or 0 to put all files directly in the media directory.
+     * @return The created directory.
+     * */
+    static Path mediaDirectory(int entries, int albums) throws IOException {
+        if (albums == 0) return mediaDirectory(entries);
+
+        Path directory = Files.createTempDirectory("my-hub-media-");
+        byte[] content = new byte[16];
+        for (int i = 0; i < albums; i++) Files.createDirectory(directory.resolve(String.format("album-%04d", i)));
+        for (int i = 0; i < entries; i++) {
+            Files.write(directory.resolve(String.format("album-%04d", i % albums)).resolve(mediaName(i)), content);
+        }
+        return directory;
+    }
+
+    /**
+     * Creates a media directory with the given number of small files, of all supported extensions.
+     * @param entries The number of files.
+     * @return The created directory.
+     * */
+    static Path mediaDirectory(int entries) throws IOException {
+        Path directory = Files.createTempDirectory("my-hub-media-");
+        byte[] content = new byte[16];
+        for (int i = 0; i < entries; i++) {
+            Files.write(directory.resolve(mediaName(i)), content);
+        }
+        return directory;
+    }
+
+    /**
+     * @return The name of the i-th file created by {@link #mediaDirectory(int)}.
+     * */
+    static String mediaName(int i) {
+        return String.format("media-%07d.%s", i, MEDIA_EXTENSIONS[i % MEDIA_EXTENSIONS.length]);
+    }
+
+    /**
+     * Creates a game directory with the given number of games, every game has a single `.html` file and a script.
+     * @param games The number of games.
+     * @return The created directory.
+     * */
+    static Path gameDirectory(int games) throws IOException {
+        Path directory = Files.createTempDirectory("my-hub-games-");
+        for (int i = 0; i < games; i++) {
+            Path game = Files.createDirectory(directory.resolve(gameName(i)));
+            Files.writeString(game.resolve("index.html"), "<html></html>");
+            Files.writeString(game.resolve("game.js"), "console.log('game');");
+        }
+        return directory;
+    }
+
+    /**
+     * @return The name of the i-th game created by {@link #gameDirectory(int)}.
+     * */
+    static String gameName(int i) {
+        return String.format("Game-%07d", i);
+    }
+
+    /**
+     * Deletes the directory recursively.
+     * @param directory The directory to delete.
+     * */
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import pl.magzik.catalog.GameRegistry;
+import pl.magzik.model.Game;
+import pl.magzik.repository.GameRepository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of game lookups and validation, over a game directory with {@code games} games.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameRepositoryBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    private int games;
+
+    private Path gameDirectory;
+
+    private GameRegistry gameRegistry;
+
+    private GameRepository gameRepository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Fixtures.quietLogs();
+        gameDirectory = Fixtures.gameDirectory(games);
+        gameRegistry = new GameRegistry(gameDirectory.toString(), Fixtures.directoryScanner());
+        gameRegistry.rescan();
+        gameRepository = new GameRepository(gameRegistry);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(gameDirectory);
+    }
+
+    @Benchmark
+    public Optional<Game> findByName() {
+        // Lookups are case-insensitive, the names are given as users type them.
+        return gameRepository.findByName(Fixtures.gameName(ThreadLocalRandom.current().nextInt(games)).toLowerCase(Locale.ROOT));
+    }
+
+    @Benchmark
+    public List<Game> findAll() {
+        return gameRepository.findAll();
+    }
+
+    @Benchmark
+    public void rescanRegistry() {
+        gameRegistry.rescan();
+    }
+}
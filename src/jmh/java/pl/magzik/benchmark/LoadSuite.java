@@ -0,0 +1,441 @@
+package pl.magzik.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.MyHub;
+import pl.magzik.media.MediaTypeRegistry;
+import pl.magzik.model.Media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Self-contained load test: boots the application against generated media and game directories,
+ * and drives it with virtual users of four scenarios, each on its own connections:
+ * <ul>
+ *     <li>{@code browse} - pages through {@code /media}, following the cursor links,
+ *         and fetches every image tile of the page from {@code /media/file/{filename}},</li>
+ *     <li>{@code seek} - plays videos, reading the first megabyte, then seeking to random offsets with range requests,</li>
+ *     <li>{@code games} - opens {@code /games}, launches a random game with {@code /games/{name}}, and loads its script,</li>
+ *     <li>{@code upload} - uploads files to {@code /media/upload}.</li>
+ * </ul>
+ * <p>
+ *     After the warmup, throughput, latency percentiles (time to the last byte) and error rates of every operation
+ *     are collected, printed, and written as JSON, to be compared between releases.
+ *     Responses with a status of 400 and above, and failed connections, are counted as errors.
+ * </p>
+ * <p>
+ *     All the virtual users connect from the same address, so the per-client transfer limits are disabled,
+ *     otherwise more uploading users than {@code transfer-limits.uploads-per-client} would be rejected with 429.
+ *     They can be enabled again by passing them to the application, e.g. {@code --transfer-limits.uploads-per-client=2}.
+ * </p>
+ * <p>
+ *     Arguments are {@code --name=value} options, defaults in brackets: {@code duration} [60s], {@code warmup} [10s],
+ *     {@code users.browse} [8], {@code users.seek} [4], {@code users.games} [4], {@code users.upload} [2],
+ *     {@code images} [2000], {@code image-size} [64KB], {@code videos} [8], {@code video-size} [32MB], {@code games} [20],
+ *     {@code upload-size} [2MB], {@code index-timeout} [5m], {@code output} [target/load-test.json] and {@code label} [dev].
+ *     Other options are passed to the application, e.g. {@code --bandwidth.media.total=10MB}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * @see LoadTest
+ * */
+public class LoadSuite {
+
+    private static final int PAGE_SIZE = 10;
+
+    // Browsing users visit this many pages in a row, then jump to a random one.
+    private static final int PAGES_PER_VISIT = 5;
+
+    private static final int SEEKS_PER_VIDEO = 3;
+
+    private static final int SEEK_LENGTH = 1024 * 1024;
+
+    private static final Pattern FILE_LINK = Pattern.compile("href=\"/media/file/([^\"]+)\"");
+
+    private static final Pattern NEXT_LINK = Pattern.compile("href=\"(/media\\?after=[^\"]+)\"");
+
+    private static final Pattern GAME_LINK = Pattern.compile("href=\"/games/([^\"/]+)\"");
+
+    private static final Set<String> OPTIONS = Set.of(
+        "duration", "warmup", "users.browse", "users.seek", "users.games", "users.upload",
+        "images", "image-size", "videos", "video-size", "games", "upload-size", "index-timeout", "output", "label"
+    );
+
+    private final Map<String, String> options;
+
+    private final Map<String, Stats> stats = new TreeMap<>();
+
+    private final Map<String, AtomicLong> iterations = new TreeMap<>();
+
+    private URI base;
+
+    private int images, videos, games;
+
+    private volatile long measuredFrom;
+
+    private volatile long deadline;
+
+    private LoadSuite(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> applicationArgs = new ArrayList<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+            if (name != null && OPTIONS.contains(name)) options.put(name, arg.substring(equals + 1));
+            else applicationArgs.add(arg);
+        }
+
+        new LoadSuite(options).run(applicationArgs);
+    }
+
+    private void run(List<String> applicationArgs) throws Exception {
+        Fixtures.quietLogs();
+        images = intOption("images", 2000);
+        videos = intOption("videos", 8);
+        games = intOption("games", 20);
+
+        Path mediaDirectory = Files.createTempDirectory("my-hub-media-");
+        Path gameDirectory = Fixtures.gameDirectory(games);
+        Path cacheDirectory = Files.createTempDirectory("my-hub-cache-");
+        try {
+            writeMedia(mediaDirectory, (int) sizeOption("image-size", "64KB"), (int) sizeOption("video-size", "32MB"));
+
+            List<String> args = new ArrayList<>(List.of(
+                "--server.port=0", "--server.ssl.enabled=false", "--logging.level.root=WARN",
+                "--media-dir=" + mediaDirectory, "--game-dir=" + gameDirectory + "/", "--cache-dir=" + cacheDirectory
+            ));
+            // Repeated options would be joined by Spring, not overridden.
+            for (String limit : List.of("transfer-limits.uploads-per-client", "transfer-limits.archives-per-client")) {
+                if (applicationArgs.stream().noneMatch(arg -> arg.startsWith("--" + limit + "="))) args.add("--" + limit + "=0");
+            }
+            args.addAll(applicationArgs);
+
+            try (ConfigurableApplicationContext context = SpringApplication.run(MyHub.class, args.toArray(String[]::new))) {
+                base = URI.create("http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/");
+                awaitIndexing();
+                Report report = drive(applicationArgs);
+                write(report);
+            }
+        } finally {
+            Fixtures.delete(mediaDirectory);
+            Fixtures.delete(gameDirectory);
+            Fixtures.delete(cacheDirectory);
+        }
+    }
+
+    private Report drive(List<String> applicationArgs) throws InterruptedException {
+        Duration warmup = durationOption("warmup", "10s");
+        Duration duration = durationOption("duration", "60s");
+        Map<String, Integer> users = new LinkedHashMap<>();
+        users.put("browse", intOption("users.browse", 8));
+        users.put("seek", intOption("users.seek", 4));
+        users.put("games", intOption("users.games", 4));
+        users.put("upload", intOption("users.upload", 2));
+        int uploadSize = (int) sizeOption("upload-size", "2MB");
+
+        long start = System.nanoTime();
+        measuredFrom = start + warmup.toNanos();
+        deadline = measuredFrom + duration.toNanos();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            users.forEach((scenario, count) -> {
+                iterations.put(scenario, new AtomicLong());
+                for (int i = 0; i < count; i++) {
+                    executor.execute(() -> {
+                        try (HttpClient client = HttpClient.newBuilder()
+                                .connectTimeout(Duration.ofSeconds(5))
+                                .followRedirects(HttpClient.Redirect.NORMAL)
+                                .build()) {
+                            while (System.nanoTime() < deadline) {
+                                switch (scenario) {
+                                    case "browse" -> browse(client);
+                                    case "seek" -> seek(client);
+                                    case "games" -> playGame(client);
+                                    default -> upload(client, uploadSize);
+                                }
+                                if (System.nanoTime() >= measuredFrom) iterations.get(scenario).incrementAndGet();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                }
+            });
+            System.out.printf("Running %s for %s after %s of warmup...%n", users, duration, warmup);
+        }
+
+        double seconds = (System.nanoTime() - measuredFrom) / 1e9;
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("warmupSeconds", warmup.toSeconds());
+        settings.put("users", users);
+        settings.put("images", images);
+        settings.put("videos", videos);
+        settings.put("games", games);
+        settings.put("options", options);
+        settings.put("applicationArgs", applicationArgs);
+
+        Map<String, ScenarioReport> scenarios = new LinkedHashMap<>();
+        users.forEach((scenario, count) -> {
+            Map<String, OperationReport> operations = new TreeMap<>();
+            synchronized (stats) {
+                stats.forEach((name, s) -> {
+                    if (name.startsWith(scenario + ".")) operations.put(name.substring(scenario.length() + 1), s.report(seconds));
+                });
+            }
+            scenarios.put(scenario, new ScenarioReport(count, iterations.get(scenario).get(), operations));
+        });
+        return new Report(options.getOrDefault("label", "dev"), Instant.now().toString(), System.getProperty("java.version"),
+            Runtime.getRuntime().availableProcessors(), seconds, settings, scenarios);
+    }
+
+    private void browse(HttpClient client) throws InterruptedException {
+        int pages = Math.max(1, (images + videos) / PAGE_SIZE);
+        String page = "media?page=" + ThreadLocalRandom.current().nextInt(pages) + "&size=" + PAGE_SIZE;
+        for (int i = 0; i < PAGES_PER_VISIT && page != null && System.nanoTime() < deadline; i++) {
+            String html = fetchText(client, "browse.page", page);
+            if (html == null) return;
+
+            Matcher files = FILE_LINK.matcher(html);
+            while (files.find()) {
+                String name = files.group(1);
+                // Videos aren't loaded until played, the gallery shows their posters.
+                if (MediaTypeRegistry.DEFAULTS.resolve(name).map(r -> r.type() == Media.MediaType.IMAGE).orElse(false)) {
+                    fetch(client, "browse.tile", request("media/file/" + name).build());
+                }
+            }
+
+            Matcher next = NEXT_LINK.matcher(html);
+            page = next.find() ? next.group(1).substring(1).replace("&amp;", "&") : null;
+        }
+    }
+
+    private void seek(HttpClient client) throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String path = "media/file/" + videoName(random.nextInt(videos));
+        long length = sizeOption("video-size", "32MB");
+
+        fetch(client, "seek.start", request(path).header("Range", "bytes=0-" + (SEEK_LENGTH - 1)).build());
+        for (int i = 0; i < SEEKS_PER_VIDEO; i++) {
+            long offset = random.nextLong(Math.max(1, length - SEEK_LENGTH));
+            fetch(client, "seek.range", request(path).header("Range", "bytes=" + offset + "-" + (offset + SEEK_LENGTH - 1)).build());
+        }
+    }
+
+    private void playGame(HttpClient client) throws InterruptedException {
+        String html = fetchText(client, "games.page", "games");
+        if (html == null) return;
+
+        List<String> names = new ArrayList<>();
+        Matcher links = GAME_LINK.matcher(html);
+        while (links.find()) names.add(links.group(1));
+        if (names.isEmpty()) return;
+
+        String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+        fetch(client, "games.launch", request("games/" + name).build());
+        fetch(client, "games.asset", request("games/" + name + "/game.js").build());
+    }
+
+    private void upload(HttpClient client, int size) throws InterruptedException {
+        String boundary = UUID.randomUUID().toString();
+        byte[] content = new byte[size];
+        ThreadLocalRandom.current().nextBytes(content);
+
+        byte[] head = ("--" + boundary + "\r\n"
+            + "Content-Disposition: form-data; name=\"files\"; filename=\"load-" + UUID.randomUUID() + ".mp4\"\r\n"
+            + "Content-Type: video/mp4\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        fetch(client, "upload.file", request("media/upload")
+            .header("Content-Type", "multipart/form-data; boundary=" + boundary)
+            .POST(HttpRequest.BodyPublishers.ofByteArrays(List.of(head, content, tail)))
+            .build());
+    }
+
+    private String fetchText(HttpClient client, String operation, String path) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = client.send(request(path).build(), HttpResponse.BodyHandlers.ofString());
+            record(operation, start, response.statusCode(), response.body().length());
+            return response.statusCode() < 400 ? response.body() : null;
+        } catch (IOException e) {
+            record(operation, start, -1, 0);
+            return null;
+        }
+    }
+
+    private void fetch(HttpClient client, String operation, HttpRequest request) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long bytes;
+            try (InputStream body = response.body()) {
+                bytes = body.transferTo(OutputStream.nullOutputStream());
+            }
+            record(operation, start, response.statusCode(), bytes);
+        } catch (IOException e) {
+            record(operation, start, -1, 0);
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(base.resolve(path)).timeout(Duration.ofSeconds(60));
+    }
+
+    private void record(String operation, long start, int status, long bytes) {
+        long end = System.nanoTime();
+        // Requests started during the warmup aren't measured.
+        if (start < measuredFrom || end > deadline) return;
+
+        Stats s;
+        synchronized (stats) {
+            s = stats.computeIfAbsent(operation, o -> new Stats());
+        }
+        s.add(end - start, status, bytes);
+    }
+
+    private void awaitIndexing() throws IOException, InterruptedException {
+        try (HttpClient client = HttpClient.newHttpClient()) {
+            HttpRequest request = request("api/media/indexing").build();
+            Duration timeout = durationOption("index-timeout", "5m");
+            long until = System.nanoTime() + timeout.toNanos();
+            // The scan may not have started yet, so it waits for all the files, not just for the scan to stop.
+            while (true) {
+                JsonNode status = new ObjectMapper().readTree(client.send(request, HttpResponse.BodyHandlers.ofString()).body());
+                if (!status.path("running").asBoolean() && status.path("indexed").asLong() >= images + videos) return;
+                if (System.nanoTime() - until > 0) {
+                    throw new IllegalStateException(String.format(
+                        "Only %d of %d files were indexed within %s, status: %s", status.path("indexed").asLong(),
+                        images + videos, DurationStyle.SIMPLE.print(timeout), status
+                    ));
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    private void writeMedia(Path directory, int imageSize, int videoSize) throws IOException {
+        Random random = new Random(42);
+        byte[] image = new byte[imageSize];
+        for (int i = 0; i < images; i++) {
+            random.nextBytes(image);
+            Files.write(directory.resolve(String.format("image-%06d.jpg", i)), image);
+        }
+        byte[] video = new byte[videoSize];
+        for (int i = 0; i < videos; i++) {
+            random.nextBytes(video);
+            Files.write(directory.resolve(videoName(i)), video);
+        }
+    }
+
+    private static String videoName(int i) {
+        return String.format("video-%04d.mp4", i);
+    }
+
+    private void write(Report report) throws IOException {
+        System.out.printf("%n%-16s %9s %8s %9s %9s %9s %9s %9s%n", "operation", "requests", "errors", "req/s", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        report.scenarios().forEach((scenario, s) -> s.operations().forEach((name, o) -> System.out.printf(
+            "%-16s %9d %7.2f%% %9.1f %9.1f %9.1f %9.1f %9.1f%n", scenario + "." + name, o.requests(), o.errorRate() * 100,
+            o.throughput(), o.latencyMillis().get("p50"), o.latencyMillis().get("p95"), o.latencyMillis().get("p99"),
+            o.latencyMillis().get("max"))));
+
+        Path output = Path.of(options.getOrDefault("output", "target/load-test.json"));
+        if (output.toAbsolutePath().getParent() != null) Files.createDirectories(output.toAbsolutePath().getParent());
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(output.toFile(), report);
+        System.out.println("Results written to " + output.toAbsolutePath());
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private long sizeOption(String name, String defaultValue) {
+        return DataSize.parse(options.getOrDefault(name, defaultValue)).toBytes();
+    }
+
+    private Duration durationOption(String name, String defaultValue) {
+        return DurationStyle.detectAndParse(options.getOrDefault(name, defaultValue));
+    }
+
+    /**
+     * Latencies, statuses and bytes of a single operation.
+     * */
+    private static final class Stats {
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        private long errors;
+
+        private long bytes;
+
+        private final Map<Integer, Long> statuses = new TreeMap<>();
+
+        synchronized void add(long latency, int status, long bytes) {
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = latency;
+            if (status < 0 || status >= 400) errors++;
+            this.bytes += bytes;
+            statuses.merge(status, 1L, Long::sum);
+        }
+
+        synchronized OperationReport report(double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+
+            Map<String, Double> percentiles = new LinkedHashMap<>();
+            percentiles.put("p50", percentile(sorted, 0.50));
+            percentiles.put("p90", percentile(sorted, 0.90));
+            percentiles.put("p95", percentile(sorted, 0.95));
+            percentiles.put("p99", percentile(sorted, 0.99));
+            percentiles.put("max", percentile(sorted, 1.0));
+            double mean = count == 0 ? Double.NaN : Arrays.stream(sorted).average().orElse(0) / 1e6;
+
+            return new OperationReport(count, errors, count == 0 ? 0 : errors / (double) count, count / seconds,
+                bytes / seconds, mean, percentiles, new TreeMap<>(statuses));
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) return Double.NaN;
+            int index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+
+    /**
+     * @param statuses Numbers of responses by their status, -1 for failed connections.
+     * */
+    record OperationReport(long requests, long errors, double errorRate, double throughput, double bytesPerSecond,
+                           double meanMillis, Map<String, Double> latencyMillis, Map<Integer, Long> statuses) {}
+
+    record ScenarioReport(int users, long iterations, Map<String, OperationReport> operations) {}
+
+    record Report(String label, String finishedAt, String javaVersion, int processors, double durationSeconds,
+                  Map<String, Object> settings, Map<String, ScenarioReport> scenarios) {}
+}
@@ -0,0 +1,239 @@
+package pl.magzik.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of a running server: slow clients download a large media file and upload large files,
+ * while page renders of {@code /media} and {@code /games} are timed.
+ * <p>
+ *     Run it once against the server on platform threads without transfer limits, and once with the defaults:
+ * </p>
+ * <pre>
+ * java -jar my-hub.jar --spring.threads.virtual.enabled=false --server.tomcat.threads.max=20 \
+ *      --transfer-limits.downloads=1000 --transfer-limits.uploads=1000 --media-sendfile=false
+ * java -jar my-hub.jar --media-sendfile=false
+ * </pre>
+ * Sendfile is disabled, as it hands the transfer over to the container, which hides the problem.
+ * All clients share one address, so the per-client upload limit has to stay disabled (the default), to test the total one.
+ * <p>
+ *     Slow uploads never complete within the test. Rejected uploads should be answered before their body is sent,
+ *     so the average body sent before the rejection tells whether the limit applies before the upload is received.
+ * </p>
+ * <p>
+ *     Arguments: {@code <base url> <media file> [slow clients = 100] [duration seconds = 30] [page clients = 4]
+ *     [slow uploads = 8]}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * */
+public class LoadTest {
+
+    // Slow clients read this much per second.
+    private static final int SLOW_CLIENT_RATE = 16 * 1024;
+
+    // Body of a slow upload, large enough not to complete at the rate above.
+    private static final long SLOW_UPLOAD_SIZE = 64L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadTest <base url> <media file> [slow clients] [duration seconds] [page clients] [slow uploads]");
+            System.exit(1);
+        }
+
+        URI base = URI.create(args[0].endsWith("/") ? args[0] : args[0] + "/");
+        String mediaFile = args[1];
+        int slowClients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        Duration duration = Duration.ofSeconds(args.length > 3 ? Long.parseLong(args[3]) : 30);
+        int pageClients = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        int slowUploads = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong downloadsStarted = new AtomicLong(), downloadsRejected = new AtomicLong(), downloadsFailed = new AtomicLong();
+        AtomicLong uploadsStarted = new AtomicLong(), uploadsRejected = new AtomicLong(), uploadsFailed = new AtomicLong();
+        AtomicLong rejectedUploadBytes = new AtomicLong();
+        List<Long> pageLatencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong pageErrors = new AtomicLong();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build()) {
+
+            for (int i = 0; i < slowClients; i++) {
+                executor.execute(() -> {
+                    while (running.get()) {
+                        downloadsStarted.incrementAndGet();
+                        try {
+                            int status = slowDownload(base, "media/file/" + mediaFile, running);
+                            if (status == 503) {
+                                downloadsRejected.incrementAndGet();
+                                sleep(1000);
+                            }
+                        } catch (IOException e) {
+                            downloadsFailed.incrementAndGet();
+                            sleep(1000);
+                        }
+                    }
+                });
+            }
+
+            for (int i = 0; i < slowUploads; i++) {
+                executor.execute(() -> {
+                    while (running.get()) {
+                        uploadsStarted.incrementAndGet();
+                        try {
+                            long[] outcome = slowUpload(base, running);
+                            if (outcome[0] == 503 || outcome[0] == 429) {
+                                uploadsRejected.incrementAndGet();
+                                rejectedUploadBytes.addAndGet(outcome[1]);
+                                sleep(1000);
+                            }
+                        } catch (IOException e) {
+                            uploadsFailed.incrementAndGet();
+                            sleep(1000);
+                        }
+                    }
+                });
+            }
+
+            // Let the slow clients occupy the server first.
+            Thread.sleep(2000);
+
+            for (int i = 0; i < pageClients; i++) {
+                String page = i % 2 == 0 ? "media" : "games";
+                executor.execute(() -> {
+                    HttpRequest request = HttpRequest.newBuilder(base.resolve(page)).timeout(Duration.ofSeconds(30)).build();
+                    while (running.get()) {
+                        long start = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            if (response.statusCode() == 200) pageLatencies.add(System.nanoTime() - start);
+                            else pageErrors.incrementAndGet();
+                        } catch (IOException e) {
+                            pageErrors.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                });
+            }
+
+            Thread.sleep(duration.toMillis());
+            running.set(false);
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        List<Long> latencies = new ArrayList<>(pageLatencies);
+        Collections.sort(latencies);
+        System.out.printf("Slow downloads: %d started, %d rejected (503), %d failed%n",
+            downloadsStarted.get(), downloadsRejected.get(), downloadsFailed.get());
+        System.out.printf("Slow uploads:   %d started, %d rejected (503, 429) after %.1f KB of the body on average, %d failed%n",
+            uploadsStarted.get(), uploadsRejected.get(),
+            rejectedUploadBytes.get() / 1024.0 / Math.max(1, uploadsRejected.get()), uploadsFailed.get());
+        System.out.printf("Page renders:   %d completed, %d failed, %.1f/s%n",
+            latencies.size(), pageErrors.get(), latencies.size() / (double) (duration.toSeconds() - 2));
+        System.out.printf("Page latency:   p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+            percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99), percentile(latencies, 1.0));
+    }
+
+    /**
+     * Downloads the file over a raw socket, reading at {@link #SLOW_CLIENT_RATE}.
+     * @return The HTTP status of the response.
+     * */
+    private static int slowDownload(URI base, String path, AtomicBoolean running) throws IOException {
+        int port = base.getPort() == -1 ? 80 : base.getPort();
+        try (Socket socket = new Socket(base.getHost(), port)) {
+            socket.setReceiveBufferSize(SLOW_CLIENT_RATE);
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET " + base.getPath() + path + " HTTP/1.1\r\nHost: " + base.getHost() + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            InputStream input = socket.getInputStream();
+            byte[] buffer = new byte[SLOW_CLIENT_RATE];
+            int status = status(input, buffer);
+            while (running.get() && input.read(buffer) != -1) sleep(1000);
+            return status;
+        }
+    }
+
+    /**
+     * Uploads {@link #SLOW_UPLOAD_SIZE} bytes to {@code /media/upload} over a raw socket,
+     * sending at {@link #SLOW_CLIENT_RATE}, until the server responds or the test ends.
+     * @return The HTTP status of the response, -1 if there's none, and the number of body bytes sent before it.
+     * */
+    private static long[] slowUpload(URI base, AtomicBoolean running) throws IOException {
+        int port = base.getPort() == -1 ? 80 : base.getPort();
+        String boundary = "load-test-" + System.nanoTime();
+        byte[] head = ("--" + boundary + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\"load-test.bin\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        long length = head.length + SLOW_UPLOAD_SIZE + ("\r\n--" + boundary + "--\r\n").length();
+
+        try (Socket socket = new Socket(base.getHost(), port)) {
+            socket.setSendBufferSize(SLOW_CLIENT_RATE);
+            socket.setSoTimeout(30_000);
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            output.write(("POST " + base.getPath() + "media/upload HTTP/1.1\r\nHost: " + base.getHost()
+                + "\r\nContent-Type: multipart/form-data; boundary=" + boundary
+                + "\r\nContent-Length: " + length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.write(head);
+            output.flush();
+
+            byte[] buffer = new byte[SLOW_CLIENT_RATE];
+            long sent = 0;
+            try {
+                // Sent until the server answers, which it does early only when rejecting the upload.
+                while (running.get() && input.available() == 0 && sent < SLOW_UPLOAD_SIZE) {
+                    int chunk = (int) Math.min(buffer.length, SLOW_UPLOAD_SIZE - sent);
+                    output.write(buffer, 0, chunk);
+                    output.flush();
+                    sent += chunk;
+                    sleep(1000);
+                }
+            } catch (IOException e) {
+                // Rejected uploads may be closed by the server while being sent, the response is still readable.
+            }
+
+            if (!running.get() && input.available() == 0) return new long[] { -1, sent };
+            return new long[] { status(input, buffer), sent };
+        }
+    }
+
+    private static int status(InputStream input, byte[] buffer) throws IOException {
+        int read = input.read(buffer);
+        if (read < 12) return -1;
+        return Integer.parseInt(new String(buffer, 9, 3, StandardCharsets.US_ASCII));
+    }
+
+    private static double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) return Double.NaN;
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1_000_000.0;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
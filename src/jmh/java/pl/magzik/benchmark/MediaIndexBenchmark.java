@@ -0,0 +1,90 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import pl.magzik.catalog.CompactMediaStore;
+import pl.magzik.catalog.MediaIndex;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.MediaSearchResult;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of queries over the secondary indexes of the media catalog,
+ * with {@code entries} media of random sizes, modified between 2020 and 2026.
+ * The changes are merged, and the indexes built, before the measurement, as after a scan and the first query.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaIndexBenchmark {
+
+    private static final String[] WORDS = { "beach", "mountains", "family", "birthday", "holiday", "city", "forest", "party" };
+
+    private static final int PAGE_SIZE = 20;
+
+    @Param({ "10000", "100000" })
+    private int entries;
+
+    private MediaIndex mediaIndex;
+
+    private MediaQuery videosFrom2025OnTheBeach;
+
+    private MediaQuery largestFirst;
+
+    private MediaQuery shortText;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        long from = LocalDate.of(2020, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        long to = LocalDate.of(2027, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+        CompactMediaStore store = new CompactMediaStore(Path.of("/media"));
+        mediaIndex = new MediaIndex(store);
+        for (int i = 0; i < entries; i++) {
+            String name = String.format("%s-%07d.%s", WORDS[i % WORDS.length], i,
+                Fixtures.MEDIA_EXTENSIONS[random.nextInt(Fixtures.MEDIA_EXTENSIONS.length)]);
+            Media media = Media.of(new File("/media", name));
+            long modified = from + (long) (random.nextDouble() * (to - from));
+            long size = 1024L + random.nextInt(50 * 1024 * 1024);
+            store.put(media, size, modified);
+        }
+        store.merge();
+
+        videosFrom2025OnTheBeach = new MediaQuery(Media.MediaType.VIDEO,
+            LocalDate.of(2025, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli(),
+            LocalDate.of(2026, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli(),
+            null, null, "beach", MediaQuery.Sort.MODIFIED, true);
+        largestFirst = new MediaQuery(null, null, null, null, null, null, MediaQuery.Sort.SIZE, true);
+        shortText = new MediaQuery(Media.MediaType.IMAGE, null, null, null, null, "7", MediaQuery.Sort.NAME, false);
+        mediaIndex.query(largestFirst, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public MediaSearchResult videosFrom2025OnTheBeach() {
+        return mediaIndex.query(videosFrom2025OnTheBeach, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public MediaSearchResult largestFirst() {
+        return mediaIndex.query(largestFirst, 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public MediaSearchResult imagesContainingShortText() {
+        // Too short for trigrams, so the name index is scanned.
+        return mediaIndex.query(shortText, 0, PAGE_SIZE);
+    }
+}
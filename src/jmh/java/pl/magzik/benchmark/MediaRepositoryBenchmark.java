@@ -0,0 +1,168 @@
+package pl.magzik.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.catalog.MediaCatalog;
+import pl.magzik.catalog.MetadataStore;
+import pl.magzik.media.MediaTypeRegistry;
+import pl.magzik.media.PosterService;
+import pl.magzik.media.ThumbnailService;
+import pl.magzik.media.VariantService;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+import pl.magzik.model.MediaPage;
+import pl.magzik.repository.MediaRepository;
+import pl.magzik.service.MediaService;
+import pl.magzik.upload.ChunkedUploads;
+import pl.magzik.upload.DedupStore;
+import pl.magzik.upload.UploadPipeline;
+import pl.magzik.utils.DirectoryScanner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of listing, counting, paging and lookups of media,
+ * over a media directory with {@code entries} files.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaRepositoryBenchmark {
+
+    private static final int PAGE_SIZE = 10;
+
+    @Param({ "1000", "10000", "100000" })
+    private int entries;
+
+    private Path mediaDirectory;
+
+    private Path cacheDirectory;
+
+    private MediaCatalog mediaCatalog;
+
+    private MediaRepository mediaRepository;
+
+    private MediaService mediaService;
+
+    private Path metadataDirectory;
+
+    private String deepCursor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Fixtures.quietLogs();
+        mediaDirectory = Fixtures.mediaDirectory(entries);
+        cacheDirectory = Files.createTempDirectory("my-hub-cache-");
+
+        DirectoryScanner directoryScanner = Fixtures.directoryScanner();
+        DedupStore dedupStore = new DedupStore(mediaDirectory.toString(), cacheDirectory.toString(), 8, List.of(".*"), directoryScanner);
+        mediaCatalog = new MediaCatalog(mediaDirectory.toString(), 8, List.of(".*"), 1, 10_000, Duration.ZERO, new MetadataStore(cacheDirectory.toString()),
+            MediaTypeRegistry.DEFAULTS, dedupStore, directoryScanner);
+        mediaCatalog.rescan();
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ThumbnailService thumbnailService = new ThumbnailService(cacheDirectory.toString(), 320, DataSize.ofMegabytes(16), 1, 16, 1000, meterRegistry);
+        PosterService posterService = new PosterService(cacheDirectory.toString(), 320, DataSize.ofMegabytes(16), meterRegistry);
+        ChunkedUploads chunkedUploads = new ChunkedUploads(mediaDirectory.toString(), cacheDirectory.toString(),
+            DataSize.ofMegabytes(8), DataSize.ofGigabytes(1), Duration.ofHours(1), dedupStore, meterRegistry);
+        VariantService variantService = new VariantService(cacheDirectory.toString(), true, new int[] { 480, 960 },
+            DataSize.ofMegabytes(16), 1, meterRegistry);
+        mediaRepository = new MediaRepository(mediaCatalog, thumbnailService, posterService, variantService,
+            new UploadPipeline(1, DataSize.ofGigabytes(1), DataSize.ofGigabytes(10), dedupStore), chunkedUploads, meterRegistry);
+        mediaService = new MediaService(mediaRepository, thumbnailService, variantService, dedupStore, chunkedUploads,
+            meterRegistry);
+
+        // Metadata store of the same library, as left by a previous run.
+        metadataDirectory = Files.createTempDirectory("my-hub-metadata-");
+        MetadataStore metadataStore = new MetadataStore(metadataDirectory.toString());
+        metadataStore.open();
+        List<MediaMetadata> metadata = new ArrayList<>();
+        for (Media media : mediaCatalog.values()) {
+            metadata.add(new MediaMetadata(media.fileName(), 1024, 0, null, 640, 480, MediaMetadata.UNKNOWN, media.getMimeType()));
+            metadataStore.put(metadata.getLast());
+        }
+        metadataStore.close(metadata);
+
+        // Cursor of the page just before the last one.
+        deepCursor = mediaService.findMediaPage(lastPage() - 1, PAGE_SIZE).nextCursor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mediaCatalog.stop();
+        Fixtures.delete(mediaDirectory);
+        Fixtures.delete(cacheDirectory);
+        Fixtures.delete(metadataDirectory);
+    }
+
+    @Benchmark
+    public void rescanCatalog() {
+        mediaCatalog.rescan();
+    }
+
+    @Benchmark
+    public int loadMetadataStore() throws IOException {
+        // What a cold start costs, before the background reconciliation.
+        MetadataStore metadataStore = new MetadataStore(metadataDirectory.toString());
+        int size = metadataStore.open().size();
+        metadataStore.close(List.of());
+        return size;
+    }
+
+    @Benchmark
+    public List<Media> findAll() {
+        return mediaRepository.findAll();
+    }
+
+    @Benchmark
+    public long countAll() {
+        return mediaRepository.countAll();
+    }
+
+    @Benchmark
+    public Optional<Media> findByName() {
+        return mediaRepository.findByName(Fixtures.mediaName(ThreadLocalRandom.current().nextInt(entries)));
+    }
+
+    @Benchmark
+    public List<Media> findFirstPage() {
+        return mediaService.findAllMedia(0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Media> findLastPage() {
+        return mediaService.findAllMedia(lastPage(), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public MediaPage findLastPageByCursor() {
+        return mediaService.findMediaPage(deepCursor, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public void renderGalleryPage(Blackhole blackhole) {
+        // What a single gallery view costs: counting, and fetching the page.
+        blackhole.consume(mediaService.countAllMedia());
+        blackhole.consume(mediaService.findMediaPage(lastPage() / 2, PAGE_SIZE));
+    }
+
+    private int lastPage() {
+        return (entries - 1) / PAGE_SIZE;
+    }
+}
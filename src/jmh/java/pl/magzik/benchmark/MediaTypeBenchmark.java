@@ -0,0 +1,63 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pl.magzik.model.Media;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of media type and MIME type resolution.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaTypeBenchmark {
+
+    private static final int ENTRIES = 1024;
+
+    private File[] files;
+
+    private Media[] media;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        files = new File[ENTRIES];
+        media = new Media[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            // Mixed case extensions, as cameras and phones produce them.
+            String name = Fixtures.mediaName(i);
+            if (i % 2 == 0) name = name.toUpperCase();
+
+            files[i] = new File("/srv/my_hub/pictures", name);
+            media[i] = Media.of(new File("/srv/my_hub/pictures", Fixtures.mediaName(i)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void mediaOf(Blackhole blackhole) {
+        for (File file : files) {
+            try {
+                blackhole.consume(Media.of(file));
+            } catch (IllegalArgumentException e) {
+                blackhole.consume(e);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public void getMimeType(Blackhole blackhole) {
+        for (Media m : media) {
+            blackhole.consume(m.getMimeType());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package pl.magzik.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.UploadResult;
+import pl.magzik.upload.DedupStore;
+import pl.magzik.upload.UploadPipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the upload pipeline, storing a multipart body of {@code files} files of {@code sizeKb} kilobytes.
+ * With {@code duplicates} enabled, every upload repeats already stored content.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final String BOUNDARY = "benchmark-boundary";
+
+    private static final String CONTENT_TYPE = "multipart/form-data; boundary=" + BOUNDARY;
+
+    @Param({ "1", "8" })
+    private int files;
+
+    @Param({ "1024" })
+    private int sizeKb;
+
+    @Param({ "false", "true" })
+    private boolean duplicates;
+
+    private Path mediaDirectory;
+
+    private Path cacheDirectory;
+
+    private DedupStore dedupStore;
+
+    private UploadPipeline uploadPipeline;
+
+    private List<byte[]> contents;
+
+    private byte[] body;
+
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Fixtures.quietLogs();
+        mediaDirectory = Files.createTempDirectory("my-hub-media-");
+        cacheDirectory = Files.createTempDirectory("my-hub-cache-");
+        dedupStore = new DedupStore(mediaDirectory.toString(), cacheDirectory.toString(), 8, List.of(".*"),
+            Fixtures.directoryScanner());
+        dedupStore.start();
+        uploadPipeline = new UploadPipeline(4, DataSize.ofGigabytes(1), DataSize.ofGigabytes(10), dedupStore);
+
+        Random random = new Random(42);
+        contents = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            byte[] content = new byte[sizeKb * 1024];
+            random.nextBytes(content);
+            contents.add(content);
+        }
+        body = body(contents);
+
+        if (duplicates) store();
+    }
+
+    @Setup(Level.Invocation)
+    public void makeUnique() {
+        if (duplicates) return;
+
+        // Change the content, so nothing is deduplicated.
+        counter++;
+        for (byte[] content : contents) {
+            for (int i = 0; i < Long.BYTES; i++) content[i] = (byte) (counter >>> (8 * i));
+        }
+        body = body(contents);
+    }
+
+    @TearDown(Level.Iteration)
+    public void cleanUp() throws IOException {
+        if (duplicates) return; // Duplicates are hard links, they take no space.
+
+        try (Stream<Path> stored = Files.list(mediaDirectory)) {
+            for (Path path : (Iterable<Path>) stored::iterator) {
+                Files.deleteIfExists(path);
+                dedupStore.unregister(path.getFileName().toString());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dedupStore.stop();
+        Fixtures.delete(mediaDirectory);
+        Fixtures.delete(cacheDirectory);
+    }
+
+    @Benchmark
+    public List<UploadResult> store() {
+        return uploadPipeline.store(new ByteArrayInputStream(body), CONTENT_TYPE, mediaDirectory);
+    }
+
+    private static byte[] body(List<byte[]> contents) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < contents.size(); i++) {
+            body.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\"upload-" + i
+                + ".jpg\"\r\nContent-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            body.writeBytes(contents.get(i));
+            body.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        body.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return body.toByteArray();
+    }
+}
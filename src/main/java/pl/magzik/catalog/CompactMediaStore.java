@@ -0,0 +1,1068 @@
+package pl.magzik.catalog;
+
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Sorted, memory-efficient store of the media catalog entries.
+ * <p>
+ *     Most entries live in an immutable, sorted segment of primitive arrays, instead of a {@link Media} record
+ *     with three strings per file. Directory prefixes are interned, so every album is stored once,
+ *     the rest of the names is packed into a single UTF-8 byte array, and sizes, modification times,
+ *     types and MIME types are kept in parallel arrays. {@link Media} objects are created on demand,
+ *     only for the entries actually returned, e.g. the page being rendered.
+ * </p>
+ * <p>
+ *     The probed {@link MediaMetadata} of an entry is kept in the same way: the SHA-256 checksum as four longs,
+ *     the dimensions and the duration as primitives. Its name, size, modification time and MIME type
+ *     are the ones of the entry, so they aren't stored twice. Metadata is dropped, when the file changes.
+ * </p>
+ * <p>
+ *     Changes go to a small, sorted overlay first, whose rows replace, remove (tombstones), or add to the entries
+ *     of the segment. A change copies the overlay chunk it lands in, at most 512 rows, and the chunk index.
+ *     The overlay is merged into a new segment once it grows past an eighth of the store, so every change
+ *     also pays for about eight entries of a merge.
+ * </p>
+ * <p>
+ *     Reads see the segment and the overlay together, walking both in order, so they never wait for a merge.
+ *     The overlay is split into chunks, each knowing how many entries its rows add, or remove from the segment,
+ *     so the position of a name, and the media at a position, are found in O(log&sup2; n),
+ *     and a page of {@code limit} media costs O(log&sup2; n + limit), however deep it is.
+ * </p>
+ * <p>
+ *     Writes and merges are serialized by a single lock. Each of them publishes a new immutable state,
+ *     so reads never wait, and always see the segment and the overlay of the same moment.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * @see MediaCatalog
+ * @see MediaIndex
+ * */
+public class CompactMediaStore {
+
+    // The overlay is merged once it holds more than 1/MERGE_RATIO of the entries, but never below MIN_MERGE.
+    private static final int MERGE_RATIO = 8;
+
+    private static final int MIN_MERGE = 1024;
+
+    private static final Media.MediaType[] TYPES = Media.MediaType.values();
+
+    // Marks an entry of the segment removed in the overlay.
+    static final Row TOMBSTONE = new Row(null, 0, 0, null);
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path directory;
+
+    private final Object lock = new Object();
+
+    private volatile State state = State.EMPTY;
+
+    /**
+     * @param directory The media directory, the paths of the {@link Media} are resolved against.
+     * */
+    public CompactMediaStore(Path directory) {
+        this.directory = Objects.requireNonNull(directory);
+    }
+
+    /**
+     * Finds the media with the given name. Costs O(log n).
+     * @param fileName The name of the media file.
+     * @return An {@link Optional} of the media, or {@link Optional#empty()} if it isn't stored.
+     * */
+    public Optional<Media> get(String fileName) {
+        State current = state;
+        Row row = current.overlay.get(fileName);
+        if (row != null) return Optional.ofNullable(row.media());
+
+        int i = current.segment.find(fileName);
+        return i < 0 ? Optional.empty() : Optional.of(current.segment.media(i, directory));
+    }
+
+    /**
+     * @param fileName The name of the media file.
+     * @return Whether the media is stored. Unlike {@link #get(String)}, no object is created.
+     * */
+    public boolean contains(String fileName) {
+        State current = state;
+        Row row = current.overlay.get(fileName);
+        if (row != null) return row != TOMBSTONE;
+        return current.segment.find(fileName) >= 0;
+    }
+
+    /**
+     * Adds, or replaces the media. The metadata of a replaced media is kept, only if the file hasn't changed.
+     * @param media The media, its path is expected to be resolved against the directory of the store.
+     * @param size The size of the file, in bytes.
+     * @param modified The modification time of the file, in epoch milliseconds.
+     * @return Whether anything changed, i.e. the media is new, or differs from the stored one.
+     * */
+    public boolean put(Media media, long size, long modified) {
+        Objects.requireNonNull(media);
+        String name = media.fileName();
+        Row row = new Row(media, size, modified, null);
+
+        synchronized (lock) {
+            State current = state;
+            Row previous = current.overlay.get(name);
+            int position = current.segment.find(name);
+            boolean existed, changed;
+            if (previous != null) {
+                existed = previous != TOMBSTONE;
+                changed = !existed || !previous.describes(row);
+            } else {
+                existed = position >= 0;
+                changed = !existed || !current.segment.matches(position, row);
+            }
+            // An unchanged entry of the segment isn't copied to the overlay, e.g. by every rescan.
+            if (changed) publish(current.segment, current.overlay.with(name, row, position), current.size + (existed ? 0 : 1));
+            return changed;
+        }
+    }
+
+    /**
+     * Removes the media.
+     * @param fileName The name of the media file.
+     * @return Whether the media has been stored.
+     * */
+    public boolean remove(String fileName) {
+        synchronized (lock) {
+            State current = state;
+            Row previous = current.overlay.get(fileName);
+            int position = current.segment.find(fileName);
+            boolean existed = previous != null ? previous != TOMBSTONE : position >= 0;
+            if (!existed) return false;
+
+            Overlay overlay = position >= 0
+                ? current.overlay.with(fileName, TOMBSTONE, position)
+                : current.overlay.without(fileName);
+            publish(current.segment, overlay, current.size - 1);
+            return true;
+        }
+    }
+
+    /**
+     * Stores the probed metadata of the media, unless the file has changed since, i.e. its size,
+     * or modification time differ. A checksum, which isn't a lower-case, hex encoded SHA-256, is dropped.
+     * @param metadata The metadata.
+     * @return Whether anything changed.
+     * */
+    public boolean putMetadata(MediaMetadata metadata) {
+        Objects.requireNonNull(metadata);
+        String name = metadata.fileName();
+
+        synchronized (lock) {
+            State current = state;
+            Row previous = current.overlay.get(name);
+            int position = current.segment.find(name);
+            if (previous == null && position >= 0) previous = current.segment.row(position, directory);
+            if (previous == null || previous == TOMBSTONE || !metadata.matches(previous.size(), previous.modified())) return false;
+
+            MediaMetadata stored = new MediaMetadata(name, previous.size(), previous.modified(),
+                isSha256(metadata.sha256()) ? metadata.sha256() : null,
+                metadata.width(), metadata.height(), metadata.durationMillis(), previous.media().mimeType());
+            if (stored.equals(previous.metadata())) return false;
+
+            Row row = new Row(previous.media(), previous.size(), previous.modified(), stored);
+            publish(current.segment, current.overlay.with(name, row, position), current.size);
+            return true;
+        }
+    }
+
+    /**
+     * Finds the metadata of the media with the given name. Costs O(log n).
+     * @param fileName The name of the media file.
+     * @return An {@link Optional} of the metadata, or {@link Optional#empty()} if it isn't stored, or not probed yet.
+     * */
+    public Optional<MediaMetadata> metadata(String fileName) {
+        State current = state;
+        Row row = current.overlay.get(fileName);
+        if (row != null) return Optional.ofNullable(row.metadata());
+
+        int i = current.segment.find(fileName);
+        return i < 0 ? Optional.empty() : Optional.ofNullable(current.segment.metadata(i));
+    }
+
+    /**
+     * @param fileName The name of the media file.
+     * @return Whether the metadata of the media is stored. Unlike {@link #metadata(String)}, no object is created.
+     * */
+    public boolean hasMetadata(String fileName) {
+        State current = state;
+        Row row = current.overlay.get(fileName);
+        if (row != null) return row.metadata() != null;
+
+        int i = current.segment.find(fileName);
+        return i >= 0 && current.segment.isProbed(i);
+    }
+
+    /**
+     * Returns the metadata of every probed media, as of the call, in the order of the names.
+     * The metadata is created on demand, as it's iterated.
+     * @return {@link Iterable} of all metadata.
+     * */
+    public Iterable<MediaMetadata> metadata() {
+        State current = state;
+        return () -> new Iterator<>() {
+
+            private final Cursor cursor = new Cursor(current, 0, 0);
+
+            private MediaMetadata next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public MediaMetadata next() {
+                if (next == null) throw new NoSuchElementException();
+                MediaMetadata metadata = next;
+                next = advance();
+                return metadata;
+            }
+
+            // The metadata of the next probed media, or null.
+            private MediaMetadata advance() {
+                while (cursor.hasNext()) {
+                    MediaMetadata metadata = cursor.nextMetadata();
+                    if (metadata != null) return metadata;
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Merges the pending changes into the segment now, instead of after further changes,
+     * e.g. once a batch of changes, like a scan, is done. Reads never need it.
+     * */
+    public void merge() {
+        synchronized (lock) {
+            State current = state;
+            if (current.overlay.size() == 0) return;
+            state = new State(merge(current.segment, current.overlay, current.size), Overlay.EMPTY, current.size);
+        }
+    }
+
+    /**
+     * @return Number of stored media.
+     * */
+    public int size() {
+        return state.size;
+    }
+
+    /**
+     * Returns at most {@code limit} media, starting at the given position. Costs O(log&sup2; n + limit).
+     * @param offset The position of the first media returned.
+     * @param limit The maximum number of media returned.
+     * @return Sorted {@link List} of media, empty if the offset is out of bounds.
+     * */
+    public List<Media> slice(long offset, int limit) {
+        return slice(state, offset, limit);
+    }
+
+    // Over the given state, so the MediaIndex pages what it has queried.
+    List<Media> slice(State current, long offset, int limit) {
+        if (offset < 0 || offset >= current.size || limit <= 0) return List.of();
+
+        Cursor cursor = locate(current, (int) offset);
+        List<Media> media = new ArrayList<>(Math.min(limit, current.size - (int) offset));
+        while (media.size() < limit && cursor.hasNext()) media.add(cursor.next());
+        return Collections.unmodifiableList(media);
+    }
+
+    /**
+     * Returns at most {@code limit} media, whose names are strictly greater than the given one. Costs O(log n + limit).
+     * @param fileName The name to start after, or {@code null} to start from the beginning.
+     * @param limit The maximum number of media returned.
+     * @return Sorted {@link List} of media.
+     * */
+    public List<Media> after(String fileName, int limit) {
+        State current = state;
+        if (limit <= 0) return List.of();
+
+        Cursor cursor = fileName == null
+            ? new Cursor(current, 0, 0)
+            : new Cursor(current, current.segment.upperBound(fileName), current.overlay.upperBound(fileName));
+        List<Media> media = new ArrayList<>(Math.min(limit, current.size));
+        while (media.size() < limit && cursor.hasNext()) media.add(cursor.next());
+        return Collections.unmodifiableList(media);
+    }
+
+    /**
+     * Finds the position of the first media whose name is greater than, or equal to the given one. Costs O(log n).
+     * @param fileName The name of the media.
+     * @return Position in the sorted store.
+     * */
+    public int positionOf(String fileName) {
+        Objects.requireNonNull(fileName);
+        return state.rank(fileName);
+    }
+
+    /**
+     * Returns the names in the given range.
+     * @param from The lowest name, inclusive, or {@code null} for no lower bound.
+     * @param to The highest name, exclusive, or {@code null} for no upper bound.
+     * @return Sorted {@link List} of names, a copy.
+     * */
+    public List<String> names(String from, String to) {
+        State current = state;
+        Cursor cursor = from == null
+            ? new Cursor(current, 0, 0)
+            : new Cursor(current, current.segment.lowerBound(from), current.overlay.lowerBound(from));
+
+        List<String> names = new ArrayList<>();
+        while (cursor.hasNext()) {
+            String name = cursor.nextName();
+            if (to != null && name.compareTo(to) >= 0) break;
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns a sorted, unmodifiable view of all stored media, as of the call.
+     * The {@link Media} are created on demand, as the view is read.
+     * @return {@link List} view of all media.
+     * */
+    public List<Media> values() {
+        State current = state;
+        return new AbstractList<>() {
+            @Override
+            public Media get(int index) {
+                Objects.checkIndex(index, current.size);
+                return locate(current, index).next();
+            }
+
+            @Override
+            public Iterator<Media> iterator() {
+                return new Cursor(current, 0, 0);
+            }
+
+            @Override
+            public int size() {
+                return current.size;
+            }
+        };
+    }
+
+    // The current state, for the MediaIndex.
+    State state() {
+        return state;
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    // Called with the lock held.
+    private void publish(Segment segment, Overlay overlay, int size) {
+        if (overlay.size() > Math.max(MIN_MERGE, size / MERGE_RATIO)) {
+            segment = merge(segment, overlay, size);
+            overlay = Overlay.EMPTY;
+        }
+        state = new State(segment, overlay, size);
+    }
+
+    private static Segment merge(Segment old, Overlay overlay, int size) {
+        Segment.Builder builder = new Segment.Builder(old, size);
+
+        int i = 0;
+        for (Chunk chunk : overlay.chunks) {
+            for (int j = 0; j < chunk.names.length; j++) {
+                // Entries of the segment before the row are kept, the one with the same name is replaced, or removed.
+                while (i < old.count && old.compare(i, chunk.names[j]) < 0) builder.copy(i++);
+                if (chunk.positions[j] >= 0) i++;
+                if (chunk.rows[j] != TOMBSTONE) builder.add(chunk.rows[j]);
+            }
+        }
+        while (i < old.count) builder.copy(i++);
+        return builder.build();
+    }
+
+    /**
+     * Finds the media at the given position, among the entries of the segment and the rows of the overlay together.
+     * @return A cursor at the media, or past the end, if the position is out of bounds.
+     * */
+    private Cursor locate(State current, int position) {
+        Segment segment = current.segment;
+        Overlay overlay = current.overlay;
+
+        // The first entry of the segment, and the first row of the overlay, which aren't before the media.
+        // Everything between them and the media is removed, so the cursor skips it.
+        int low = 0, high = segment.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mid + overlay.deltaBefore(overlay.lowerBound(segment.name(mid))) < position) low = mid + 1;
+            else high = mid;
+        }
+        int i = low;
+
+        low = 0;
+        high = overlay.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segment.lowerBound(overlay.name(mid)) + overlay.deltaBefore(mid) < position) low = mid + 1;
+            else high = mid;
+        }
+        return new Cursor(current, i, low);
+    }
+
+    private static boolean isSha256(String checksum) {
+        if (checksum == null || checksum.length() != 64) return false;
+        for (int i = 0; i < checksum.length(); i++) {
+            char c = checksum.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A row of the overlay, with the metadata of the media, or {@code null} if it isn't probed yet.
+     * */
+    record Row(Media media, long size, long modified, MediaMetadata metadata) {
+
+        // Whether both rows describe the same file, regardless of the metadata.
+        boolean describes(Row other) {
+            return size == other.size && modified == other.modified
+                && media.type() == other.media.type() && Objects.equals(media.mimeType(), other.media.mimeType());
+        }
+    }
+
+    /**
+     * The segment and the overlay of a moment, both immutable.
+     * */
+    record State(Segment segment, Overlay overlay, int size) {
+
+        static final State EMPTY = new State(Segment.EMPTY, Overlay.EMPTY, 0);
+
+        /**
+         * @return The number of media, whose names are less than the given one.
+         * */
+        int rank(String name) {
+            return segment.lowerBound(name) + overlay.deltaBefore(overlay.lowerBound(name));
+        }
+    }
+
+    /**
+     * Walks the entries of the segment, and the rows of the overlay together, in the order of the names.
+     * Entries replaced by a row are skipped, as are the removed ones.
+     * */
+    private final class Cursor implements Iterator<Media> {
+
+        private final Segment segment;
+
+        private final Overlay overlay;
+
+        private int i, j;
+
+        Cursor(State state, int i, int j) {
+            this.segment = state.segment;
+            this.overlay = state.overlay;
+            this.i = i;
+            this.j = j;
+            skipRemoved();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return i < segment.count || j < overlay.size();
+        }
+
+        @Override
+        public Media next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Media media = overlayNext() ? overlay.row(j++).media() : segment.media(i++, directory);
+            skipRemoved();
+            return media;
+        }
+
+        String nextName() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String name = overlayNext() ? overlay.name(j++) : segment.name(i++);
+            skipRemoved();
+            return name;
+        }
+
+        // The metadata of the next media, or null if it isn't probed yet.
+        MediaMetadata nextMetadata() {
+            if (!hasNext()) throw new NoSuchElementException();
+            MediaMetadata metadata = overlayNext() ? overlay.row(j++).metadata() : segment.metadata(i++);
+            skipRemoved();
+            return metadata;
+        }
+
+        // Whether the next media is a row of the overlay. An entry of the segment replaced by it is skipped.
+        private boolean overlayNext() {
+            if (j == overlay.size()) return false;
+            if (i == segment.count) return true;
+
+            int order = segment.compare(i, overlay.name(j));
+            if (order == 0) i++;
+            return order >= 0;
+        }
+
+        private void skipRemoved() {
+            while (j < overlay.size() && overlay.row(j) == TOMBSTONE) {
+                int order = i < segment.count ? segment.compare(i, overlay.name(j)) : 1;
+                if (order < 0) return; // An entry of the segment comes first.
+                // The removed entry of the segment is skipped with its tombstone.
+                if (order == 0) i++;
+                j++;
+            }
+        }
+    }
+
+    /**
+     * Immutable, sorted rows of the changes, split into chunks, so a change copies just one of them.
+     * Every row either adds an entry (+1), replaces an entry of the segment (0), or removes it (-1, a tombstone).
+     * The sums of these deltas before every chunk and row give the positions of the merged entries.
+     * */
+    static final class Overlay {
+
+        static final Overlay EMPTY = new Overlay(new Chunk[0]);
+
+        // Chunks are split, once they grow larger.
+        private static final int CHUNK_SIZE = 512;
+
+        final Chunk[] chunks;
+
+        // The number of rows, and the sum of the deltas, before each chunk, and after all of them.
+        private final int[] starts, deltas;
+
+        Overlay(Chunk[] chunks) {
+            this.chunks = chunks;
+            this.starts = new int[chunks.length + 1];
+            this.deltas = new int[chunks.length + 1];
+            for (int c = 0; c < chunks.length; c++) {
+                starts[c + 1] = starts[c] + chunks[c].names.length;
+                deltas[c + 1] = deltas[c] + chunks[c].deltas[chunks[c].names.length];
+            }
+        }
+
+        int size() {
+            return starts[chunks.length];
+        }
+
+        Row get(String name) {
+            int c = chunkOf(name);
+            if (c < 0) return null;
+            int i = Arrays.binarySearch(chunks[c].names, name);
+            return i < 0 ? null : chunks[c].rows[i];
+        }
+
+        // The index of the first row, whose name is greater than, or equal to the given one.
+        int lowerBound(String name) {
+            int c = chunkOf(name);
+            if (c < 0) return 0;
+            int i = Arrays.binarySearch(chunks[c].names, name);
+            return starts[c] + (i < 0 ? -i - 1 : i);
+        }
+
+        // The index of the first row, whose name is strictly greater than the given one.
+        int upperBound(String name) {
+            int c = chunkOf(name);
+            if (c < 0) return 0;
+            int i = Arrays.binarySearch(chunks[c].names, name);
+            return starts[c] + (i < 0 ? -i - 1 : i + 1);
+        }
+
+        String name(int j) {
+            int c = chunkAt(j);
+            return chunks[c].names[j - starts[c]];
+        }
+
+        Row row(int j) {
+            int c = chunkAt(j);
+            return chunks[c].rows[j - starts[c]];
+        }
+
+        // The position of the entry of the segment, which the row replaces, or removes, otherwise a negative number.
+        int position(int j) {
+            int c = chunkAt(j);
+            return chunks[c].positions[j - starts[c]];
+        }
+
+        // The sum of the deltas of the rows before the given index.
+        int deltaBefore(int j) {
+            if (j >= size()) return deltas[chunks.length];
+            int c = chunkAt(j);
+            return deltas[c] + chunks[c].deltas[j - starts[c]];
+        }
+
+        /**
+         * @param position The position of the entry with the same name in the segment, or a negative number.
+         * @return A copy with the row added, or replacing the one with the same name.
+         * */
+        Overlay with(String name, Row row, int position) {
+            if (chunks.length == 0) return new Overlay(new Chunk[] { new Chunk(new String[] { name }, new Row[] { row }, new int[] { position }) });
+
+            int c = Math.max(chunkOf(name), 0);
+            Chunk chunk = chunks[c].with(name, row, position);
+            if (chunk.names.length <= CHUNK_SIZE) {
+                Chunk[] updated = chunks.clone();
+                updated[c] = chunk;
+                return new Overlay(updated);
+            }
+
+            Chunk[] updated = new Chunk[chunks.length + 1];
+            System.arraycopy(chunks, 0, updated, 0, c);
+            updated[c] = chunk.slice(0, chunk.names.length / 2);
+            updated[c + 1] = chunk.slice(chunk.names.length / 2, chunk.names.length);
+            System.arraycopy(chunks, c + 1, updated, c + 2, chunks.length - c - 1);
+            return new Overlay(updated);
+        }
+
+        /**
+         * @return A copy without the row with the given name.
+         * */
+        Overlay without(String name) {
+            int c = chunkOf(name);
+            if (c < 0) return this;
+            Chunk chunk = chunks[c];
+            int i = Arrays.binarySearch(chunk.names, name);
+            if (i < 0) return this;
+
+            if (chunk.names.length > 1) {
+                Chunk[] updated = chunks.clone();
+                updated[c] = chunk.without(i);
+                return new Overlay(updated);
+            }
+            Chunk[] updated = new Chunk[chunks.length - 1];
+            System.arraycopy(chunks, 0, updated, 0, c);
+            System.arraycopy(chunks, c + 1, updated, c, chunks.length - c - 1);
+            return new Overlay(updated);
+        }
+
+        // The last chunk, whose first name isn't greater than the given one, or -1.
+        private int chunkOf(String name) {
+            int low = 0, high = chunks.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (chunks[mid].names[0].compareTo(name) <= 0) low = mid + 1;
+                else high = mid;
+            }
+            return low - 1;
+        }
+
+        // The chunk holding the row with the given index.
+        private int chunkAt(int j) {
+            int c = Arrays.binarySearch(starts, 0, chunks.length, j);
+            return c >= 0 ? c : -c - 2;
+        }
+    }
+
+    /**
+     * Sorted rows of the overlay, with the positions of the entries of the segment with the same names,
+     * and the sums of the deltas before every row.
+     * */
+    private static final class Chunk {
+
+        final String[] names;
+
+        final Row[] rows;
+
+        final int[] positions;
+
+        final int[] deltas;
+
+        Chunk(String[] names, Row[] rows, int[] positions) {
+            this.names = names;
+            this.rows = rows;
+            this.positions = positions;
+            this.deltas = new int[names.length + 1];
+            for (int i = 0; i < names.length; i++) {
+                deltas[i + 1] = deltas[i] + (rows[i] == TOMBSTONE ? -1 : positions[i] >= 0 ? 0 : 1);
+            }
+        }
+
+        Chunk with(String name, Row row, int position) {
+            int i = Arrays.binarySearch(names, name);
+            if (i >= 0) {
+                Row[] updatedRows = rows.clone();
+                updatedRows[i] = row;
+                return new Chunk(names, updatedRows, positions);
+            }
+
+            i = -i - 1;
+            String[] updatedNames = new String[names.length + 1];
+            Row[] updatedRows = new Row[names.length + 1];
+            int[] updatedPositions = new int[names.length + 1];
+            System.arraycopy(names, 0, updatedNames, 0, i);
+            System.arraycopy(rows, 0, updatedRows, 0, i);
+            System.arraycopy(positions, 0, updatedPositions, 0, i);
+            updatedNames[i] = name;
+            updatedRows[i] = row;
+            updatedPositions[i] = position;
+            System.arraycopy(names, i, updatedNames, i + 1, names.length - i);
+            System.arraycopy(rows, i, updatedRows, i + 1, names.length - i);
+            System.arraycopy(positions, i, updatedPositions, i + 1, names.length - i);
+            return new Chunk(updatedNames, updatedRows, updatedPositions);
+        }
+
+        Chunk without(int i) {
+            String[] updatedNames = new String[names.length - 1];
+            Row[] updatedRows = new Row[names.length - 1];
+            int[] updatedPositions = new int[names.length - 1];
+            System.arraycopy(names, 0, updatedNames, 0, i);
+            System.arraycopy(rows, 0, updatedRows, 0, i);
+            System.arraycopy(positions, 0, updatedPositions, 0, i);
+            System.arraycopy(names, i + 1, updatedNames, i, names.length - i - 1);
+            System.arraycopy(rows, i + 1, updatedRows, i, names.length - i - 1);
+            System.arraycopy(positions, i + 1, updatedPositions, i, names.length - i - 1);
+            return new Chunk(updatedNames, updatedRows, updatedPositions);
+        }
+
+        Chunk slice(int from, int to) {
+            return new Chunk(Arrays.copyOfRange(names, from, to), Arrays.copyOfRange(rows, from, to), Arrays.copyOfRange(positions, from, to));
+        }
+    }
+
+    /**
+     * Immutable, sorted entries. The name of an entry is its directory, a '/', and the rest of the name,
+     * or just the rest, for entries in the media directory itself.
+     * */
+    static final class Segment {
+
+        static final Segment EMPTY = new Segment(
+            new String[0], new int[0], new byte[0], new int[1], new long[0], new long[0], new byte[0], new String[0], new char[0],
+            new byte[0], new long[0], new int[0], new int[0], new long[0], 0
+        );
+
+        // Flags of the metadata of an entry.
+        private static final byte PROBED = 1, HASHED = 2;
+
+        final String[] directories;
+
+        final int[] directoryIds;
+
+        // Rest of the names, encoded in UTF-8. The name of entry i spans nameOffsets[i] to nameOffsets[i + 1].
+        final byte[] names;
+
+        final int[] nameOffsets;
+
+        final long[] sizes;
+
+        final long[] modified;
+
+        final byte[] types;
+
+        final String[] mimeTypes;
+
+        final char[] mimeTypeIds;
+
+        final byte[] flags;
+
+        // SHA-256 checksums of the entries, four longs each, big-endian.
+        final long[] hashes;
+
+        final int[] widths, heights;
+
+        final long[] durations;
+
+        final int count;
+
+        Segment(String[] directories, int[] directoryIds, byte[] names, int[] nameOffsets, long[] sizes, long[] modified,
+                byte[] types, String[] mimeTypes, char[] mimeTypeIds,
+                byte[] flags, long[] hashes, int[] widths, int[] heights, long[] durations, int count) {
+            this.directories = directories;
+            this.directoryIds = directoryIds;
+            this.names = names;
+            this.nameOffsets = nameOffsets;
+            this.sizes = sizes;
+            this.modified = modified;
+            this.types = types;
+            this.mimeTypes = mimeTypes;
+            this.mimeTypeIds = mimeTypeIds;
+            this.flags = flags;
+            this.hashes = hashes;
+            this.widths = widths;
+            this.heights = heights;
+            this.durations = durations;
+            this.count = count;
+        }
+
+        String name(int i) {
+            String base = new String(names, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i], StandardCharsets.UTF_8);
+            String directory = directories[directoryIds[i]];
+            return directory.isEmpty() ? base : directory + '/' + base;
+        }
+
+        Media media(int i, Path root) {
+            String name = name(i);
+            return new Media(name, TYPES[types[i]], root.resolve(name).toString(), mimeTypes[mimeTypeIds[i]]);
+        }
+
+        Row row(int i, Path root) {
+            return new Row(media(i, root), sizes[i], modified[i], metadata(i));
+        }
+
+        boolean isProbed(int i) {
+            return (flags[i] & PROBED) != 0;
+        }
+
+        // The metadata of entry i, or null if it isn't probed yet.
+        MediaMetadata metadata(int i) {
+            if (!isProbed(i)) return null;
+            String sha256 = (flags[i] & HASHED) == 0 ? null : HEX.toHexDigits(hashes[4 * i]) + HEX.toHexDigits(hashes[4 * i + 1])
+                + HEX.toHexDigits(hashes[4 * i + 2]) + HEX.toHexDigits(hashes[4 * i + 3]);
+            return new MediaMetadata(name(i), sizes[i], modified[i], sha256, widths[i], heights[i], durations[i], mimeTypes[mimeTypeIds[i]]);
+        }
+
+        boolean matches(int i, Row row) {
+            Media media = row.media();
+            return sizes[i] == row.size() && modified[i] == row.modified()
+                && TYPES[types[i]] == media.type() && Objects.equals(mimeTypes[mimeTypeIds[i]], media.mimeType());
+        }
+
+        /**
+         * @return The position of the name, or a negative number if it isn't present.
+         * */
+        int find(String name) {
+            int i = lowerBound(name);
+            return i < count && compare(i, name) == 0 ? i : -1;
+        }
+
+        // The first position, whose name is greater than, or equal to the given one.
+        int lowerBound(String name) {
+            int low = 0, high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(mid, name) < 0) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        // The first position, whose name is strictly greater than the given one.
+        int upperBound(String name) {
+            int i = lowerBound(name);
+            return i < count && compare(i, name) == 0 ? i + 1 : i;
+        }
+
+        /**
+         * Compares the name of entry i with the given one, as {@link String#compareTo(String)} would,
+         * decoding the stored name on the fly, so nothing is allocated.
+         * */
+        int compare(int i, String name) {
+            int k = 0, length = name.length();
+
+            String directory = directories[directoryIds[i]];
+            if (!directory.isEmpty()) {
+                for (int j = 0; j < directory.length(); j++, k++) {
+                    if (k == length) return 1;
+                    int order = directory.charAt(j) - name.charAt(k);
+                    if (order != 0) return order;
+                }
+                if (k == length) return 1;
+                int order = '/' - name.charAt(k++);
+                if (order != 0) return order;
+            }
+
+            int p = nameOffsets[i], end = nameOffsets[i + 1];
+            while (p < end) {
+                int b = names[p] & 0xFF, codePoint;
+                if (b < 0x80) {
+                    codePoint = b;
+                    p++;
+                } else if (b < 0xE0) {
+                    codePoint = (b & 0x1F) << 6 | names[p + 1] & 0x3F;
+                    p += 2;
+                } else if (b < 0xF0) {
+                    codePoint = (b & 0x0F) << 12 | (names[p + 1] & 0x3F) << 6 | names[p + 2] & 0x3F;
+                    p += 3;
+                } else {
+                    codePoint = (b & 0x07) << 18 | (names[p + 1] & 0x3F) << 12 | (names[p + 2] & 0x3F) << 6 | names[p + 3] & 0x3F;
+                    p += 4;
+                }
+
+                // Supplementary characters are compared as their surrogate pairs, like in a String.
+                if (Character.isBmpCodePoint(codePoint)) {
+                    if (k == length) return 1;
+                    int order = codePoint - name.charAt(k++);
+                    if (order != 0) return order;
+                } else {
+                    for (char c : Character.toChars(codePoint)) {
+                        if (k == length) return 1;
+                        int order = c - name.charAt(k++);
+                        if (order != 0) return order;
+                    }
+                }
+            }
+            return k == length ? 0 : -1;
+        }
+
+        /**
+         * Builds a segment of entries added in order, either copied from the previous segment, or new.
+         * */
+        static final class Builder {
+
+            private final Segment source;
+
+            private final Map<String, Integer> directoryIds = new HashMap<>();
+
+            private final List<String> directories = new ArrayList<>();
+
+            // Ids of the source's directories and MIME types in the new segment, -1 until used.
+            private final int[] directoryMapping, mimeTypeMapping;
+
+            private final Map<String, Integer> mimeTypeIds = new HashMap<>();
+
+            private final List<String> mimeTypes = new ArrayList<>();
+
+            private byte[] names;
+
+            private int[] nameOffsets, entryDirectories;
+
+            private long[] sizes, modified;
+
+            private byte[] types;
+
+            private char[] entryMimeTypes;
+
+            private byte[] flags;
+
+            private long[] hashes;
+
+            private int[] widths, heights;
+
+            private long[] durations;
+
+            private int count;
+
+            Builder(Segment source, int capacity) {
+                this.source = source;
+                this.directoryMapping = new int[source.directories.length];
+                this.mimeTypeMapping = new int[source.mimeTypes.length];
+                Arrays.fill(directoryMapping, -1);
+                Arrays.fill(mimeTypeMapping, -1);
+
+                this.names = new byte[Math.max(16, source.names.length + source.names.length / 8)];
+                this.nameOffsets = new int[capacity + 1];
+                this.entryDirectories = new int[capacity];
+                this.sizes = new long[capacity];
+                this.modified = new long[capacity];
+                this.types = new byte[capacity];
+                this.entryMimeTypes = new char[capacity];
+                this.flags = new byte[capacity];
+                this.hashes = new long[4 * capacity];
+                this.widths = new int[capacity];
+                this.heights = new int[capacity];
+                this.durations = new long[capacity];
+            }
+
+            void copy(int i) {
+                int directory = directoryMapping[source.directoryIds[i]];
+                if (directory < 0) directory = directoryMapping[source.directoryIds[i]] = directoryId(source.directories[source.directoryIds[i]]);
+                int mimeType = mimeTypeMapping[source.mimeTypeIds[i]];
+                if (mimeType < 0) mimeType = mimeTypeMapping[source.mimeTypeIds[i]] = mimeTypeId(source.mimeTypes[source.mimeTypeIds[i]]);
+
+                int from = source.nameOffsets[i];
+                append(source.names, from, source.nameOffsets[i + 1] - from, directory,
+                    source.sizes[i], source.modified[i], source.types[i], mimeType);
+
+                flags[count - 1] = source.flags[i];
+                System.arraycopy(source.hashes, 4 * i, hashes, 4 * (count - 1), 4);
+                widths[count - 1] = source.widths[i];
+                heights[count - 1] = source.heights[i];
+                durations[count - 1] = source.durations[i];
+            }
+
+            void add(Row row) {
+                Media media = row.media();
+                String name = media.fileName();
+                int slash = name.lastIndexOf('/');
+
+                int directory = directoryId(slash < 0 ? "" : name.substring(0, slash));
+                byte[] base = name.substring(slash + 1).getBytes(StandardCharsets.UTF_8);
+                append(base, 0, base.length, directory,
+                    row.size(), row.modified(), (byte) media.type().ordinal(), mimeTypeId(media.mimeType()));
+
+                MediaMetadata metadata = row.metadata();
+                if (metadata == null) return;
+                int i = count - 1;
+                flags[i] = PROBED;
+                if (metadata.sha256() != null) {
+                    flags[i] |= HASHED;
+                    for (int k = 0; k < 4; k++) hashes[4 * i + k] = HexFormat.fromHexDigitsToLong(metadata.sha256(), 16 * k, 16 * k + 16);
+                }
+                widths[i] = metadata.width();
+                heights[i] = metadata.height();
+                durations[i] = metadata.durationMillis();
+            }
+
+            Segment build() {
+                if (count < sizes.length) {
+                    // Only if the count of the store went wrong, the segment is right anyway.
+                    nameOffsets = Arrays.copyOf(nameOffsets, count + 1);
+                    entryDirectories = Arrays.copyOf(entryDirectories, count);
+                    sizes = Arrays.copyOf(sizes, count);
+                    modified = Arrays.copyOf(modified, count);
+                    types = Arrays.copyOf(types, count);
+                    entryMimeTypes = Arrays.copyOf(entryMimeTypes, count);
+                    flags = Arrays.copyOf(flags, count);
+                    hashes = Arrays.copyOf(hashes, 4 * count);
+                    widths = Arrays.copyOf(widths, count);
+                    heights = Arrays.copyOf(heights, count);
+                    durations = Arrays.copyOf(durations, count);
+                }
+                return new Segment(
+                    directories.toArray(String[]::new), entryDirectories, Arrays.copyOf(names, nameOffsets[count]), nameOffsets,
+                    sizes, modified, types, mimeTypes.toArray(String[]::new), entryMimeTypes,
+                    flags, hashes, widths, heights, durations, count
+                );
+            }
+
+            private void append(byte[] name, int from, int length, int directory, long size, long modified, byte type, int mimeType) {
+                if (count == sizes.length) grow();
+
+                int offset = nameOffsets[count];
+                if (offset + length > names.length) names = Arrays.copyOf(names, Math.max(offset + length, names.length * 2));
+                System.arraycopy(name, from, names, offset, length);
+                nameOffsets[count + 1] = offset + length;
+
+                entryDirectories[count] = directory;
+                sizes[count] = size;
+                this.modified[count] = modified;
+                types[count] = type;
+                entryMimeTypes[count] = (char) mimeType;
+                count++;
+            }
+
+            private void grow() {
+                int capacity = Math.max(16, sizes.length * 2);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+                entryDirectories = Arrays.copyOf(entryDirectories, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                modified = Arrays.copyOf(modified, capacity);
+                types = Arrays.copyOf(types, capacity);
+                entryMimeTypes = Arrays.copyOf(entryMimeTypes, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                hashes = Arrays.copyOf(hashes, 4 * capacity);
+                widths = Arrays.copyOf(widths, capacity);
+                heights = Arrays.copyOf(heights, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+            }
+
+            private int directoryId(String directory) {
+                return directoryIds.computeIfAbsent(directory, d -> {
+                    directories.add(d);
+                    return directories.size() - 1;
+                });
+            }
+
+            private int mimeTypeId(String mimeType) {
+                return mimeTypeIds.computeIfAbsent(mimeType, m -> {
+                    mimeTypes.add(mimeType);
+                    return mimeTypes.size() - 1;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package pl.magzik.catalog;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.magzik.model.Game;
+import pl.magzik.utils.DirectoryScanner;
+import pl.magzik.utils.DirectoryWatcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * In-memory registry of valid games, keyed by the lowercase game name.
+ * <p>
+ *     The game directory is scanned in parallel at startup. Afterward, the {@link DirectoryWatcher}
+ *     watches the game directory itself and the whole tree of every game directory in it, as assets are often
+ *     nested (e.g. {@code Build/game.wasm}). A game is validated again, and its listeners notified,
+ *     only when something in its own tree changes, so lookups never touch the file system.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * @see Game
+ * */
+@Component
+public class GameRegistry implements DirectoryWatcher.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(GameRegistry.class);
+
+    // Games are the direct subdirectories of the game directory.
+    private static final DirectoryScanner.Options SCAN_OPTIONS = DirectoryScanner.Options.of(1, List.of());
+
+    private final Path gameDirectory;
+
+    private final DirectoryScanner directoryScanner;
+
+    private final Map<String, Game> games = new ConcurrentHashMap<>();
+
+    private final AtomicLong version = new AtomicLong();
+
+    private final List<Consumer<Game>> listeners = new CopyOnWriteArrayList<>();
+
+    // Sorted view of the games, rebuilt lazily after changes.
+    private volatile Sorted sorted = new Sorted(-1, List.of());
+
+    private DirectoryWatcher watcher;
+
+    public GameRegistry(@Value("${game-dir}") String gameDirectory, DirectoryScanner directoryScanner) {
+        this.gameDirectory = Path.of(gameDirectory).toAbsolutePath();
+        this.directoryScanner = directoryScanner;
+    }
+
+    @PostConstruct
+    public void start() {
+        try {
+            watcher = new DirectoryWatcher("game-registry-watcher", this);
+            watcher.register(gameDirectory);
+        } catch (IOException e) {
+            log.error("Couldn't watch directory '{}'. Registry won't notice external changes.", gameDirectory, e);
+            watcher = null;
+        }
+
+        rescan();
+        if (watcher != null) watcher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (watcher != null) watcher.close();
+    }
+
+    /**
+     * Finds a game with specified name, ignoring the case.
+     * @param name The name of the game.
+     * @return An {@link Optional} of the game, or {@link Optional#empty()} if no valid game has this name.
+     * @throws NullPointerException If given name is null.
+     * */
+    public Optional<Game> get(String name) {
+        Objects.requireNonNull(name);
+        return Optional.ofNullable(games.get(name.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * @return {@link List} of all valid games, sorted by the name.
+     * */
+    public List<Game> values() {
+        Sorted current = sorted;
+        long expected = version.get();
+        if (current.version() != expected) {
+            // Racing rebuilds produce equal lists, so no locking is needed.
+            current = new Sorted(expected, games.values().stream()
+                    .sorted(Comparator.comparing(Game::name))
+                    .toList());
+            sorted = current;
+        }
+        return current.games();
+    }
+
+    /**
+     * @return Version of the registry, it changes whenever any game is added, changed or removed.
+     * */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Adds a listener, notified whenever a game is registered, or its directory changes.
+     * Games registered before the listener has been added are not reported.
+     * @param listener The listener, called on the watcher thread.
+     * */
+    public void addListener(Consumer<Game> listener) {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * @return The absolute path of the game directory.
+     * */
+    public Path directory() {
+        return gameDirectory;
+    }
+
+    /**
+     * @return Directory of the given game.
+     * */
+    public Path directoryOf(Game game) {
+        return gameDirectory.resolve(game.name());
+    }
+
+    /**
+     * Scans the whole game directory again, validating every game in parallel.
+     * */
+    public void rescan() {
+        long start = System.nanoTime();
+
+        List<Path> directories;
+        try (Stream<DirectoryScanner.Entry> entries = directoryScanner.scan(gameDirectory, SCAN_OPTIONS)) {
+            directories = entries.filter(entry -> entry.attributes().isDirectory())
+                    .map(DirectoryScanner.Entry::path)
+                    .toList();
+        } catch (IOException e) {
+            log.error("Couldn't read game directory '{}'.", gameDirectory, e);
+            directories = List.of();
+        }
+
+        Set<String> found = ConcurrentHashMap.newKeySet();
+        directories.parallelStream()
+                .forEach(directory -> {
+                    found.add(key(directory.getFileName().toString()));
+                    refresh(directory);
+                });
+
+        List.copyOf(games.keySet()).stream()
+                .filter(name -> !found.contains(name))
+                .forEach(this::remove);
+
+        log.info("Registered {} games in {} ms.", games.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public void onEvent(WatchEvent.Kind<Path> kind, Path path) {
+        if (!path.startsWith(gameDirectory) || path.equals(gameDirectory)) return;
+
+        Path relative = gameDirectory.relativize(path);
+        Path directory = gameDirectory.resolve(relative.getName(0));
+        if (relative.getNameCount() == 1) {
+            refresh(directory); // A game directory itself has been added, or removed.
+            return;
+        }
+
+        // Content of a game directory has changed, at any depth. New subdirectories are watched too.
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) watch(path);
+        update(directory);
+    }
+
+    @Override
+    public void onOverflow() {
+        log.warn("Game directory watcher overflowed, rescanning '{}'.", gameDirectory);
+        rescan();
+    }
+
+    @Override
+    public void onDirectoryInvalid(Path directory) {
+        if (gameDirectory.equals(directory.getParent())) remove(key(directory.getFileName().toString()));
+    }
+
+    private void refresh(Path directory) {
+        // Invalid directories are watched as well, they may become valid games later.
+        if (Files.isDirectory(directory)) watch(directory);
+        update(directory);
+    }
+
+    /**
+     * Registers the given directory and all its subdirectories.
+     * Registering the same directory again is a no-op.
+     * */
+    private void watch(Path root) {
+        if (watcher == null) return;
+
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path directory : (Iterable<Path>) paths.filter(Files::isDirectory)::iterator) {
+                watcher.register(directory);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Couldn't watch game directory '{}'.", root, e);
+        }
+    }
+
+    private void update(Path directory) {
+        String key = key(directory.getFileName().toString());
+
+        Optional<Game> game = validate(directory.toFile());
+        if (game.isEmpty()) {
+            remove(key);
+            return;
+        }
+
+        if (!game.get().equals(games.put(key, game.get()))) version.incrementAndGet();
+        // Assets may have changed, even if the game itself hasn't.
+        listeners.forEach(listener -> listener.accept(game.get()));
+    }
+
+    private void remove(String key) {
+        if (games.remove(key) != null) version.incrementAndGet();
+    }
+
+    /**
+     * Validates a single game directory.
+     * A valid game directory contains exactly one `.html` file and may include other assets.
+     * The directory is listed only once, and the {@link Game} is built from the same listing.
+     *
+     * @param directory The directory to validate.
+     * @return An {@link Optional} of the game, or {@link Optional#empty()} if the directory isn't a valid game.
+     */
+    private static Optional<Game> validate(File directory) {
+        if (!directory.isDirectory()) {
+            log.debug("Directory '{}' is not a directory.", directory);
+            return Optional.empty();
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null || files.length == 0) {
+            log.warn("Directory '{}' is empty.", directory);
+            return Optional.empty();
+        }
+
+        List<File> htmlFiles = Arrays.stream(files)
+                .filter(file -> file.getName().endsWith(".html"))
+                .toList();
+        if (htmlFiles.size() != 1) {
+            log.warn("Directory '{}' must contain exactly one HTML file. Found: {}.", directory, htmlFiles.size());
+            return Optional.empty();
+        }
+
+        return Optional.of(new Game(directory.getName(), htmlFiles.getFirst().getName()));
+    }
+
+    private record Sorted(long version, List<Game> games) {}
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,60 @@
+package pl.magzik.catalog;
+
+import pl.magzik.model.IndexingStatus;
+
+/**
+ * Progress of the scans of the {@link MediaCatalog}. The number of media files found by a completed scan
+ * is the expected number of the next one, which makes the estimate of the remaining time.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+final class IndexingProgress {
+
+    private boolean running;
+
+    private long indexed;
+
+    private long expected = -1;
+
+    private long startedAt, startedNanos, finishedAt, elapsedNanos;
+
+    synchronized void expect(long count) {
+        expected = count;
+    }
+
+    synchronized void start() {
+        running = true;
+        indexed = 0;
+        startedAt = System.currentTimeMillis();
+        startedNanos = System.nanoTime();
+        finishedAt = 0;
+    }
+
+    synchronized void indexed() {
+        indexed++;
+    }
+
+    /**
+     * @param completed Whether the scan went through the whole directory, so its count can be expected next time.
+     * */
+    synchronized void finish(boolean completed) {
+        running = false;
+        finishedAt = System.currentTimeMillis();
+        elapsedNanos = System.nanoTime() - startedNanos;
+        if (completed) expected = indexed;
+    }
+
+    synchronized boolean isRunning() {
+        return running;
+    }
+
+    synchronized IndexingStatus status(int pendingProbes) {
+        if (startedAt == 0) return new IndexingStatus(false, 0, expected, 0, 0, 0, -1, pendingProbes);
+
+        double seconds = (running ? System.nanoTime() - startedNanos : elapsedNanos) / 1e9;
+        double rate = seconds > 0 ? indexed / seconds : 0;
+        long eta = !running ? 0 : rate > 0 && expected > indexed ? (long) Math.ceil((expected - indexed) / rate) : -1;
+        return new IndexingStatus(running, indexed, expected, startedAt, finishedAt, rate, eta, pendingProbes);
+    }
+}
@@ -0,0 +1,610 @@
+package pl.magzik.catalog;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.magzik.media.MediaProbe;
+import pl.magzik.media.MediaTypeRegistry;
+import pl.magzik.model.IndexingStatus;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.MediaSearchResult;
+import pl.magzik.upload.DedupStore;
+import pl.magzik.utils.DirectoryScanner;
+import pl.magzik.utils.DirectoryWatcher;
+import pl.magzik.utils.JobQueue;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+
+/**
+ * In-memory, sorted index of the media directory.
+ * <p>
+ *     Entries are kept in a {@link CompactMediaStore}, so even millions of files take little heap,
+ *     and {@link Media} objects are created only for the entries returned. The store keeps the probed metadata too,
+ *     and the {@link MediaIndex} of the queries refers to its entries, so nothing is kept per file elsewhere.
+ * </p>
+ * <p>
+ *     At startup the index is restored from the {@link MetadataStore}, and reconciled with the directory
+ *     in the background, comparing only sizes and modification times. Without stored metadata, the index starts empty,
+ *     and it's filled as the background scan goes, so the gallery is available right away.
+ *     Afterward the index is kept up to date by the {@link DirectoryWatcher}, whose changes are passed
+ *     to the {@link DedupStore} as well. Entries are sorted by the file name, which is consistent with {@link Media#compareTo(Media)}.
+ * </p>
+ * <p>
+ *     Scans run one at a time, on a low priority thread, and their progress is reported by {@link #indexingStatus()}.
+ *     The directory can be scanned again on demand ({@link #reindex()}), or every {@code media-scan.reindex-interval}.
+ * </p>
+ * <p>
+ *     Subdirectories (albums) are scanned up to {@code media-scan.max-depth} levels deep, skipping entries matching
+ *     {@code media-scan.ignore}. Media in subdirectories are named by their path relative to the media directory,
+ *     e.g. {@code holidays/beach.jpg}.
+ * </p>
+ * <p>
+ *     Metadata of new and changed files is read by low priority background jobs, see {@link JobQueue}.
+ *     Uploaded files are probed first, then files changed behind the application's back, and files found by scans last.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.8
+ * @see Media
+ * @see MetadataStore
+ * @see DirectoryScanner
+ * */
+@Component
+public class MediaCatalog implements DirectoryWatcher.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(MediaCatalog.class);
+
+    private final Path mediaDirectory;
+
+    private final CompactMediaStore index;
+
+    // Incremented on every change of the index.
+    private final AtomicLong version = new AtomicLong();
+
+    // Secondary indexes, used by queries.
+    private final MediaIndex searchIndex;
+
+    private final MetadataStore metadataStore;
+
+    private final MediaTypeRegistry mediaTypeRegistry;
+
+    private final DedupStore dedupStore;
+
+    private final DirectoryScanner directoryScanner;
+
+    private final DirectoryScanner.Options scanOptions;
+
+    private final JobQueue jobs;
+
+    private final List<BiConsumer<Media, MediaMetadata>> listeners = new CopyOnWriteArrayList<>();
+
+    private final Duration reindexInterval;
+
+    // Runs the scans, and nothing else, so they never take a thread serving requests.
+    private final ScheduledExecutorService indexer = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("media-catalog-indexer").daemon().priority(Thread.MIN_PRIORITY).factory()
+    );
+
+    // Requests made while a scan is queued already are coalesced into it.
+    private final AtomicBoolean reindexQueued = new AtomicBoolean();
+
+    private final IndexingProgress progress = new IndexingProgress();
+
+    // Held by the running scan.
+    private final Object scanLock = new Object();
+
+    private DirectoryWatcher watcher;
+
+    public MediaCatalog(@Value("${media-dir}") String mediaDirectory,
+                        @Value("${media-scan.max-depth:8}") int maxDepth,
+                        @Value("${media-scan.ignore:.*}") List<String> ignore,
+                        @Value("${media-jobs.threads:1}") int jobThreads,
+                        @Value("${media-jobs.queue-size:10000}") int jobQueueSize,
+                        @Value("${media-scan.reindex-interval:0}") Duration reindexInterval,
+                        MetadataStore metadataStore, MediaTypeRegistry mediaTypeRegistry, DedupStore dedupStore,
+                        DirectoryScanner directoryScanner) {
+        this.mediaDirectory = Path.of(mediaDirectory).toAbsolutePath();
+        this.index = new CompactMediaStore(this.mediaDirectory);
+        this.searchIndex = new MediaIndex(index);
+        this.scanOptions = DirectoryScanner.Options.of(maxDepth, ignore);
+        this.metadataStore = metadataStore;
+        this.mediaTypeRegistry = mediaTypeRegistry;
+        this.dedupStore = dedupStore;
+        this.directoryScanner = directoryScanner;
+        this.jobs = new JobQueue("media-catalog-prober", jobThreads, jobQueueSize);
+        this.reindexInterval = reindexInterval;
+
+        dedupStore.addHashListener(this::onHashed);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        restore();
+
+        try {
+            watcher = new DirectoryWatcher("media-catalog-watcher", this);
+            watcher.register(mediaDirectory);
+            watcher.start();
+        } catch (IOException e) {
+            log.error("Couldn't watch directory '{}'. Catalog won't notice external changes.", mediaDirectory, e);
+        }
+
+        // The watcher is already running, so nothing changed during the scan is missed.
+        reindex();
+        if (reindexInterval.isPositive()) {
+            long interval = reindexInterval.toMillis();
+            indexer.scheduleWithFixedDelay(this::reindex, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        indexer.shutdownNow();
+        jobs.close();
+        if (watcher != null) watcher.close();
+        metadataStore.close(index.metadata());
+    }
+
+    /**
+     * Finds a media file with specified name.
+     * @param fileName The name of the media file.
+     * @return An {@link Optional} of the media file, or {@link Optional#empty()} if it isn't indexed.
+     * @throws NullPointerException If given name is null.
+     * */
+    public Optional<Media> get(String fileName) {
+        Objects.requireNonNull(fileName);
+        return index.get(fileName);
+    }
+
+    /**
+     * Finds the stored metadata of a media file. No file system access is involved.
+     * @param fileName The name of the media file.
+     * @return An {@link Optional} of the metadata, or {@link Optional#empty()} if the file hasn't been probed yet.
+     * @throws NullPointerException If given name is null.
+     * */
+    public Optional<MediaMetadata> metadata(String fileName) {
+        Objects.requireNonNull(fileName);
+        return index.metadata(fileName);
+    }
+
+    /**
+     * Adds a listener, notified whenever a media file has been probed, e.g. to render derived files.
+     * @param listener The listener, called on a background job thread, with the media and its new metadata.
+     * */
+    public void addProbeListener(BiConsumer<Media, MediaMetadata> listener) {
+        listeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * @return Number of media files waiting to be probed.
+     * */
+    public int pendingProbes() {
+        return jobs.size();
+    }
+
+    /**
+     * @return Progress of the current, or the last scan of the media directory.
+     * */
+    public IndexingStatus indexingStatus() {
+        return progress.status(pendingProbes());
+    }
+
+    /**
+     * @return Number of indexed media files.
+     * */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return Version of the index, it changes whenever any entry is added, changed or removed,
+     *         and whenever a scan starts or finishes.
+     * */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * @return Version of the stored metadata, it changes whenever metadata of any media is stored or removed.
+     * */
+    public long metadataVersion() {
+        return metadataStore.version();
+    }
+
+    /**
+     * Returns at most {@code limit} media, starting at the given position of the sorted index.
+     * <p>
+     *     Served by walking the sorted segment of the {@link CompactMediaStore} and its pending changes together,
+     *     so it costs O(log&sup2; n + limit) regardless of the offset, and never waits for a merge.
+     * </p>
+     * @param offset The position of the first media returned.
+     * @param limit The maximum number of media returned.
+     * @return Unmodifiable {@link List} of media, empty if the offset is out of bounds.
+     * */
+    public List<Media> slice(long offset, int limit) {
+        return index.slice(offset, limit);
+    }
+
+    /**
+     * Returns at most {@code limit} media, whose names are strictly greater than the given one.
+     * Costs O(log n + limit).
+     * @param fileName The name of the last media on the previous page, or {@code null} to start from the beginning.
+     * @param limit The maximum number of media returned.
+     * @return Sorted {@link List} of media.
+     * */
+    public List<Media> after(String fileName, int limit) {
+        return index.after(fileName, limit);
+    }
+
+    /**
+     * Finds the position of the first media whose name is greater than, or equal to the given one.
+     * @param fileName The name of the media.
+     * @return Position in the sorted index.
+     * */
+    public int positionOf(String fileName) {
+        Objects.requireNonNull(fileName);
+        return index.positionOf(fileName);
+    }
+
+    /**
+     * Finds a page of media matching the query, using secondary indexes.
+     * @param query The query.
+     * @param offset The position of the first media returned, among all matching media.
+     * @param limit The maximum number of media returned.
+     * @return {@link MediaSearchResult} with the page and the number of all matching media.
+     * */
+    public MediaSearchResult search(MediaQuery query, long offset, int limit) {
+        return searchIndex.query(query, offset, limit);
+    }
+
+    /**
+     * Finds media matching the query, whose names follow the given one, see {@link MediaIndex#queryAfter(MediaQuery, String, int)}.
+     * @param query The query, its order is ignored.
+     * @param fileName The name of the last media returned, or {@code null} to start from the beginning.
+     * @param limit The maximum number of media returned.
+     * @return {@link List} of media, sorted by the names.
+     * */
+    public List<Media> searchAfter(MediaQuery query, String fileName, int limit) {
+        return searchIndex.queryAfter(query, fileName, limit);
+    }
+
+    /**
+     * Returns a sorted and unmodifiable view of all media indexed at the time of the call.
+     * The {@link Media} are created as the view is read, so prefer {@link #slice(long, int)} for a page.
+     * @return {@link Collection} of all indexed media.
+     * */
+    public Collection<Media> values() {
+        return index.values();
+    }
+
+    /**
+     * Re-reads a single file and updates the index accordingly.
+     * @param file The file to refresh, located in the media directory, or one of its subdirectories.
+     * @see #refresh(Path, JobQueue.Priority)
+     * */
+    public void refresh(Path file) {
+        refresh(file, JobQueue.Priority.CHANGE);
+    }
+
+    /**
+     * Re-reads a single file and updates the index accordingly.
+     * Use it, when the file has been changed by the application itself,
+     * to make the change visible without waiting for the watcher.
+     * @param file The file to refresh, located in the media directory, or one of its subdirectories.
+     * @param priority The priority of probing the file.
+     * */
+    public void refresh(Path file, JobQueue.Priority priority) {
+        Objects.requireNonNull(file);
+        Objects.requireNonNull(priority);
+
+        String name = nameOf(file);
+        if (name == null) return;
+
+        BasicFileAttributes attributes = indexableAttributes(file);
+        Media media = attributes == null ? null : toMedia(name);
+        if (media == null) {
+            remove(name);
+        } else {
+            put(media, attributes.size(), attributes.lastModifiedTime().toMillis());
+            probe(media, priority);
+        }
+    }
+
+    /**
+     * Schedules a scan of the whole media directory tree in the background, see {@link #rescan()}.
+     * @return {@code false} if a scan is queued already, it will pick up all changes made so far.
+     * */
+    public boolean reindex() {
+        if (!reindexQueued.compareAndSet(false, true)) return false;
+        try {
+            indexer.execute(() -> {
+                reindexQueued.set(false);
+                rescan();
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            reindexQueued.set(false); // Stopped.
+            return false;
+        }
+    }
+
+    /**
+     * Scans the whole media directory tree again and updates the index, as the files are found,
+     * so the index is usable during the scan. Files, whose size and modification time match the stored metadata,
+     * aren't probed again, others are queued for probing in the background.
+     * <p>
+     *     Blocks until the scan finishes, prefer {@link #reindex()}.
+     * </p>
+     * */
+    public void rescan() {
+        synchronized (scanLock) {
+            long start = System.nanoTime();
+            progress.start();
+            version.incrementAndGet();
+
+            Set<String> scanned = new HashSet<>();
+            List<Media> changed = new ArrayList<>();
+            boolean completed = false;
+            try (Stream<DirectoryScanner.Entry> entries = directoryScanner.scan(mediaDirectory, scanOptions)) {
+                entries.forEach(entry -> {
+                    if (entry.attributes().isDirectory()) watch(entry.path(), entry.depth());
+                    else if (entry.attributes().isRegularFile() && !isHidden(entry.path())) {
+                        scanned.add(entry.name());
+                        Media media = index(entry);
+                        if (media != null) changed.add(media);
+                    }
+                });
+                completed = true;
+            } catch (IOException e) {
+                log.error("Couldn't scan media directory '{}'.", mediaDirectory, e);
+            } finally {
+                progress.finish(completed);
+                version.incrementAndGet();
+            }
+            if (!completed) return;
+
+            // Files added during the scan (e.g. uploads) might have been missed by it, but they do exist.
+            index.names(null, null).stream()
+                    .filter(name -> !scanned.contains(name) && !Files.exists(mediaDirectory.resolve(name)))
+                    .forEach(this::remove);
+            // Changes of the scan are merged at once, rather than left to the next writes.
+            index.merge();
+
+            log.info("Indexed {} media files in {} ms, {} of them new or changed.",
+                size(), (System.nanoTime() - start) / 1_000_000, changed.size());
+
+            // The queue is bounded, so the jobs are fed by a separate thread, which waits for the room in the queue.
+            if (!changed.isEmpty()) {
+                Thread.ofPlatform().name("media-catalog-feeder").daemon().start(() -> {
+                    for (Media media : changed) {
+                        if (!probe(media, JobQueue.Priority.BACKGROUND)) return;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Indexes a file found by a scan.
+     * @return The media, if it's new or changed, so it has to be probed, {@code null} otherwise.
+     * */
+    private Media index(DirectoryScanner.Entry entry) {
+        Media media = toMedia(entry.name());
+        if (media == null) {
+            remove(entry.name());
+            return null;
+        }
+
+        BasicFileAttributes attributes = entry.attributes();
+        put(media, attributes.size(), attributes.lastModifiedTime().toMillis());
+        progress.indexed();
+        // Metadata is dropped by the put, if the file has changed.
+        return index.hasMetadata(media.fileName()) ? null : media;
+    }
+
+    @Override
+    public void onEvent(WatchEvent.Kind<Path> kind, Path path) {
+        if (kind == ENTRY_DELETE) {
+            String name = nameOf(path);
+            if (name == null) return;
+            // The path is gone, so it's unknown whether it has been a file, or a directory.
+            remove(name);
+            removeTree(name);
+            dedupStore.refresh(name);
+        } else if (Files.isDirectory(path)) {
+            // Modifications of a directory are reported for its own content, which is watched separately.
+            if (kind == ENTRY_CREATE) scanTree(path);
+        } else {
+            refresh(path);
+            // Hashes of files edited in place are stale, the dedup store mustn't link new uploads to them.
+            String name = nameOf(path);
+            if (name != null) dedupStore.refresh(name);
+        }
+    }
+
+    @Override
+    public void onOverflow() {
+        log.warn("Media directory watcher overflowed, rescanning '{}'.", mediaDirectory);
+        reindex();
+    }
+
+    @Override
+    public void onDirectoryInvalid(Path directory) {
+        String name = nameOf(directory);
+        if (name != null) removeTree(name);
+    }
+
+    private void put(Media media, long size, long modified) {
+        if (index.put(media, size, modified)) version.incrementAndGet();
+    }
+
+    private void remove(String fileName) {
+        if (!index.remove(fileName)) return;
+        version.incrementAndGet();
+        metadataStore.remove(fileName);
+    }
+
+    private void removeTree(String directoryName) {
+        // '0' follows '/', so the range covers exactly the names starting with the directory name and a '/'.
+        index.names(directoryName + "/", directoryName + "0").forEach(this::remove);
+    }
+
+    /**
+     * Indexes a directory, which appeared in the tree (e.g. it has been created or moved in), with all its content.
+     * */
+    private void scanTree(Path directory) {
+        String name = nameOf(directory);
+        if (name == null) return;
+
+        int depth = mediaDirectory.relativize(directory).getNameCount();
+        watch(directory, depth);
+        try (Stream<DirectoryScanner.Entry> entries = directoryScanner.scan(mediaDirectory, directory, scanOptions)) {
+            entries.forEach(entry -> {
+                if (entry.attributes().isDirectory()) watch(entry.path(), entry.depth());
+                else if (entry.attributes().isRegularFile()) {
+                    refresh(entry.path());
+                    dedupStore.refresh(entry.name());
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Couldn't scan media directory '{}'.", directory, e);
+        }
+    }
+
+    private void watch(Path directory, int depth) {
+        // Files in a directory at the maximal depth wouldn't be indexed anyway.
+        if (watcher == null || depth >= scanOptions.maxDepth()) return;
+        try {
+            watcher.register(directory); // Registering the same directory again is a no-op.
+        } catch (IOException e) {
+            log.warn("Couldn't watch media directory '{}'.", directory, e);
+        }
+    }
+
+    private void restore() throws IOException {
+        long start = System.nanoTime();
+        for (MediaMetadata metadata : metadataStore.open()) {
+            Media media = toMedia(metadata.fileName(), metadata.mimeType());
+            if (media == null) continue;
+            put(media, metadata.size(), metadata.lastModified());
+            index.putMetadata(metadata);
+            // Hashed before the catalog started listening to the dedup store.
+            if (metadata.sha256() == null) {
+                dedupStore.findHash(metadata.fileName()).ifPresent(hash -> onHashed(metadata.fileName(), hash));
+            }
+        }
+        index.merge();
+
+        if (size() == 0) return;
+        // The first scan is expected to find about the same number of files.
+        progress.expect(size());
+        log.info("Restored {} media files in {} ms, reconciling with '{}' in the background.",
+            size(), (System.nanoTime() - start) / 1_000_000, mediaDirectory);
+    }
+
+    /**
+     * @return {@code false} if interrupted while waiting for the room in the queue.
+     * */
+    private boolean probe(Media media, JobQueue.Priority priority) {
+        try {
+            jobs.submit(media.fileName(), priority, () -> probeNow(media));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void probeNow(Media media) {
+        Path file = Path.of(media.path());
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            String hash = dedupStore.findHash(media.fileName()).orElse(null);
+            MediaMetadata metadata = MediaProbe.probe(media, attributes, hash);
+            // Skip, if the file has been removed in the meantime.
+            if (index.contains(media.fileName())) {
+                if (index.putMetadata(metadata)) metadataStore.put(metadata);
+                listeners.forEach(listener -> listener.accept(media, metadata));
+            }
+        } catch (NoSuchFileException e) {
+            log.debug("'{}' has been removed before probing.", file);
+        } catch (IOException e) {
+            log.debug("Couldn't probe '{}'.", file, e);
+        }
+    }
+
+    /**
+     * Stores the checksum of a file hashed by the dedup store, after the file has been probed,
+     * so reading metadata never changes it, nor the {@link #metadataVersion()}.
+     * */
+    private void onHashed(String fileName, String hash) {
+        index.metadata(fileName)
+                .filter(metadata -> !hash.equals(metadata.sha256()))
+                .map(metadata -> metadata.withSha256(hash))
+                .filter(index::putMetadata)
+                .ifPresent(metadataStore::put);
+    }
+
+    private static boolean isHidden(Path file) {
+        // Hidden files are reserved for in-progress uploads and other bookkeeping.
+        return file.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * @return Attributes of the file, or {@code null} if it can't be indexed, e.g. it's hidden, or it doesn't exist.
+     * */
+    private static BasicFileAttributes indexableAttributes(Path file) {
+        if (isHidden(file)) return null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The name of the given file in the index, or {@code null} if the file is outside the scanned tree.
+     * */
+    private String nameOf(Path file) {
+        Path relative = mediaDirectory.relativize(file.toAbsolutePath());
+        if (relative.toString().isEmpty() || relative.startsWith("..")) return null;
+        if (relative.getNameCount() > scanOptions.maxDepth() || scanOptions.ignores(relative)) return null;
+        return DirectoryScanner.nameOf(relative);
+    }
+
+    private Media toMedia(String fileName) {
+        return toMedia(fileName, index.get(fileName).map(Media::mimeType).orElse(null));
+    }
+
+    /**
+     * @param mimeType The MIME type known already, or {@code null}.
+     * */
+    private Media toMedia(String fileName, String mimeType) {
+        Path file = mediaDirectory.resolve(fileName);
+        // The known MIME type spares the resolution, and sniffing of files without an extension.
+        Optional<Media> media = Optional.ofNullable(mimeType)
+                .flatMap(type -> mediaTypeRegistry.toMedia(fileName, file, type))
+                .or(() -> mediaTypeRegistry.toMedia(fileName, file));
+
+        if (media.isEmpty()) log.debug("Skipping unsupported file '{}'.", file);
+        return media.orElse(null);
+    }
+}
@@ -0,0 +1,527 @@
+package pl.magzik.catalog;
+
+import pl.magzik.catalog.CompactMediaStore.Row;
+import pl.magzik.catalog.CompactMediaStore.Segment;
+import pl.magzik.catalog.CompactMediaStore.State;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.MediaSearchResult;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Secondary indexes of the {@link CompactMediaStore}, used to answer {@link MediaQuery queries} without a full scan.
+ * <p>
+ *     The indexes refer to the entries by their positions in the sorted segment of the store, nothing is copied.
+ *     Entries are ordered by the modification time and by the size in two permutations of the positions,
+ *     listed by the type, and by the trigrams of the lower-cased name, in posting lists of ascending positions,
+ *     encoded as variable-length gaps. A query is driven by the most selective index it can use:
+ *     the trigrams for a text of three or more characters, otherwise a date or size range,
+ *     otherwise the index of the requested order. Remaining criteria are checked on the driven entries only.
+ *     If the driving index already yields the requested order, no sorting is needed at all,
+ *     and if it also holds only matching entries, just the requested page is visited.
+ * </p>
+ * <p>
+ *     The indexes of a segment are built by the first query, which sees it, in O(n log n),
+ *     so a merge of the store costs the next query a rebuild. Rows of the overlay of the store,
+ *     i.e. the changes not merged yet, aren't indexed: they are checked one by one,
+ *     and merged with the entries of the segment, which they replace, or remove.
+ * </p>
+ * <p>
+ *     Names aren't kept, so the text is verified on a name decoded from the segment.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 2.0
+ * @see MediaCatalog
+ * */
+public class MediaIndex {
+
+    private static final Media.MediaType[] TYPES = Media.MediaType.values();
+
+    private final CompactMediaStore store;
+
+    // The indexes of the last segment, and of the overlay of the last state, queried.
+    private volatile SegmentIndex segmentIndex = SegmentIndex.EMPTY;
+
+    private volatile OverlayIndex overlayIndex = OverlayIndex.EMPTY;
+
+    /**
+     * @param store The store of the media, which is indexed.
+     * */
+    public MediaIndex(CompactMediaStore store) {
+        this.store = Objects.requireNonNull(store);
+    }
+
+    /**
+     * Finds a page of media matching the query.
+     * @param query The query.
+     * @param offset The position of the first media returned, among all matching media.
+     * @param limit The maximum number of media returned.
+     * @return {@link MediaSearchResult} with the page and the number of all matching media.
+     * */
+    public MediaSearchResult query(MediaQuery query, long offset, int limit) {
+        Objects.requireNonNull(query);
+
+        State state = store.state();
+        boolean unrestricted = query.type() == null && query.text() == null && !query.hasModifiedRange() && !query.hasSizeRange();
+        if (unrestricted && query.sort() == MediaQuery.Sort.NAME && !query.descending()) {
+            return new MediaSearchResult(store.slice(state, offset, limit), offset, state.size());
+        }
+
+        Segment segment = state.segment();
+        SegmentIndex indexes = segmentIndex(segment);
+        OverlayIndex overlay = overlayIndex(state);
+        Order order = new Order(query.sort(), segment);
+
+        Positions driver;
+        boolean ordered;
+        // The number of matches, if it's known upfront, i.e. every driven entry matches the query, otherwise -1.
+        long total = -1;
+        if (query.text() != null && query.text().length() >= 3) {
+            int[] candidates = indexes.candidates(query.text());
+            driver = new Positions(candidates, 0, candidates.length, query.descending());
+            ordered = query.sort() == MediaQuery.Sort.NAME;
+        } else if (query.hasModifiedRange()) {
+            long upper = query.modifiedTo() == null ? Long.MAX_VALUE : query.modifiedTo();
+            driver = range(indexes.byModified, segment.modified, query.modifiedFrom(), upper, query.descending());
+            ordered = query.sort() == MediaQuery.Sort.MODIFIED;
+        } else if (query.hasSizeRange()) {
+            long upper = query.maxSize() == null || query.maxSize() == Long.MAX_VALUE ? Long.MAX_VALUE : query.maxSize() + 1;
+            driver = range(indexes.bySize, segment.sizes, query.minSize(), upper, query.descending());
+            ordered = query.sort() == MediaQuery.Sort.SIZE;
+        } else {
+            int[] positions = switch (query.sort()) {
+                case NAME -> query.type() == null ? null : indexes.byType[query.type().ordinal()];
+                case MODIFIED -> indexes.byModified;
+                case SIZE -> indexes.bySize;
+            };
+            driver = new Positions(positions, 0, positions == null ? segment.count : positions.length, query.descending());
+            ordered = true;
+            if (unrestricted) total = state.size();
+            else if (query.sort() == MediaQuery.Sort.NAME && query.text() == null) {
+                total = positions.length + overlay.typeDeltas[query.type().ordinal()];
+            }
+        }
+
+        IntPredicate matches = total >= 0
+            ? position -> !overlay.replaced.get(position)
+            : position -> !overlay.replaced.get(position) && matches(segment, position, query);
+        if (!ordered) {
+            driver = sorted(driver, matches, order, query.descending());
+            matches = position -> true;
+        }
+
+        List<Row> rows = overlay.rows.stream()
+                .filter(row -> matches(row, query))
+                .sorted(order)
+                .toList();
+        return walk(segment, driver, matches, query.descending() ? rows.reversed() : rows, order, query.descending(),
+            offset, limit, total);
+    }
+
+    /**
+     * Finds media matching the query, whose names are strictly greater than the given one, in the order of the names.
+     * The order of the query is ignored, all matches are visited by passing the name of the last one returned.
+     * Over all the calls, at most the candidates of the text, or the names of the requested type are visited once.
+     * @param query The query.
+     * @param fileName The name of the last media returned, or {@code null} to start from the beginning.
+     * @param limit The maximum number of media returned.
+     * @return {@link List} of media, sorted by the names.
+     * */
+    public List<Media> queryAfter(MediaQuery query, String fileName, int limit) {
+        Objects.requireNonNull(query);
+        if (limit <= 0) return List.of();
+
+        State state = store.state();
+        Segment segment = state.segment();
+        SegmentIndex indexes = segmentIndex(segment);
+        OverlayIndex overlay = overlayIndex(state);
+
+        int start = fileName == null ? 0 : segment.upperBound(fileName);
+        int[] positions = null;
+        if (query.text() != null && query.text().length() >= 3) positions = indexes.candidates(query.text());
+        else if (query.type() != null) positions = indexes.byType[query.type().ordinal()];
+        Positions driver = positions == null
+            ? new Positions(null, start, segment.count, false)
+            : new Positions(positions, lowerBound(positions, start), positions.length, false);
+
+        List<Row> rows = overlay.rows.stream()
+                .filter(row -> (fileName == null || row.media().fileName().compareTo(fileName) > 0) && matches(row, query))
+                .toList();
+        IntPredicate matches = position -> !overlay.replaced.get(position) && matches(segment, position, query);
+        // The total isn't needed, so it's passed as known, and the walk stops at the end of the page.
+        return walk(segment, driver, matches, rows, new Order(MediaQuery.Sort.NAME, segment), false, 0, limit, 0).media();
+    }
+
+    /**
+     * Walks the driven entries of the segment, and the rows of the overlay together, both sorted in the given order,
+     * and collects the page. If the total is known, the walk stops at the end of the page.
+     * */
+    private MediaSearchResult walk(Segment segment, Positions driver, IntPredicate matches, List<Row> rows,
+                                   Order order, boolean descending, long offset, int limit, long total) {
+        List<Media> page = new ArrayList<>(Math.max(0, Math.min(limit, 256)));
+        long position = 0;
+        int k = next(driver, 0, matches), j = 0;
+        while (k < driver.size() || j < rows.size()) {
+            if (total >= 0 && page.size() >= Math.max(limit, 0)) break;
+
+            boolean fromSegment;
+            if (j == rows.size()) fromSegment = true;
+            else if (k == driver.size()) fromSegment = false;
+            else {
+                int comparison = order.compare(driver.get(k), rows.get(j));
+                fromSegment = descending ? comparison > 0 : comparison < 0;
+            }
+
+            if (position >= offset && page.size() < limit) {
+                page.add(fromSegment ? segment.media(driver.get(k), store.directory()) : rows.get(j).media());
+            }
+            position++;
+            if (fromSegment) k = next(driver, k + 1, matches);
+            else j++;
+        }
+        return new MediaSearchResult(Collections.unmodifiableList(page), offset, total >= 0 ? total : position);
+    }
+
+    // The index of the first matching entry of the driver, starting at k, or the size of the driver.
+    private static int next(Positions driver, int k, IntPredicate matches) {
+        while (k < driver.size() && !matches.test(driver.get(k))) k++;
+        return k;
+    }
+
+    // The matching entries of the driver, sorted in the given order.
+    private static Positions sorted(Positions driver, IntPredicate matches, Order order, boolean descending) {
+        int[] matching = new int[driver.size()];
+        int count = 0;
+        for (int k = 0; k < driver.size(); k++) {
+            int position = driver.get(k);
+            if (matches.test(position)) matching[count++] = position;
+        }
+        sort(matching, count, order);
+        return new Positions(matching, 0, count, descending);
+    }
+
+    private static Positions range(int[] permutation, long[] keys, Long lower, long upper, boolean descending) {
+        long from = lower == null ? Long.MIN_VALUE : lower;
+        if (from >= upper) return new Positions(permutation, 0, 0, descending);
+        return new Positions(permutation, lowerBound(permutation, keys, from), lowerBound(permutation, keys, upper), descending);
+    }
+
+    // The index of the first position of the permutation, whose key isn't less than the given one.
+    private static int lowerBound(int[] permutation, long[] keys, long key) {
+        int low = 0, high = permutation.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[permutation[mid]] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // The index of the first of the ascending positions, which isn't less than the given one.
+    private static int lowerBound(int[] positions, int position) {
+        int i = Arrays.binarySearch(positions, position);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    private static boolean matches(Segment segment, int position, MediaQuery query) {
+        return matches(query, TYPES[segment.types[position]], segment.modified[position], segment.sizes[position])
+            // Trigram candidates are a superset of the matches, so the text is always verified.
+            && (query.text() == null || segment.name(position).toLowerCase(Locale.ROOT).contains(query.text()));
+    }
+
+    private static boolean matches(Row row, MediaQuery query) {
+        return matches(query, row.media().type(), row.modified(), row.size())
+            && (query.text() == null || row.media().fileName().toLowerCase(Locale.ROOT).contains(query.text()));
+    }
+
+    private static boolean matches(MediaQuery query, Media.MediaType type, long modified, long size) {
+        if (query.type() != null && type != query.type()) return false;
+        if (query.modifiedFrom() != null && modified < query.modifiedFrom()) return false;
+        if (query.modifiedTo() != null && modified >= query.modifiedTo()) return false;
+        if (query.minSize() != null && size < query.minSize()) return false;
+        return query.maxSize() == null || size <= query.maxSize();
+    }
+
+    private SegmentIndex segmentIndex(Segment segment) {
+        SegmentIndex indexes = segmentIndex;
+        if (indexes.segment == segment) return indexes;
+        // Built once, the queries of the same segment wait for it.
+        synchronized (this) {
+            indexes = segmentIndex;
+            if (indexes.segment != segment) segmentIndex = indexes = SegmentIndex.of(segment);
+            return indexes;
+        }
+    }
+
+    private OverlayIndex overlayIndex(State state) {
+        OverlayIndex overlay = overlayIndex;
+        if (overlay.state != state) overlayIndex = overlay = OverlayIndex.of(state);
+        return overlay;
+    }
+
+    // Sorts the first count positions in the given order, stable, by a bottom-up merge sort.
+    private static void sort(int[] positions, int count, Order order) {
+        int[] source = positions, target = new int[count];
+        for (int width = 1; width < count; width *= 2) {
+            for (int from = 0; from < count; from += 2 * width) {
+                int middle = Math.min(from + width, count), to = Math.min(from + 2 * width, count);
+                int i = from, j = middle, k = from;
+                while (i < middle && j < to) target[k++] = order.compare(source[j], source[i]) < 0 ? source[j++] : source[i++];
+                while (i < middle) target[k++] = source[i++];
+                while (j < to) target[k++] = source[j++];
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != positions) System.arraycopy(source, 0, positions, 0, count);
+    }
+
+    private static long[] trigramsOf(String text) {
+        if (text.length() < 3) return new long[0];
+
+        long[] keys = new long[text.length() - 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        Arrays.sort(keys);
+        int distinct = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) keys[distinct++] = keys[i];
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * Positions of the segment, from the given array, or the positions themselves for a {@code null} array,
+     * between the given indexes, read in the ascending, or descending order.
+     * */
+    private record Positions(int[] values, int from, int to, boolean descending) {
+
+        int size() {
+            return to - from;
+        }
+
+        int get(int k) {
+            int i = descending ? to - 1 - k : from + k;
+            return values == null ? i : values[i];
+        }
+    }
+
+    /**
+     * The ascending order of a query, between the entries of the segment, and the rows of the overlay.
+     * Ties are broken by the names, which is the order of the positions in the segment.
+     * */
+    private record Order(MediaQuery.Sort sort, Segment segment) implements Comparator<Row> {
+
+        int compare(int a, int b) {
+            int order = switch (sort) {
+                case NAME -> 0;
+                case MODIFIED -> Long.compare(segment.modified[a], segment.modified[b]);
+                case SIZE -> Long.compare(segment.sizes[a], segment.sizes[b]);
+            };
+            return order != 0 ? order : Integer.compare(a, b);
+        }
+
+        int compare(int position, Row row) {
+            int order = switch (sort) {
+                case NAME -> 0;
+                case MODIFIED -> Long.compare(segment.modified[position], row.modified());
+                case SIZE -> Long.compare(segment.sizes[position], row.size());
+            };
+            return order != 0 ? order : segment.compare(position, row.media().fileName());
+        }
+
+        @Override
+        public int compare(Row a, Row b) {
+            int order = switch (sort) {
+                case NAME -> 0;
+                case MODIFIED -> Long.compare(a.modified(), b.modified());
+                case SIZE -> Long.compare(a.size(), b.size());
+            };
+            return order != 0 ? order : a.media().fileName().compareTo(b.media().fileName());
+        }
+    }
+
+    /**
+     * The indexes of a segment, immutable.
+     * */
+    private static final class SegmentIndex {
+
+        static final SegmentIndex EMPTY = of(Segment.EMPTY);
+
+        final Segment segment;
+
+        // Positions sorted by the modification time, and by the size, then by the name.
+        final int[] byModified, bySize;
+
+        // Ascending positions of every type.
+        final int[][] byType;
+
+        private final Map<Long, Posting> trigrams;
+
+        private SegmentIndex(Segment segment, int[] byModified, int[] bySize, int[][] byType, Map<Long, Posting> trigrams) {
+            this.segment = segment;
+            this.byModified = byModified;
+            this.bySize = bySize;
+            this.byType = byType;
+            this.trigrams = trigrams;
+        }
+
+        static SegmentIndex of(Segment segment) {
+            int count = segment.count;
+
+            int[] byModified = new int[count], bySize = new int[count];
+            for (int i = 0; i < count; i++) byModified[i] = bySize[i] = i;
+            sort(byModified, count, new Order(MediaQuery.Sort.MODIFIED, segment));
+            sort(bySize, count, new Order(MediaQuery.Sort.SIZE, segment));
+
+            int[] typeCounts = new int[TYPES.length];
+            for (int i = 0; i < count; i++) typeCounts[segment.types[i]]++;
+            int[][] byType = new int[TYPES.length][];
+            for (int t = 0; t < TYPES.length; t++) byType[t] = new int[typeCounts[t]];
+            Arrays.fill(typeCounts, 0);
+            for (int i = 0; i < count; i++) byType[segment.types[i]][typeCounts[segment.types[i]]++] = i;
+
+            Map<Long, Posting> trigrams = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                for (long trigram : trigramsOf(segment.name(i).toLowerCase(Locale.ROOT))) {
+                    trigrams.computeIfAbsent(trigram, t -> new Posting()).add(i);
+                }
+            }
+            trigrams.values().forEach(Posting::trim);
+            return new SegmentIndex(segment, byModified, bySize, byType, trigrams);
+        }
+
+        /**
+         * @return Ascending positions of the entries, whose names might contain the text, a superset of the matches.
+         * */
+        int[] candidates(String text) {
+            long[] keys = trigramsOf(text);
+            Posting[] postings = new Posting[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                postings[i] = trigrams.get(keys[i]);
+                if (postings[i] == null) return new int[0];
+            }
+            Arrays.sort(postings, Comparator.comparingInt(posting -> posting.count));
+
+            int[] positions = postings[0].decode();
+            int count = positions.length;
+            for (int i = 1; i < postings.length && count > 0; i++) {
+                count = postings[i].intersect(positions, count);
+            }
+            return Arrays.copyOf(positions, count);
+        }
+    }
+
+    /**
+     * Ascending positions, encoded as the gaps between them, 7 bits per byte, the highest bit set on all but the last.
+     * */
+    private static final class Posting {
+
+        private byte[] gaps = new byte[4];
+
+        private int length, count, last = -1;
+
+        void add(int position) {
+            if (length + 5 > gaps.length) gaps = Arrays.copyOf(gaps, gaps.length * 2);
+            int gap = position - last;
+            while (gap >= 0x80) {
+                gaps[length++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            gaps[length++] = (byte) gap;
+            last = position;
+            count++;
+        }
+
+        void trim() {
+            gaps = Arrays.copyOf(gaps, length);
+        }
+
+        int[] decode() {
+            int[] positions = new int[count];
+            int position = -1, p = 0;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = gaps[p++];
+                    gap |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                }
+                positions[i] = position += gap;
+            }
+            return positions;
+        }
+
+        // Retains the positions present in the posting, both are ascending. Returns the new count.
+        int intersect(int[] positions, int count) {
+            int kept = 0, position = -1, p = 0, decoded = 0;
+            for (int i = 0; i < count; i++) {
+                while (decoded < this.count && position < positions[i]) {
+                    int gap = 0;
+                    for (int shift = 0; ; shift += 7) {
+                        byte b = gaps[p++];
+                        gap |= (b & 0x7F) << shift;
+                        if (b >= 0) break;
+                    }
+                    position += gap;
+                    decoded++;
+                }
+                if (position == positions[i]) positions[kept++] = positions[i];
+                else if (position < positions[i]) break;
+            }
+            return kept;
+        }
+    }
+
+    /**
+     * The rows of the overlay of a state, and the positions of the entries of the segment, which they replace, or remove.
+     * */
+    private static final class OverlayIndex {
+
+        static final OverlayIndex EMPTY = new OverlayIndex(null, new BitSet(), List.of(), new int[TYPES.length]);
+
+        final State state;
+
+        final BitSet replaced;
+
+        // Rows adding, or replacing entries, sorted by the names.
+        final List<Row> rows;
+
+        // How many media of every type the rows add to the segment, or remove from it.
+        final int[] typeDeltas;
+
+        private OverlayIndex(State state, BitSet replaced, List<Row> rows, int[] typeDeltas) {
+            this.state = state;
+            this.replaced = replaced;
+            this.rows = rows;
+            this.typeDeltas = typeDeltas;
+        }
+
+        static OverlayIndex of(State state) {
+            Segment segment = state.segment();
+            CompactMediaStore.Overlay overlay = state.overlay();
+
+            BitSet replaced = new BitSet();
+            List<Row> rows = new ArrayList<>();
+            int[] typeDeltas = new int[TYPES.length];
+            for (int j = 0; j < overlay.size(); j++) {
+                Row row = overlay.row(j);
+                int position = overlay.position(j);
+                if (position >= 0) {
+                    replaced.set(position);
+                    typeDeltas[segment.types[position]]--;
+                }
+                if (row != CompactMediaStore.TOMBSTONE) {
+                    rows.add(row);
+                    typeDeltas[row.media().type().ordinal()]++;
+                }
+            }
+            return new OverlayIndex(state, replaced, rows, typeDeltas);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package pl.magzik.catalog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.magzik.model.MediaMetadata;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent store of {@link MediaMetadata}, used to start the {@link MediaCatalog} without scanning the media files.
+ * <p>
+ *     The store consists of a compacted binary snapshot and an append-only log of changes made since,
+ *     both located in {@code cache-dir}. When opened, the snapshot is loaded, the log is replayed,
+ *     and both are compacted into a new snapshot. A torn record at the end of the log is ignored.
+ * </p>
+ * <p>
+ *     The store keeps nothing in memory: the metadata read at startup is handed over to the catalog,
+ *     which keeps it in its {@link CompactMediaStore}, and passes it back to be compacted when it closes the store.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * @see MediaCatalog
+ * */
+@Component
+public class MetadataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataStore.class);
+
+    private static final int MAGIC = 0x4D484D44; // "MHMD"
+
+    // Version 1 snapshots start with the number of records, later ones end at the end of the file.
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte PUT = 1, REMOVE = 2;
+
+    private final Path snapshotFile;
+
+    private final Path logFile;
+
+    private final AtomicLong version = new AtomicLong();
+
+    private DataOutputStream writer;
+
+    private long logged;
+
+    public MetadataStore(@Value("${cache-dir}") String cacheDirectory) {
+        this.snapshotFile = Path.of(cacheDirectory, "metadata.snapshot");
+        this.logFile = Path.of(cacheDirectory, "metadata.log");
+    }
+
+    /**
+     * Loads the stored metadata, compacts it, and opens the log for changes.
+     * @return The stored metadata, unordered.
+     * @throws IOException If the cache directory couldn't be created, or the snapshot couldn't be written.
+     * */
+    public synchronized Collection<MediaMetadata> open() throws IOException {
+        Files.createDirectories(snapshotFile.getParent());
+
+        long start = System.nanoTime();
+        // Needed only until it's handed over, so the log can be replayed.
+        Map<String, MediaMetadata> entries = new HashMap<>();
+        loadSnapshot(entries);
+        boolean replayed = Files.exists(logFile);
+        if (replayed) replayLog(entries);
+        if (replayed || !Files.exists(snapshotFile)) compact(entries.values());
+
+        openLog();
+        log.info("Loaded metadata of {} media files in {} ms.", entries.size(), (System.nanoTime() - start) / 1_000_000);
+        return entries.values();
+    }
+
+    /**
+     * Closes the log. If anything has been logged since the store was opened,
+     * the current metadata is compacted into a new snapshot, otherwise the snapshot is still up to date.
+     * Does nothing, if the store isn't open.
+     * @param metadata All the current metadata, iterated only if needed.
+     * @throws IOException If the snapshot couldn't be written.
+     * */
+    public synchronized void close(Iterable<MediaMetadata> metadata) throws IOException {
+        if (writer == null) return;
+        writer.close();
+        writer = null;
+        if (logged > 0) compact(metadata);
+        else Files.deleteIfExists(logFile);
+    }
+
+    /**
+     * @return Version of the store, it changes whenever any entry is stored or removed.
+     * */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Logs the metadata, replacing the previous entry with the same file name.
+     * @param metadata The metadata to store.
+     * */
+    public synchronized void put(MediaMetadata metadata) {
+        Objects.requireNonNull(metadata);
+        version.incrementAndGet();
+        append(PUT, metadata.fileName(), metadata);
+    }
+
+    /**
+     * Logs the removal of the metadata of the file.
+     * @param fileName The name of the media file.
+     * */
+    public synchronized void remove(String fileName) {
+        Objects.requireNonNull(fileName);
+        version.incrementAndGet();
+        append(REMOVE, fileName, null);
+    }
+
+    private void append(byte operation, String fileName, MediaMetadata metadata) {
+        if (writer == null) return;
+        try {
+            writer.writeByte(operation);
+            if (operation == PUT) write(writer, metadata);
+            else writer.writeUTF(fileName);
+            writer.flush();
+            logged++;
+        } catch (IOException e) {
+            log.warn("Couldn't append to metadata log '{}'.", logFile, e);
+        }
+    }
+
+    private void openLog() throws IOException {
+        writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logFile,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        logged = 0;
+    }
+
+    private void loadSnapshot(Map<String, MediaMetadata> entries) {
+        if (!Files.exists(snapshotFile)) {
+            log.info("Metadata snapshot '{}' not found, media files will be probed again.", snapshotFile);
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            int format = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (format != 1 && format != FORMAT_VERSION) {
+                log.warn("Metadata snapshot '{}' has an unknown format, it will be rebuilt.", snapshotFile);
+                return;
+            }
+
+            if (format == 1) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    MediaMetadata metadata = read(in);
+                    entries.put(metadata.fileName(), metadata);
+                }
+            } else {
+                while (in.read() == PUT) {
+                    MediaMetadata metadata = read(in);
+                    entries.put(metadata.fileName(), metadata);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Metadata snapshot '{}' is corrupted, it will be rebuilt.", snapshotFile, e);
+            entries.clear();
+        }
+    }
+
+    private void replayLog(Map<String, MediaMetadata> entries) {
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (true) {
+                int operation = in.read();
+                if (operation == -1) break;
+
+                if (operation == PUT) {
+                    MediaMetadata metadata = read(in);
+                    entries.put(metadata.fileName(), metadata);
+                } else if (operation == REMOVE) {
+                    entries.remove(in.readUTF());
+                } else {
+                    throw new StreamCorruptedException("Unknown operation: " + operation);
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            log.debug("Ignoring torn record at the end of metadata log '{}'.", logFile);
+        } catch (IOException e) {
+            log.warn("Metadata log '{}' is corrupted after {} records, ignoring the rest.", logFile, records, e);
+        }
+    }
+
+    private void compact(Iterable<MediaMetadata> metadata) throws IOException {
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            // Every record is preceded by a PUT, like in the log, so the number of records isn't needed upfront.
+            for (MediaMetadata entry : metadata) {
+                out.writeByte(PUT);
+                write(out, entry);
+            }
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(logFile);
+    }
+
+    private static void write(DataOutput out, MediaMetadata metadata) throws IOException {
+        out.writeUTF(metadata.fileName());
+        out.writeLong(metadata.size());
+        out.writeLong(metadata.lastModified());
+        out.writeUTF(metadata.sha256() == null ? "" : metadata.sha256());
+        out.writeInt(metadata.width());
+        out.writeInt(metadata.height());
+        out.writeLong(metadata.durationMillis());
+        out.writeUTF(metadata.mimeType());
+    }
+
+    private static MediaMetadata read(DataInput in) throws IOException {
+        String fileName = in.readUTF();
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        String sha256 = in.readUTF();
+        int width = in.readInt();
+        int height = in.readInt();
+        long duration = in.readLong();
+        String mimeType = in.readUTF();
+        return new MediaMetadata(fileName, size, lastModified, sha256.isEmpty() ? null : sha256,
+            width, height, duration, mimeType);
+    }
+}
@@ -0,0 +1,58 @@
+package pl.magzik.configuration;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import pl.magzik.catalog.GameRegistry;
+import pl.magzik.catalog.MediaCatalog;
+import pl.magzik.upload.ChunkedUploads;
+import pl.magzik.upload.DedupStore;
+
+/**
+ * Gauges of the in-memory catalogs and storages.
+ * Timers and counters are registered by the instrumented components themselves.
+ *
+ * @author Maksymilian Strzelczak
+ * */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder catalogMetrics(MediaCatalog mediaCatalog, GameRegistry gameRegistry) {
+        return registry -> {
+            Gauge.builder("myhub.media.catalog.size", mediaCatalog, MediaCatalog::size)
+                    .description("Number of indexed media files")
+                    .register(registry);
+            Gauge.builder("myhub.media.jobs.queued", mediaCatalog, MediaCatalog::pendingProbes)
+                    .description("Number of media files waiting to be probed")
+                    .register(registry);
+            Gauge.builder("myhub.games.registry.size", gameRegistry, r -> r.values().size())
+                    .description("Number of valid games")
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder uploadMetrics(ChunkedUploads chunkedUploads) {
+        return registry -> Gauge.builder("myhub.uploads.sessions", chunkedUploads, ChunkedUploads::size)
+                .description("Number of open resumable upload sessions")
+                .register(registry);
+    }
+
+    @Bean
+    public MeterBinder dedupMetrics(DedupStore dedupStore) {
+        return registry -> {
+            Gauge.builder("myhub.dedup.duplicates", dedupStore, s -> s.stats().duplicates())
+                    .description("Number of files sharing the content with another file")
+                    .register(registry);
+            Gauge.builder("myhub.dedup.saved", dedupStore, s -> s.stats().bytesSaved())
+                    .description("Number of bytes saved by deduplication")
+                    .baseUnit("bytes")
+                    .register(registry);
+            Gauge.builder("myhub.dedup.pending", dedupStore, s -> s.stats().pending())
+                    .description("Number of files waiting to be hashed")
+                    .register(registry);
+        };
+    }
+}
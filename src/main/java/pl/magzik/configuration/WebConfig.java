@@ -1,9 +1,27 @@
 package pl.magzik.configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.CacheControl;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import pl.magzik.web.GameAssetCompressor;
+import pl.magzik.web.GameAssetResolver;
+import pl.magzik.service.GameService;
+import pl.magzik.web.BandwidthShaper;
+import pl.magzik.service.MediaService;
+import pl.magzik.web.GameAssetResource;
+import pl.magzik.web.PageCache;
+import pl.magzik.web.TransferLimiter;
+
+import java.time.Duration;
+import java.util.Map;
 
 /**
  * @author Maksymilian Strzelczak
@@ -14,10 +32,122 @@ public class WebConfig implements WebMvcConfigurer {
     @Value("${game-dir}")
     private String gameDirectory;
 
+    @Value("${game-assets.max-age:7d}")
+    private Duration gameAssetsMaxAge;
+
+    @Value("${game-assets.hot-cache-size:64MB}")
+    private DataSize gameAssetsCacheSize;
+
+    @Value("${game-assets.hot-cache-max-file-size:256KB}")
+    private DataSize gameAssetsCacheMaxFileSize;
+
+    @Value("${transfer-limits.downloads:32}")
+    private int downloadPermits;
+
+    @Value("${transfer-limits.uploads:4}")
+    private int uploadPermits;
+
+    @Value("${transfer-limits.uploads-per-client:0}")
+    private int uploadPermitsPerClient;
+
+    @Value("${transfer-limits.archives:4}")
+    private int archivePermits;
+
+    @Value("${transfer-limits.archives-per-client:1}")
+    private int archivePermitsPerClient;
+
+    @Value("${transfer-limits.queue-timeout:0s}")
+    private Duration transferQueueTimeout;
+
+    @Value("${bandwidth.media.total:0}")
+    private DataSize mediaBandwidth;
+
+    @Value("${bandwidth.media.per-client:0}")
+    private DataSize mediaBandwidthPerClient;
+
+    @Value("${bandwidth.games.total:0}")
+    private DataSize gamesBandwidth;
+
+    @Value("${bandwidth.games.per-client:0}")
+    private DataSize gamesBandwidthPerClient;
+
+    @Value("${page-cache.size:16MB}")
+    private DataSize pageCacheSize;
+
+    private final GameAssetCompressor gameAssetCompressor;
+
+    private final MeterRegistry meterRegistry;
+
+    public WebConfig(GameAssetCompressor gameAssetCompressor, MeterRegistry meterRegistry) {
+        this.gameAssetCompressor = gameAssetCompressor;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Bean
+    public FilterRegistrationBean<PageCache> pageCache(MediaService mediaService, GameService gameService) {
+        // Rendered from the catalogs only, so cached until the catalogs change.
+        PageCache pageCache = new PageCache(Map.of(
+            "/media", mediaService::getMediaVersion,
+            "/games", gameService::getGamesVersion
+        ), pageCacheSize.toBytes(), meterRegistry);
+
+        FilterRegistrationBean<PageCache> registration = new FilterRegistrationBean<>(pageCache);
+        registration.addUrlPatterns("/media", "/games");
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean<BandwidthShaper> mediaBandwidthShaper() {
+        FilterRegistrationBean<BandwidthShaper> registration = new FilterRegistrationBean<>(new BandwidthShaper(
+            "media", mediaBandwidth.toBytes(), mediaBandwidthPerClient.toBytes(), meterRegistry
+        ));
+        registration.addUrlPatterns("/media/file/*", "/media/image/*", "/media/zip");
+        return registration;
+    }
+
+    @Bean
+    public FilterRegistrationBean<BandwidthShaper> gamesBandwidthShaper() {
+        // "/games/*" matches the page of games and the launch redirects too, only assets ("/games/{name}/...") are shaped.
+        BandwidthShaper shaper = new BandwidthShaper(
+            "games", gamesBandwidth.toBytes(), gamesBandwidthPerClient.toBytes(), meterRegistry
+        ) {
+            @Override
+            protected boolean shouldNotFilter(HttpServletRequest request) {
+                String path = request.getRequestURI().substring(request.getContextPath().length());
+                return super.shouldNotFilter(request) || path.indexOf('/', "/games/".length()) < 0;
+            }
+        };
+        FilterRegistrationBean<BandwidthShaper> registration = new FilterRegistrationBean<>(shaper);
+        registration.addUrlPatterns("/games/*");
+        return registration;
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Long transfers get their own limits, so slow clients can't take every request thread.
+        registry.addInterceptor(new TransferLimiter("download", downloadPermits, transferQueueTimeout, meterRegistry))
+            .addPathPatterns("/media/file/**");
+        registry.addInterceptor(new TransferLimiter("upload", uploadPermits, uploadPermitsPerClient, transferQueueTimeout, meterRegistry, "POST", "PUT"))
+            .addPathPatterns("/media/upload", "/api/uploads/**");
+        // Archives may take hours, one client shouldn't take all of them.
+        registry.addInterceptor(new TransferLimiter("archive", archivePermits, archivePermitsPerClient, transferQueueTimeout, meterRegistry))
+            .addPathPatterns("/media/zip");
+    }
+
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         registry.addResourceHandler("/games/**")
-            .addResourceLocations("file:" + gameDirectory);
+            .addResourceLocations("file:" + gameDirectory)
+            .setCacheControl(CacheControl.maxAge(gameAssetsMaxAge).cachePublic())
+            .setEtagGenerator(resource -> resource instanceof GameAssetResource asset ? asset.eTag() : null)
+            // Resolved resources are cached by our resolver, with a bound on the memory used.
+            .resourceChain(false)
+            .addResolver(new GameAssetResolver(
+                gameAssetCompressor,
+                gameAssetsCacheMaxFileSize.toBytes(),
+                gameAssetsCacheSize.toBytes(),
+                meterRegistry
+            ));
 
         registry.addResourceHandler("/static/**")
             .addResourceLocations("classpath:/static/");
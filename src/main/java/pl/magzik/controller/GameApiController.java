@@ -0,0 +1,81 @@
+package pl.magzik.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.util.UriUtils;
+import pl.magzik.model.Game;
+import pl.magzik.service.GameService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * JSON API of the games.
+ * Responses carry a weak ETag derived from the version of the game registry, see {@link MediaApiController}.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ *
+ * @see GameController
+ * @see GameService
+ */
+@RestController
+@RequestMapping("/api/games")
+public class GameApiController {
+
+    private final GameService gameService;
+
+    private final ObjectMapper objectMapper;
+
+    // Versions start over with the application, so tags have to identify the instance as well.
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+
+    @Autowired
+    public GameApiController(GameService gameService, ObjectMapper objectMapper) {
+        this.gameService = gameService;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Handles HTTP GET requests for all games, sorted by the name.
+     *
+     * @param request the request, used to evaluate conditional headers.
+     * @param response the response, the games are written into.
+     * @throws IOException if the response couldn't be written.
+     */
+    @GetMapping
+    public void getAllGames(WebRequest request, HttpServletResponse response) throws IOException {
+        String eTag = "W/\"games-" + instance + "-" + gameService.getGamesVersion() + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        if (request.checkNotModified(eTag)) return;
+
+        List<Game> games = gameService.findAllGames();
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartObject();
+            json.writeNumberField("total", games.size());
+
+            json.writeArrayFieldStart("items");
+            for (Game game : games) {
+                json.writeStartObject();
+                json.writeStringField("name", game.name());
+                json.writeStringField("url", "/games/" + UriUtils.encodePathSegment(game.name(), StandardCharsets.UTF_8));
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+
+            json.writeEndObject();
+        }
+    }
+}
@@ -30,7 +30,7 @@ import java.util.Optional;
 public class GameController {
 
     /* TODO:
-    *   No.1 Transition to RESTful API.
+    *   No.1 Transition to RESTful API. Reads are served by GameApiController already.
     * */
 
     private static final Logger log = LoggerFactory.getLogger(GameController.class);
@@ -0,0 +1,255 @@
+package pl.magzik.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriUtils;
+import pl.magzik.model.IndexingStatus;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+import pl.magzik.model.MediaPage;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.MediaSearchResult;
+import pl.magzik.service.MediaService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * JSON API of the gallery.
+ * <p>
+ *     Responses carry a weak ETag derived from the version of the media catalog,
+ *     so polling clients get {@code 304 Not Modified} without any page being fetched, as long as nothing has changed.
+ *     Pages are serialized straight from the catalog into the response.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.3
+ *
+ * @see MediaController
+ * @see MediaService
+ */
+@RestController
+@RequestMapping("/api/media")
+public class MediaApiController {
+
+    private static final Logger log = LoggerFactory.getLogger(MediaApiController.class);
+
+    private static final int MAX_PAGE_SIZE = 500;
+
+    private final MediaService mediaService;
+
+    private final ObjectMapper objectMapper;
+
+    // Versions start over with the application, so tags have to identify the instance as well.
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+
+    @Autowired
+    public MediaApiController(MediaService mediaService, ObjectMapper objectMapper) {
+        this.mediaService = mediaService;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Handles HTTP GET requests for a page of media.
+     *
+     * <p>The page can be addressed either by its number ({@code page}), or by the cursor ({@code after})
+     * returned as {@code nextCursor} with the previous page. The cursor takes precedence.
+     * Pages out of bounds are empty.</p>
+     *
+     * @param page the number of the page, counted from zero.
+     * @param size the size of the page, at most {@value #MAX_PAGE_SIZE}.
+     * @param after the opaque cursor pointing after the last media of the previous page.
+     * @param request the request, used to evaluate conditional headers.
+     * @param response the response, the page is written into.
+     * @throws ResponseStatusException if the parameters are invalid, returning a 400 Bad Request status.
+     * @throws IOException if the response couldn't be written.
+     */
+    @GetMapping
+    public void getMedia(
+        @RequestParam(name = "page", defaultValue = "0") int page,
+        @RequestParam(name = "size", defaultValue = "20") int size,
+        @RequestParam(name = "after", required = false) String after,
+        WebRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        if (page < 0 || size <= 0 || size > MAX_PAGE_SIZE) {
+            log.warn("Provided request have invalid parameters. Page: {}, Size: {}", page, size);
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                "Page should be positive or zero, size between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+
+        // Read the version first, a change during the fetch invalidates the tag on the next request.
+        String eTag = "W/\"media-" + instance + "-" + mediaService.getMediaVersion() + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        if (request.checkNotModified(eTag)) return;
+
+        MediaPage mediaPage;
+        if (after != null) {
+            try {
+                mediaPage = mediaService.findMediaPage(after, size);
+            } catch (IllegalArgumentException e) {
+                log.warn("Provided cursor '{}' is malformed.", after);
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor.");
+            }
+        } else {
+            mediaPage = mediaService.findMediaPage(page, size);
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartObject();
+            json.writeNumberField("total", mediaService.countAllMedia());
+            json.writeNumberField("offset", mediaPage.offset());
+            json.writeNumberField("size", size);
+            json.writeStringField("nextCursor", mediaPage.nextCursor());
+
+            json.writeArrayFieldStart("items");
+            for (Media media : mediaPage.media()) writeMedia(json, media);
+            json.writeEndArray();
+
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Handles HTTP GET requests for media matching the given criteria, every criterion is optional.
+     *
+     * <p>E.g. videos from 2025 containing 'beach':
+     * {@code /api/media/search?type=video&from=2025-01-01&to=2025-12-31&q=beach}.
+     * Media, whose metadata hasn't been read yet, never match date or size criteria.</p>
+     *
+     * @param type the type of media, {@code image} or {@code video}.
+     * @param from the first day of modification, inclusive.
+     * @param to the last day of modification, inclusive.
+     * @param minSize the minimal size in bytes.
+     * @param maxSize the maximal size in bytes.
+     * @param q the text, which the file name has to contain, ignoring the case.
+     * @param sort the property to sort by, {@code name}, {@code modified} or {@code size}.
+     * @param order the order, {@code asc} or {@code desc}.
+     * @param page the number of the page, counted from zero.
+     * @param size the size of the page, at most {@value #MAX_PAGE_SIZE}.
+     * @param request the request, used to evaluate conditional headers.
+     * @param response the response, the page is written into.
+     * @throws ResponseStatusException if the parameters are invalid, returning a 400 Bad Request status.
+     * @throws IOException if the response couldn't be written.
+     */
+    @GetMapping("/search")
+    public void searchMedia(
+        @RequestParam(name = "type", required = false) String type,
+        @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+        @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+        @RequestParam(name = "minSize", required = false) Long minSize,
+        @RequestParam(name = "maxSize", required = false) Long maxSize,
+        @RequestParam(name = "q", required = false) String q,
+        @RequestParam(name = "sort", defaultValue = "name") String sort,
+        @RequestParam(name = "order", defaultValue = "asc") String order,
+        @RequestParam(name = "page", defaultValue = "0") int page,
+        @RequestParam(name = "size", defaultValue = "20") int size,
+        WebRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        if (page < 0 || size <= 0 || size > MAX_PAGE_SIZE) {
+            log.warn("Provided request have invalid parameters. Page: {}, Size: {}", page, size);
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                "Page should be positive or zero, size between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+
+        MediaQuery query;
+        try {
+            query = MediaQuery.of(type, from, to, minSize, maxSize, q, sort, order);
+        } catch (IllegalArgumentException e) {
+            log.warn("Provided search criteria are invalid: {}", e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid search criteria.");
+        }
+
+        String eTag = "W/\"media-" + instance + "-" + mediaService.getMediaVersion() + "\"";
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        if (request.checkNotModified(eTag)) return;
+
+        MediaSearchResult result = mediaService.searchMedia(query, page, size);
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            json.writeStartObject();
+            json.writeNumberField("total", result.total());
+            json.writeNumberField("offset", result.offset());
+            json.writeNumberField("size", size);
+
+            json.writeArrayFieldStart("items");
+            for (Media media : result.media()) writeMedia(json, media);
+            json.writeEndArray();
+
+            json.writeEndObject();
+        }
+    }
+
+    /**
+     * Handles HTTP GET requests for the progress of indexing the media directory, i.e. the number of media files
+     * indexed so far, the number expected, the rate per second, and the estimated number of seconds left.
+     *
+     * @return the current {@link IndexingStatus}.
+     */
+    @GetMapping("/indexing")
+    public ResponseEntity<IndexingStatus> getIndexingStatus() {
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .body(mediaService.getIndexingStatus());
+    }
+
+    /**
+     * Handles HTTP POST requests scheduling a new scan of the media directory.
+     *
+     * <p>The scan runs in the background on a low priority thread, meanwhile the gallery is served from the index
+     * as it's being updated. A request made while a scan is waiting to start is merged into it.</p>
+     *
+     * @return the current {@link IndexingStatus}, with 202 Accepted status.
+     */
+    @PostMapping("/indexing")
+    public ResponseEntity<IndexingStatus> reindex() {
+        if (mediaService.reindex()) log.info("Media directory re-indexing scheduled.");
+        return ResponseEntity.accepted()
+                .cacheControl(CacheControl.noStore())
+                .body(mediaService.getIndexingStatus());
+    }
+
+    private void writeMedia(JsonGenerator json, Media media) throws IOException {
+        // Names of media in subdirectories contain '/', which is kept.
+        String encodedName = UriUtils.encodePath(media.fileName(), StandardCharsets.UTF_8);
+
+        json.writeStartObject();
+        json.writeStringField("name", media.fileName());
+        json.writeStringField("type", media.type().name().toLowerCase());
+        json.writeStringField("url", "/media/file/" + encodedName);
+        json.writeStringField("thumbnailUrl", "/media/thumbnail/" + encodedName);
+        if (media.type() == Media.MediaType.VIDEO) json.writeStringField("posterUrl", "/media/poster/" + encodedName);
+
+        MediaMetadata metadata = mediaService.findMetadata(media).orElse(null);
+        if (metadata != null) {
+            json.writeStringField("mimeType", metadata.mimeType());
+            json.writeNumberField("size", metadata.size());
+            json.writeNumberField("lastModified", metadata.lastModified());
+            if (metadata.width() != MediaMetadata.UNKNOWN) json.writeNumberField("width", metadata.width());
+            if (metadata.height() != MediaMetadata.UNKNOWN) json.writeNumberField("height", metadata.height());
+            if (metadata.durationMillis() != MediaMetadata.UNKNOWN) json.writeNumberField("durationMillis", metadata.durationMillis());
+        }
+        json.writeEndObject();
+    }
+}
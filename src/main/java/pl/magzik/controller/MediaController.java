@@ -1,30 +1,54 @@
 package pl.magzik.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
+import pl.magzik.media.MediaStreamer;
+import pl.magzik.media.Thumbnail;
+import pl.magzik.media.VariantService;
+import pl.magzik.media.ZipStreamer;
+import pl.magzik.model.DedupStats;
 import pl.magzik.model.Media;
+import pl.magzik.model.MediaPage;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.UploadResult;
 import pl.magzik.service.MediaService;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.StringJoiner;
 
 /**
  * Controller class that shares various endpoints regarding {@link Media} handling.
  *
  * @author Maksymilian Strzelczak
- * @version 1.1
+ * @version 1.6
  *
  * @see Media
  * @see MediaService
@@ -34,22 +58,43 @@ import java.util.List;
 public class MediaController {
 
     /* TODO:
-     *   No.1 Transition to RESTful API.
+     *   No.1 Transition to RESTful API. Reads are served by MediaApiController already.
      * */
 
     private static final Logger log = LoggerFactory.getLogger(MediaController.class);
 
     private final MediaService mediaService;
 
+    private final MediaStreamer mediaStreamer;
+
+    private final ZipStreamer zipStreamer;
+
     @Autowired
-    public MediaController(MediaService mediaService) {
+    public MediaController(MediaService mediaService, MediaStreamer mediaStreamer, ZipStreamer zipStreamer) {
         this.mediaService = mediaService;
+        this.mediaStreamer = mediaStreamer;
+        this.zipStreamer = zipStreamer;
     }
 
+    /**
+     * Handles HTTP GET requests to display a page of the gallery.
+     *
+     * <p>The page can be addressed either by its number ({@code page}), or by the cursor ({@code after})
+     * returned with the previous page. The cursor takes precedence, and it stays valid,
+     * even if media are added or removed in the meantime.</p>
+     *
+     * @param page the number of the page, counted from zero.
+     * @param size the size of the page.
+     * @param after the opaque cursor pointing after the last media of the previous page.
+     * @param model the model to populate with the page.
+     * @return the name of the Thymeleaf template to render.
+     * @throws ResponseStatusException if the parameters are invalid, or the page doesn't exist.
+     */
     @GetMapping
     public String getMedia(
         @RequestParam(name = "page", defaultValue = "0") int page,
         @RequestParam(name = "size", defaultValue = "10") int size,
+        @RequestParam(name = "after", required = false) String after,
         Model model
     ) {
         if (page < 0 || size <= 0) {
@@ -60,54 +105,265 @@ public class MediaController {
         long totalCount = mediaService.countAllMedia();
         int totalPages = (int) Math.ceil((double) totalCount / size);
 
-        if (totalCount > 0 && page >= totalPages) {
-            log.warn("Provided page '{}' is greater than total page count '{}'", page, totalPages);
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Page not found.");
+        MediaPage mediaPage;
+        if (after != null) {
+            try {
+                mediaPage = mediaService.findMediaPage(after, size);
+            } catch (IllegalArgumentException e) {
+                log.warn("Provided cursor '{}' is malformed.", after);
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor.");
+            }
+            page = (int) (mediaPage.offset() / size);
+        } else {
+            if (totalCount > 0 && page >= totalPages) {
+                log.warn("Provided page '{}' is greater than total page count '{}'", page, totalPages);
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Page not found.");
+            }
+            mediaPage = mediaService.findMediaPage(page, size);
         }
 
-        model.addAttribute("media", mediaService.findAllMedia(page, size));
+        model.addAttribute("media", mediaPage.media());
+        model.addAttribute("srcsets", srcsets(mediaPage.media()));
+        model.addAttribute("nextCursor", mediaPage.nextCursor());
         model.addAttribute("currentPage", page);
         model.addAttribute("totalPages", totalPages);
         model.addAttribute("totalCount", totalCount);
+        model.addAttribute("indexing", mediaService.getIndexingStatus());
 
         return "media";
     }
 
-    @GetMapping("/file/{filename}")
-    public ResponseEntity<Resource> getMediaFile(@PathVariable(name = "filename") String filename) {
+    /**
+     * Handles HTTP GET requests for a media file.
+     *
+     * <p>Supports byte ranges (e.g. seeking in videos) and conditional requests.
+     * See {@link MediaStreamer} for details.</p>
+     *
+     * @param filename the name of the media file, may contain '/' if the file is in a subdirectory.
+     * @param request the request.
+     * @param response the response, the file is written into.
+     * @throws ResponseStatusException if the file is not found, returning a 404 Not Found status,
+     *                                 or if it couldn't be read, returning a 500 Internal Server Error status.
+     */
+    @GetMapping("/file/{*filename}")
+    public void getMediaFile(@PathVariable(name = "filename") String filename,
+                             HttpServletRequest request, HttpServletResponse response) {
+        String name = stripLeadingSlash(filename);
+        Media media = mediaService.findMediaByName(name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Media file '" + name + "' not found."));
+
         try {
-            Media media = mediaService.findMediaByName(filename)
-                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Media file '" + filename + "' not found."));
+            mediaStreamer.stream(media, request, response);
+        } catch (NoSuchFileException e) {
+            log.warn("File not found: {}", media.path());
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found: " + name);
+        } catch (IOException e) {
+            log.error("Error retrieving file: {}", name, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error during media aggregation. Error: " + e.getMessage(), e);
+        }
+    }
 
-            File file = new File(media.path());
-            if (!file.exists()) {
-                log.warn("File not found: {}", file);
-                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found: " + filename);
-            }
+    /**
+     * Handles HTTP GET requests for a thumbnail of an image.
+     *
+     * <p>Thumbnails are served with a strong ETag, so revalidation ends with {@code 304 Not Modified}.
+     * If the thumbnail can't be rendered (e.g. the format isn't supported by {@code javax.imageio}),
+     * the client is redirected to the original file.</p>
+     *
+     * @param filename the name of the image, may contain '/' if the image is in a subdirectory.
+     * @param request the request, used to evaluate conditional headers.
+     * @return the thumbnail, or {@code null} if the client's copy is still valid.
+     * @throws ResponseStatusException if the media doesn't exist, returning a 404 Not Found status.
+     */
+    @GetMapping("/thumbnail/{*filename}")
+    public ResponseEntity<Resource> getThumbnail(@PathVariable(name = "filename") String filename, WebRequest request) {
+        String name = stripLeadingSlash(filename);
+        Media media = mediaService.findMediaByName(name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Media file '" + name + "' not found."));
 
-            Resource resource = new FileSystemResource(file);
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_TYPE, media.getMimeType())
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + media.fileName() + "\"")
-                    .body(resource);
-        } catch (Exception e) {
-            log.error("Error retrieving file: {}", filename, e);
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error during media aggregation. Error: " + e.getMessage(), e);
+        Optional<Thumbnail> thumbnail = mediaService.findThumbnail(media);
+        if (thumbnail.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.FOUND)
+                    .location(UriComponentsBuilder.fromPath("/media/file/").path(name).build().encode().toUri())
+                    .build();
         }
+
+        String eTag = "\"" + thumbnail.get().key() + "\"";
+        if (request.checkNotModified(eTag)) return null;
+
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .cacheControl(CacheControl.maxAge(Duration.ofDays(1)).cachePublic())
+                .header(HttpHeaders.CONTENT_TYPE, Thumbnail.MIME_TYPE)
+                .body(new FileSystemResource(thumbnail.get().path()));
     }
 
-    @PostMapping("/upload")
-    public String uploadFiles(@RequestParam(name = "files") List<MultipartFile> files, Model model) {
-        if (files == null || files.isEmpty()) {
-            model.addAttribute("message", "No files provided for upload.");
-            return "upload";
+    /**
+     * Handles HTTP GET requests for an image scaled down to the client's screen, used by the {@code srcset} of the gallery.
+     *
+     * <p>The smallest variant at least {@code w} pixels wide is served, as long as the client accepts JPEG
+     * at least as much as the format of the original. Variants are built in the background (see {@link VariantService}),
+     * until then, or if the variant isn't worth it, the client is redirected to the original file.</p>
+     *
+     * @param filename the name of the image, may contain '/' if the image is in a subdirectory.
+     * @param width the width the image is displayed at, in device pixels.
+     * @param accept the formats accepted by the client.
+     * @param request the request, used to evaluate conditional headers.
+     * @return the variant, or {@code null} if the client's copy is still valid.
+     * @throws ResponseStatusException if the media doesn't exist (404 Not Found), or the width isn't positive (400 Bad Request).
+     */
+    @GetMapping("/image/{*filename}")
+    public ResponseEntity<Resource> getImage(@PathVariable(name = "filename") String filename,
+                                             @RequestParam(name = "w") int width,
+                                             @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept,
+                                             WebRequest request) {
+        if (width <= 0) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Width should be positive.");
+
+        String name = stripLeadingSlash(filename);
+        Media media = mediaService.findMediaByName(name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Media file '" + name + "' not found."));
+
+        Optional<Thumbnail> variant = acceptsVariant(accept, media) ? mediaService.findVariant(media, width) : Optional.empty();
+        if (variant.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.FOUND)
+                    .varyBy(HttpHeaders.ACCEPT)
+                    .location(UriComponentsBuilder.fromPath("/media/file/").path(name).build().encode().toUri())
+                    .build();
         }
 
+        String eTag = "\"" + variant.get().key() + "\"";
+        if (request.checkNotModified(eTag)) return null;
+
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .varyBy(HttpHeaders.ACCEPT)
+                .cacheControl(CacheControl.maxAge(Duration.ofDays(1)).cachePublic())
+                .header(HttpHeaders.CONTENT_TYPE, Thumbnail.MIME_TYPE)
+                .body(new FileSystemResource(variant.get().path()));
+    }
+
+    /**
+     * Handles HTTP GET requests for a poster of a video, shown by the gallery before the video is played.
+     *
+     * <p>Posters are served with a strong ETag, like thumbnails.</p>
+     *
+     * @param filename the name of the video, may contain '/' if the video is in a subdirectory.
+     * @param request the request, used to evaluate conditional headers.
+     * @return the poster, or {@code null} if the client's copy is still valid.
+     * @throws ResponseStatusException if the media doesn't exist, isn't a video, or the poster couldn't be rendered,
+     *         returning a 404 Not Found status.
+     */
+    @GetMapping("/poster/{*filename}")
+    public ResponseEntity<Resource> getPoster(@PathVariable(name = "filename") String filename, WebRequest request) {
+        String name = stripLeadingSlash(filename);
+        Media media = mediaService.findMediaByName(name)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Media file '" + name + "' not found."));
+
+        Thumbnail poster = mediaService.findPoster(media)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No poster for '" + name + "'."));
+
+        String eTag = "\"" + poster.key() + "\"";
+        if (request.checkNotModified(eTag)) return null;
+
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .cacheControl(CacheControl.maxAge(Duration.ofDays(1)).cachePublic())
+                .header(HttpHeaders.CONTENT_TYPE, Thumbnail.MIME_TYPE)
+                .body(new FileSystemResource(poster.path()));
+    }
+
+    /**
+     * Handles HTTP GET and POST requests for a ZIP archive of many media files.
+     *
+     * <p>The archive holds either the selected files ({@code files}), or all media matching the criteria,
+     * the same as of {@code /api/media/search}. Without any of them, the whole gallery is archived.
+     * Files selected more than once are archived once. Matching media are found in batches, as they're archived,
+     * in the order of their names. The archive is streamed as it's written, see {@link ZipStreamer}.</p>
+     *
+     * @param files the names of the selected media files.
+     * @param type the type of media, {@code image} or {@code video}.
+     * @param from the first day of modification, inclusive.
+     * @param to the last day of modification, inclusive.
+     * @param minSize the minimal size in bytes.
+     * @param maxSize the maximal size in bytes.
+     * @param q the text, which the file name has to contain, ignoring the case.
+     * @param response the response, the archive is written into.
+     * @throws ResponseStatusException if a selected file doesn't exist (404 Not Found),
+     *                                 or the criteria are invalid (400 Bad Request).
+     * @throws IOException if a file couldn't be read, or the client disconnected, the archive is incomplete then.
+     */
+    @RequestMapping(path = "/zip", method = {RequestMethod.GET, RequestMethod.POST})
+    public void getArchive(
+        @RequestParam(name = "files", required = false) List<String> files,
+        @RequestParam(name = "type", required = false) String type,
+        @RequestParam(name = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+        @RequestParam(name = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+        @RequestParam(name = "minSize", required = false) Long minSize,
+        @RequestParam(name = "maxSize", required = false) Long maxSize,
+        @RequestParam(name = "q", required = false) String q,
+        HttpServletResponse response
+    ) throws IOException {
+        Iterable<Media> media;
+        if (files != null && !files.isEmpty()) {
+            // Entries of an archive must have distinct names.
+            List<Media> selected = new ArrayList<>(files.size());
+            for (String name : new LinkedHashSet<>(files)) {
+                selected.add(mediaService.findMediaByName(name)
+                        .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Media file '" + name + "' not found.")));
+            }
+            media = selected;
+        } else {
+            MediaQuery query;
+            try {
+                query = MediaQuery.of(type, from, to, minSize, maxSize, q, "name", "asc");
+            } catch (IllegalArgumentException e) {
+                log.warn("Provided archive criteria are invalid: {}", e.getMessage());
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid search criteria.");
+            }
+            media = mediaService.searchAllMedia(query);
+        }
+
+        response.setContentType("application/zip");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("myhub-media.zip").build().toString());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+
         try {
-            mediaService.saveAll(files);
-            log.info("Successfully uploaded {} files.", files.size());
-            model.addAttribute("message", "File uploaded successfully");
+            int archived = zipStreamer.stream(media, response.getOutputStream());
+            log.info("Streamed ZIP archive of {} media files.", archived);
         } catch (IOException e) {
+            // The archive is cut short, the client notices the incomplete response.
+            log.debug("ZIP archive aborted: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Handles HTTP POST requests uploading media files from the upload page.
+     *
+     * <p>The {@code multipart/form-data} body is stored as it's received, see {@link pl.magzik.upload.UploadPipeline},
+     * so no request parameter may be read before, as it would make the container parse the whole body.</p>
+     *
+     * @param request the request, with the files in its body.
+     * @param model the model of the upload page, with the results of all files.
+     * @return the upload page.
+     */
+    @PostMapping("/upload")
+    public String uploadFiles(HttpServletRequest request, Model model) {
+        try {
+            List<UploadResult> results = mediaService.saveAll(request.getInputStream(), request.getContentType());
+            if (results.isEmpty()) {
+                model.addAttribute("message", "No files provided for upload.");
+                return "upload";
+            }
+
+            long succeeded = results.stream().filter(UploadResult::isSuccess).count();
+
+            log.info("Successfully uploaded {} of {} files.", succeeded, results.size());
+            model.addAttribute("results", results);
+            model.addAttribute("message", succeeded == results.size()
+                ? "File uploaded successfully"
+                : String.format("Uploaded %d of %d files.", succeeded, results.size()));
+        } catch (IOException | IllegalArgumentException e) {
             log.warn("File upload failed: {}", e.getMessage(), e);
             model.addAttribute("message" ,"File upload failed: " + e.getMessage());
         }
@@ -115,6 +371,70 @@ public class MediaController {
         return "upload";
     }
 
+    /**
+     * Handles HTTP GET requests for the statistics of the deduplicating storage.
+     *
+     * @return the current {@link DedupStats}, serialized as JSON.
+     */
+    @GetMapping("/stats/dedup")
+    @ResponseBody
+    public DedupStats getDedupStats() {
+        return mediaService.getDedupStats();
+    }
+
+    // Catch-all path variables start with the separator.
+    private static String stripLeadingSlash(String filename) {
+        return filename.startsWith("/") ? filename.substring(1) : filename;
+    }
+
+    // Candidates of the responsive images, keyed by the file name, the browser picks the one fitting its screen.
+    private Map<String, String> srcsets(List<Media> media) {
+        int[] widths = mediaService.getVariantWidths();
+        Map<String, String> srcsets = new HashMap<>();
+        if (widths.length == 0) return srcsets;
+
+        for (Media m : media) {
+            if (m.type() != Media.MediaType.IMAGE) continue;
+
+            StringJoiner srcset = new StringJoiner(", ");
+            for (int width : widths) {
+                // Commas separate the candidates, so they can't stay in the URL.
+                String url = UriComponentsBuilder.fromPath("/media/image/").path(m.fileName()).queryParam("w", width)
+                        .build().encode().toUriString().replace(",", "%2C");
+                srcset.add(url + " " + width + "w");
+            }
+            srcsets.put(m.fileName(), srcset.toString());
+        }
+        return srcsets;
+    }
+
+    private static boolean acceptsVariant(String accept, Media media) {
+        if (accept == null || accept.isBlank()) return true;
+
+        try {
+            List<MediaType> accepted = MediaType.parseMediaTypes(accept);
+            double variant = quality(accepted, MediaType.IMAGE_JPEG);
+            double original = media.getMimeType() == null ? 0 : quality(accepted, MediaType.parseMediaType(media.getMimeType()));
+            return variant > 0 && variant >= original;
+        } catch (InvalidMediaTypeException e) {
+            return true;
+        }
+    }
+
+    // Quality of the most specific range including the type, 0 if none does.
+    // MediaType#isMoreSpecific prefers higher quality over specificity, so it can't be used here.
+    private static double quality(List<MediaType> accepted, MediaType type) {
+        MediaType match = null;
+        for (MediaType range : accepted) {
+            if (range.includes(type) && (match == null || specificity(range) > specificity(match))) match = range;
+        }
+        return match == null ? 0 : match.getQualityValue();
+    }
+
+    private static int specificity(MediaType range) {
+        return range.isWildcardType() ? 0 : range.isWildcardSubtype() ? 1 : 2;
+    }
+
     /**
      * Helper endpoint, for displaying status messages for upload requests.
      * */
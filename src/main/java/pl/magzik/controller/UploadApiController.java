@@ -0,0 +1,195 @@
+package pl.magzik.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.util.UriComponentsBuilder;
+import pl.magzik.model.UploadResult;
+import pl.magzik.model.UploadStatus;
+import pl.magzik.service.MediaService;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.NoSuchElementException;
+
+/**
+ * JSON API of resumable uploads, for files too large to be sent in a single request.
+ *
+ * <p>The client opens a session with the name and size of the file, then sends the chunks
+ * ({@code chunkSize} bytes each, the last one may be shorter), each with its SHA-256 checksum
+ * in the {@code Upload-Checksum: sha256 <base64>} header, as in the tus protocol,
+ * and {@code application/octet-stream} content type.
+ * After a failure, the status of the session tells which chunks are stored, so only the rest is sent again.
+ * Finally, the client commits the session, and the file appears in the gallery.</p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ *
+ * @see MediaController#uploadFiles
+ */
+@RestController
+@RequestMapping("/api/uploads")
+public class UploadApiController {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadApiController.class);
+
+    private static final String CHECKSUM_HEADER = "Upload-Checksum", OFFSET_HEADER = "Upload-Offset";
+
+    private final MediaService mediaService;
+
+    @Autowired
+    public UploadApiController(MediaService mediaService) {
+        this.mediaService = mediaService;
+    }
+
+    /**
+     * Handles HTTP POST requests opening a new upload session.
+     *
+     * @param name the name of the file.
+     * @param size the size of the file in bytes.
+     * @return the status of the new session, with its location.
+     * @throws ResponseStatusException if the name is invalid (400 Bad Request), the file is too large (413 Payload Too Large),
+     *         or there's not enough space for it (507 Insufficient Storage).
+     */
+    @PostMapping
+    public ResponseEntity<UploadStatus> createUpload(@RequestParam(name = "name") String name,
+                                                     @RequestParam(name = "size") long size) {
+        if (size > mediaService.getMaxUploadSize()) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                "Files up to " + mediaService.getMaxUploadSize() + " bytes are accepted.");
+        }
+
+        try {
+            UploadStatus status = mediaService.createUpload(name, size);
+            return ResponseEntity.created(UriComponentsBuilder.fromPath("/api/uploads/{id}").build(status.id()))
+                    .header(OFFSET_HEADER, Long.toString(status.offset()))
+                    .body(status);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IOException e) {
+            log.warn("Couldn't open upload of '{}': {}", name, e.getMessage());
+            throw new ResponseStatusException(HttpStatus.INSUFFICIENT_STORAGE, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Handles HTTP GET requests for the status of an upload session.
+     *
+     * @param id the identifier of the session.
+     * @return the status of the session, {@code offset} is also sent in the {@code Upload-Offset} header.
+     * @throws ResponseStatusException if the session doesn't exist, or has expired, returning a 404 Not Found status.
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<UploadStatus> getUpload(@PathVariable(name = "id") String id) {
+        UploadStatus status = mediaService.findUpload(id)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload '" + id + "' not found."));
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header(OFFSET_HEADER, Long.toString(status.offset()))
+                .body(status);
+    }
+
+    /**
+     * Handles HTTP PUT requests storing a chunk of the file. The body of the request is the chunk itself.
+     * A chunk, which is stored already, isn't written again, and its body is ignored.
+     *
+     * @param id the identifier of the session.
+     * @param index the index of the chunk, counted from zero.
+     * @param checksum the SHA-256 checksum of the chunk, as {@code sha256 <base64>}.
+     * @param request the request, the chunk is read from.
+     * @return the status of the session.
+     * @throws ResponseStatusException if the session doesn't exist (404 Not Found), is being committed,
+     *         or the chunk is being written by another request (409 Conflict), or the chunk is invalid, incomplete, or doesn't match the checksum (400 Bad Request).
+     */
+    @PutMapping(path = "/{id}/chunks/{index}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<UploadStatus> putChunk(@PathVariable(name = "id") String id,
+                                                 @PathVariable(name = "index") int index,
+                                                 @RequestHeader(name = CHECKSUM_HEADER) String checksum,
+                                                 HttpServletRequest request) {
+        byte[] sha256 = parseChecksum(checksum);
+        try {
+            UploadStatus status = mediaService.writeUploadChunk(id, index, sha256, request.getInputStream());
+            return ResponseEntity.ok()
+                    .header(OFFSET_HEADER, Long.toString(status.offset()))
+                    .body(status);
+        } catch (NoSuchElementException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IllegalArgumentException | EOFException e) {
+            log.debug("Rejected chunk {} of upload '{}': {}", index, id, e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IOException e) {
+            log.warn("Couldn't store chunk {} of upload '{}': {}", index, id, e.getMessage());
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Couldn't store the chunk.", e);
+        }
+    }
+
+    /**
+     * Handles HTTP POST requests committing the complete file into the gallery.
+     *
+     * @param id the identifier of the session.
+     * @param checksum the optional SHA-256 checksum of the whole file, as {@code sha256 <base64>}.
+     * @return the result of the upload, with 422 Unprocessable Entity status if the file doesn't match the checksum.
+     * @throws ResponseStatusException if the session doesn't exist (404 Not Found),
+     *         or chunks are missing, or still being written (409 Conflict).
+     */
+    @PostMapping("/{id}/commit")
+    public ResponseEntity<UploadResult> commitUpload(@PathVariable(name = "id") String id,
+                                                     @RequestHeader(name = CHECKSUM_HEADER, required = false) String checksum) {
+        byte[] sha256 = checksum == null ? null : parseChecksum(checksum);
+        try {
+            UploadResult result = mediaService.commitUpload(id, sha256);
+            if (!result.isSuccess()) return ResponseEntity.unprocessableEntity().body(result);
+
+            log.info("Uploaded '{}' in chunks, {} bytes.", result.originalName(), result.size());
+            return ResponseEntity.ok(result);
+        } catch (NoSuchElementException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IOException e) {
+            log.error("Couldn't commit upload '{}'.", id, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Couldn't commit the upload.", e);
+        }
+    }
+
+    /**
+     * Handles HTTP DELETE requests aborting an upload session.
+     *
+     * @param id the identifier of the session.
+     * @throws ResponseStatusException if the session doesn't exist (404 Not Found), or is busy (409 Conflict).
+     */
+    @DeleteMapping("/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void abortUpload(@PathVariable(name = "id") String id) {
+        if (mediaService.abortUpload(id)) return;
+
+        if (mediaService.findUpload(id).isPresent()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload '" + id + "' is busy.");
+        }
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload '" + id + "' not found.");
+    }
+
+    private static byte[] parseChecksum(String checksum) {
+        String[] parts = checksum.trim().split("\\s+");
+        if (parts.length != 2 || !parts[0].equalsIgnoreCase("sha256")) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Expected '" + CHECKSUM_HEADER + ": sha256 <base64>'.");
+        }
+        try {
+            byte[] sha256 = Base64.getDecoder().decode(parts[1]);
+            if (sha256.length != 32) throw new IllegalArgumentException("Invalid length.");
+            return sha256;
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid SHA-256 checksum.");
+        }
+    }
+}
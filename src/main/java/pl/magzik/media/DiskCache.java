@@ -0,0 +1,169 @@
+package pl.magzik.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed directory of derived files (e.g. thumbnails), bounded by the total size in bytes.
+ * <p>
+ *     Every entry is stored as {@code <key>.<extension>}. When the budget is exceeded,
+ *     the least recently used entries are deleted. Usage order is kept in memory only,
+ *     after a restart it's approximated by the last modification time of the files.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+public class DiskCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskCache.class);
+
+    private final Path directory;
+
+    private final String extension;
+
+    private final long maxBytes;
+
+    // Access ordered, so the eldest entry is always the least recently used one.
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    /**
+     * Creates the cache, and loads entries already present in the directory.
+     *
+     * @param directory The directory of the cache, created if missing.
+     * @param extension The extension of the cached files, without the leading dot.
+     * @param maxBytes The maximum total size of the cached files.
+     * @throws IOException If the directory couldn't be created or read.
+     * */
+    public DiskCache(Path directory, String extension, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(Objects.requireNonNull(directory));
+        this.extension = "." + Objects.requireNonNull(extension);
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /**
+     * Finds the cached file, and marks it as recently used.
+     * @param key The key of the entry.
+     * @return An {@link Optional} of the cached file, or {@link Optional#empty()} if it isn't cached.
+     * */
+    public synchronized Optional<Path> get(String key) {
+        if (entries.get(key) == null) return Optional.empty();
+
+        Path path = resolve(key);
+        if (Files.exists(path)) return Optional.of(path);
+
+        // Removed behind our back.
+        totalBytes -= entries.remove(key);
+        return Optional.empty();
+    }
+
+    /**
+     * Moves the given file into the cache, evicting the least recently used entries if needed.
+     * The file should be located on the same file system as the cache, so the move is atomic.
+     *
+     * @param key The key of the entry.
+     * @param file The file to store.
+     * @return The path of the cached file.
+     * @throws IOException If the file couldn't be moved.
+     * */
+    public Path put(String key, Path file) throws IOException {
+        Path target = resolve(key);
+        long size = Files.size(file);
+        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            Long previous = entries.put(key, size);
+            totalBytes += size - (previous == null ? 0 : previous);
+            evict();
+        }
+        return target;
+    }
+
+    /**
+     * Creates a temporary file inside the cache directory, to be later passed into {@link #put(String, Path)}.
+     * @return The path of the temporary file.
+     * @throws IOException If the file couldn't be created.
+     * */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(directory, ".", ".tmp");
+    }
+
+    /**
+     * @return Total size of the cached files in bytes.
+     * */
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return Number of cached files.
+     * */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+
+            try {
+                Files.deleteIfExists(resolve(eldest.getKey()));
+            } catch (IOException e) {
+                log.warn("Couldn't evict cache entry '{}'.", eldest.getKey(), e);
+            }
+        }
+    }
+
+    private Path resolve(String key) {
+        return directory.resolve(key + extension);
+    }
+
+    private synchronized void load() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(this::toCachedFile)
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingLong(CachedFile::lastModified))
+                .forEach(f -> {
+                    entries.put(f.key(), f.size());
+                    totalBytes += f.size();
+                });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        evict();
+
+        log.info("Loaded {} entries ({} bytes) from cache '{}'.", entries.size(), totalBytes, directory);
+    }
+
+    private CachedFile toCachedFile(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            if (name.startsWith(".")) { // Leftover of an interrupted write.
+                Files.deleteIfExists(path);
+                return null;
+            }
+            if (!name.endsWith(extension)) return null;
+
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String key = name.substring(0, name.length() - extension.length());
+            return new CachedFile(key, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record CachedFile(String key, long size, long lastModified) {}
+}
@@ -0,0 +1,112 @@
+package pl.magzik.media;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Helpers shared by the services rendering derived images, i.e. thumbnails, posters and variants.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * */
+final class Images {
+
+    private Images() {}
+
+    /**
+     * Derives the cache key from the path, size and modification time of the original file,
+     * as well as the size of the derived image, so a changed original never hits a stale entry.
+     * @param original The original file.
+     * @param size The size of the derived image.
+     * @return The hex encoded key.
+     * @throws IOException If attributes of the file couldn't be read.
+     * */
+    static String key(Path original, int size) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(original, BasicFileAttributes.class);
+        String identity = String.join("|",
+            original.toAbsolutePath().toString(),
+            Long.toString(attributes.size()),
+            Long.toString(attributes.lastModifiedTime().toMillis()),
+            Integer.toString(size)
+        );
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has to support SHA-256.
+        }
+    }
+
+    /**
+     * Scales the image down, so its longer side doesn't exceed the given size.
+     * @param source The image to scale.
+     * @param size The maximal length of the longer side.
+     * @return The scaled image, without the alpha channel.
+     * */
+    static BufferedImage scale(BufferedImage source, int size) {
+        return scale(source, Math.min(1.0, (double) size / Math.max(source.getWidth(), source.getHeight())));
+    }
+
+    /**
+     * Scales the image down, so its width doesn't exceed the given one.
+     * @param source The image to scale.
+     * @param width The maximal width.
+     * @return The scaled image, without the alpha channel.
+     * */
+    static BufferedImage scaleToWidth(BufferedImage source, int width) {
+        return scale(source, Math.min(1.0, (double) width / source.getWidth()));
+    }
+
+    private static BufferedImage scale(BufferedImage source, double scale) {
+        int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        // JPEG has no alpha channel, so transparent areas are painted white.
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Writes the image as a JPEG file.
+     * @param image The image to write.
+     * @param target The file to write into.
+     * @throws IOException If the file couldn't be written.
+     * */
+    static void writeJpeg(BufferedImage image, Path target) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(target.toFile())) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.8f);
+
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
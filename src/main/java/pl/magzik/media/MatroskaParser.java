@@ -0,0 +1,166 @@
+package pl.magzik.media;
+
+import pl.magzik.model.MediaMetadata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads {@link VideoInfo} from Matroska files (WebM, MKV).
+ * <p>
+ *     Only the element headers are read, clusters holding the media data are skipped by their size.
+ *     Clusters of unknown size (e.g. written by live encoders) can't be skipped, so reading stops at the first of them.
+ *     The duration comes from {@code Segment/Info}, the dimensions from the first video track,
+ *     and the cover from the first image in {@code Segment/Attachments}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+final class MatroskaParser {
+
+    private static final int SEGMENT = 0x18538067, INFO = 0x1549A966, TIMECODE_SCALE = 0x2AD7B1, DURATION = 0x4489,
+        TRACKS = 0x1654AE6B, TRACK_ENTRY = 0xAE, VIDEO = 0xE0, PIXEL_WIDTH = 0xB0, PIXEL_HEIGHT = 0xBA,
+        ATTACHMENTS = 0x1941A469, ATTACHED_FILE = 0x61A7, FILE_MIME_TYPE = 0x4660, FILE_DATA = 0x465C,
+        CLUSTER = 0x1F43B675;
+
+    private static final int MAX_DEPTH = 6;
+
+    // Guards against corrupted files, the headers of valid files have a few hundred elements at most.
+    private static final int MAX_ELEMENTS = 100_000;
+
+    private final FileChannel channel;
+
+    private int elements;
+
+    private boolean stopped;
+
+    private long timecodeScale = 1_000_000; // Nanoseconds per tick, the default of the format.
+
+    private double duration = MediaMetadata.UNKNOWN;
+
+    private int width = MediaMetadata.UNKNOWN, height = MediaMetadata.UNKNOWN;
+
+    private long coverOffset = MediaMetadata.UNKNOWN;
+
+    private int coverLength = MediaMetadata.UNKNOWN;
+
+    // Properties of the attached file being read.
+    private String attachmentMimeType;
+
+    private long attachmentOffset, attachmentLength;
+
+    private MatroskaParser(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param channel The channel of the file, starting with an EBML header.
+     * @return The {@link VideoInfo} read.
+     * @throws IOException If the file couldn't be read.
+     * */
+    static VideoInfo parse(FileChannel channel) throws IOException {
+        MatroskaParser parser = new MatroskaParser(channel);
+        parser.walk(0, channel.size(), 0);
+
+        long durationMillis = parser.duration > 0 && parser.timecodeScale > 0
+            ? (long) (parser.duration * parser.timecodeScale / 1_000_000)
+            : MediaMetadata.UNKNOWN;
+        return new VideoInfo(durationMillis, parser.width, parser.height, parser.coverOffset, parser.coverLength);
+    }
+
+    private void walk(long start, long end, int depth) throws IOException {
+        long position = start;
+        while (!stopped && position < end && elements++ < MAX_ELEMENTS) {
+            ByteBuffer header = read(position, (int) Math.min(12, end - position));
+
+            int idLength = vintLength(header.get(0));
+            if (idLength > 4 || idLength >= header.limit()) return;
+            int id = (int) readUnsigned(header, 0, idLength);
+
+            int sizeLength = vintLength(header.get(idLength));
+            if (sizeLength > 8 || idLength + sizeLength > header.limit()) return;
+            long size = readUnsigned(header, idLength, sizeLength) & ~(1L << (7 * sizeLength)); // Without the length marker.
+            boolean unknownSize = size == (1L << (7 * sizeLength)) - 1;
+
+            long data = position + idLength + sizeLength;
+            long dataEnd = unknownSize ? end : data + size;
+            if (dataEnd > end) dataEnd = end; // Truncated file, read what's there.
+
+            switch (id) {
+                case SEGMENT, INFO, TRACKS, TRACK_ENTRY, VIDEO, ATTACHMENTS -> {
+                    if (depth < MAX_DEPTH) walk(data, dataEnd, depth + 1);
+                }
+                case ATTACHED_FILE -> attachment(data, dataEnd, depth);
+                case TIMECODE_SCALE -> timecodeScale = readUnsigned(data, size);
+                case DURATION -> duration = readFloat(data, size);
+                case PIXEL_WIDTH -> {
+                    if (width == MediaMetadata.UNKNOWN) width = (int) readUnsigned(data, size);
+                }
+                case PIXEL_HEIGHT -> {
+                    if (height == MediaMetadata.UNKNOWN) height = (int) readUnsigned(data, size);
+                }
+                case FILE_MIME_TYPE -> attachmentMimeType = new String(read(data, (int) Math.min(255, size)).array(), StandardCharsets.US_ASCII);
+                case FILE_DATA -> {
+                    attachmentOffset = data;
+                    attachmentLength = size;
+                }
+                case CLUSTER -> {
+                    // Nothing but media data inside, and without the size it can't be skipped.
+                    if (unknownSize) stopped = true;
+                }
+                default -> {}
+            }
+
+            // Only masters may have an unknown size, and then they end where their parent ends.
+            if (unknownSize) return;
+            position = dataEnd;
+        }
+    }
+
+    private void attachment(long data, long end, int depth) throws IOException {
+        if (coverOffset != MediaMetadata.UNKNOWN || depth >= MAX_DEPTH) return;
+
+        attachmentMimeType = null;
+        attachmentLength = 0;
+        walk(data, end, depth + 1);
+        if (attachmentMimeType != null && attachmentMimeType.startsWith("image/")
+            && attachmentLength > 0 && attachmentLength <= Integer.MAX_VALUE) {
+            coverOffset = attachmentOffset;
+            coverLength = (int) attachmentLength;
+        }
+    }
+
+    private long readUnsigned(long data, long size) throws IOException {
+        int length = (int) Math.min(8, size);
+        return readUnsigned(read(data, length), 0, length);
+    }
+
+    private double readFloat(long data, long size) throws IOException {
+        if (size == 4) return read(data, 4).getFloat(0);
+        if (size == 8) return read(data, 8).getDouble(0);
+        return MediaMetadata.UNKNOWN;
+    }
+
+    private static int vintLength(byte first) {
+        // The number of leading zeros of the first byte, plus one. Zero byte is invalid.
+        return first == 0 ? Integer.MAX_VALUE : Integer.numberOfLeadingZeros(first & 0xFF) - 23;
+    }
+
+    private static long readUnsigned(ByteBuffer buffer, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+        return value;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        }
+        return buffer.flip();
+    }
+}
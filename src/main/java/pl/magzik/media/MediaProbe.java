@@ -0,0 +1,108 @@
+package pl.magzik.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+/**
+ * Reads metadata of media files.
+ * Only headers are read, the content of the file is never decoded.
+ * <p>
+ *     Dimensions of images are read by {@code javax.imageio}. Durations and dimensions of videos are read
+ *     from MP4 (and QuickTime) and Matroska (and WebM) containers, other containers are reported as unknown.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * @see MediaMetadata
+ * */
+public final class MediaProbe {
+
+    private static final Logger log = LoggerFactory.getLogger(MediaProbe.class);
+
+    private MediaProbe() {}
+
+    /**
+     * Reads metadata of the given media file.
+     * @param media The media file.
+     * @param attributes The attributes of the file, read by the caller.
+     * @param sha256 The known checksum of the file, or {@code null}.
+     * @return {@link MediaMetadata} of the file, with unknown properties set to {@link MediaMetadata#UNKNOWN}.
+     * */
+    public static MediaMetadata probe(Media media, BasicFileAttributes attributes, String sha256) {
+        int width = MediaMetadata.UNKNOWN, height = MediaMetadata.UNKNOWN;
+        long duration = MediaMetadata.UNKNOWN;
+        if (media.type() == Media.MediaType.IMAGE) {
+            int[] dimensions = imageDimensions(Path.of(media.path()));
+            width = dimensions[0];
+            height = dimensions[1];
+        } else {
+            VideoInfo info = readVideo(Path.of(media.path()));
+            width = info.width();
+            height = info.height();
+            duration = info.durationMillis();
+        }
+
+        return new MediaMetadata(
+            media.fileName(),
+            attributes.size(),
+            attributes.lastModifiedTime().toMillis(),
+            sha256,
+            width,
+            height,
+            duration,
+            media.getMimeType()
+        );
+    }
+
+    /**
+     * Reads the headers of a video container, recognized by its signature.
+     * @param file The video file.
+     * @return {@link VideoInfo} of the video, {@link VideoInfo#UNKNOWN} if the container isn't supported, or is corrupted.
+     * */
+    public static VideoInfo readVideo(Path file) {
+        try (FileChannel channel = FileChannel.open(file)) {
+            ByteBuffer signature = ByteBuffer.allocate(8);
+            while (signature.hasRemaining() && channel.read(signature) >= 0);
+            if (signature.position() < 8) return VideoInfo.UNKNOWN;
+
+            if (signature.getInt(0) == 0x1A45DFA3) return MatroskaParser.parse(channel);
+            if (signature.getInt(4) == 0x66747970) return Mp4Parser.parse(channel); // 'ftyp'
+            return VideoInfo.UNKNOWN;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Couldn't read video headers of '{}'.", file, e);
+            return VideoInfo.UNKNOWN;
+        }
+    }
+
+    private static int[] imageDimensions(Path file) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file.toFile())) {
+            if (input == null) return new int[] { MediaMetadata.UNKNOWN, MediaMetadata.UNKNOWN };
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) return new int[] { MediaMetadata.UNKNOWN, MediaMetadata.UNKNOWN };
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Couldn't read dimensions of '{}'.", file, e);
+            return new int[] { MediaMetadata.UNKNOWN, MediaMetadata.UNKNOWN };
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package pl.magzik.media;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import pl.magzik.model.Media;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams {@link Media} files to HTTP clients.
+ * <p>
+ *     Supports single and multiple byte ranges ({@code 206 Partial Content}),
+ *     conditional requests ({@code If-None-Match}, {@code If-Modified-Since}, {@code If-Range})
+ *     and sets {@code Cache-Control} depending on the {@link Media.MediaType}.
+ * </p>
+ * <p>
+ *     Whenever Tomcat supports {@code sendfile} for the connection (plain HTTP on the NIO connector),
+ *     single ranges are handed over to the container, which copies them straight from the page cache
+ *     into the socket. Otherwise, bytes are copied with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * */
+@Component
+public class MediaStreamer {
+
+    private static final Logger log = LoggerFactory.getLogger(MediaStreamer.class);
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Requests with more ranges (after coalescing) are answered with the whole file, to avoid range amplification abuse.
+    private static final int MAX_RANGES = 16;
+
+    private final Map<Media.MediaType, CacheControl> cacheControls = new EnumMap<>(Media.MediaType.class);
+
+    private final boolean sendfile;
+
+    private final Map<Media.MediaType, Timer> timers = new EnumMap<>(Media.MediaType.class);
+
+    private final Counter servedBytes;
+
+    public MediaStreamer(
+        @Value("${media-cache.image-max-age:7d}") Duration imageMaxAge,
+        @Value("${media-cache.video-max-age:1d}") Duration videoMaxAge,
+        @Value("${media-sendfile:true}") boolean sendfile,
+        MeterRegistry meterRegistry
+    ) {
+        cacheControls.put(Media.MediaType.IMAGE, CacheControl.maxAge(imageMaxAge).cachePublic());
+        cacheControls.put(Media.MediaType.VIDEO, CacheControl.maxAge(videoMaxAge).cachePublic());
+        this.sendfile = sendfile;
+
+        for (Media.MediaType type : Media.MediaType.values()) {
+            timers.put(type, Timer.builder("myhub.media.serve")
+                    .description("Time of serving a media file, until the last byte is handed to the container")
+                    .tag("type", type.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+        this.servedBytes = Counter.builder("myhub.media.served.bytes")
+                .description("Number of media bytes served")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Writes the given media into the response, honouring the range and conditional headers of the request.
+     *
+     * @param media The media to stream.
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException If the file couldn't be read, or the client disconnected.
+     * @throws java.nio.file.NoSuchFileException If the file doesn't exist.
+     * */
+    public void stream(Media media, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = System.nanoTime();
+        try {
+            doStream(media, request, response);
+        } finally {
+            timers.get(media.type()).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void doStream(Media media, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path path = Path.of(media.path());
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long length = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String eTag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControls.get(media.type()).getHeaderValue());
+
+        if (isNotModified(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+            ContentDisposition.inline().filename(media.fileName()).build().toString());
+
+        List<Range> ranges = List.of();
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && isRangeApplicable(request, eTag, lastModified)) {
+            ranges = Range.parse(rangeHeader, length);
+            if (ranges == null) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (ranges.size() > MAX_RANGES) ranges = List.of();
+        }
+
+        boolean head = "HEAD".equals(request.getMethod());
+        try {
+            if (ranges.isEmpty()) {
+                response.setContentType(media.getMimeType());
+                writeSingle(request, response, path, new Range(0, length - 1), length, head);
+            } else if (ranges.size() == 1) {
+                Range range = ranges.getFirst();
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType(media.getMimeType());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(length));
+                writeSingle(request, response, path, range, length, head);
+            } else {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                writeMultiple(response, path, ranges, length, media.getMimeType(), head);
+            }
+        } catch (IOException e) {
+            if (!response.isCommitted()) throw e;
+            // Typically a client aborting the download, e.g. when seeking through a video.
+            log.debug("Streaming of '{}' interrupted: {}", media.fileName(), e.getMessage());
+        }
+    }
+
+    private void writeSingle(HttpServletRequest request, HttpServletResponse response,
+                             Path path, Range range, long length, boolean head) throws IOException {
+        response.setContentLengthLong(range.length());
+        if (head || length == 0) return;
+
+        servedBytes.increment(range.length());
+        if (sendfile && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, range.start());
+            request.setAttribute(SENDFILE_END, range.end() + 1);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            transfer(channel, range, response.getOutputStream());
+        }
+    }
+
+    private void writeMultiple(HttpServletResponse response, Path path, List<Range> ranges,
+                               long length, String mimeType, boolean head) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        byte[] ending = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = ending.length;
+        for (Range range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + mimeType + "\r\n"
+                + HttpHeaders.CONTENT_RANGE + ": " + range.contentRange(length) + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            contentLength += header.length + range.length();
+        }
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) return;
+
+        servedBytes.increment(contentLength);
+        OutputStream output = response.getOutputStream();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = 0; i < ranges.size(); i++) {
+                output.write(partHeaders.get(i));
+                transfer(channel, ranges.get(i), output);
+            }
+        }
+        output.write(ending);
+    }
+
+    private static void transfer(FileChannel channel, Range range, OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        long position = range.start();
+        long remaining = range.length();
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) throw new IOException("Unexpected end of file.");
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) return matches(ifNoneMatch, eTag);
+
+        long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        // HTTP dates have one second precision.
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean isRangeApplicable(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"")) return ifRange.equals(eTag);
+
+        long date = dateHeader(request, HttpHeaders.IF_RANGE);
+        return date != -1 && lastModified / 1000 == date / 1000;
+    }
+
+    private static boolean matches(String header, String eTag) {
+        for (String candidate : header.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*") || value.equals(eTag) || value.equals("W/" + eTag)) return true;
+        }
+        return false;
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Inclusive byte range of a file.
+     * */
+    record Range(long start, long end) {
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String contentRange(long total) {
+            return "bytes " + start + "-" + end + "/" + total;
+        }
+
+        /**
+         * Parses the {@code Range} header.
+         * <p>
+         *     Satisfiable ranges are sorted and overlapping or adjacent ones are coalesced (RFC 9110, section 14.2),
+         *     so no byte is ever sent twice, and the ranges never sum up to more than the length of the file.
+         * </p>
+         * @param header The value of the header.
+         * @param length The length of the file.
+         * @return {@link List} of satisfiable, ascending and disjoint ranges, empty if the header is malformed
+         *         (the whole file is served then), or {@code null} if none of the ranges is satisfiable.
+         * */
+        static List<Range> parse(String header, long length) {
+            if (!header.startsWith("bytes=")) return List.of();
+
+            List<Range> ranges = new ArrayList<>();
+            for (String spec : header.substring("bytes=".length()).split(",")) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) return List.of();
+
+                String first = spec.substring(0, dash), last = spec.substring(dash + 1);
+                if (!isNumber(first) && !(first.isEmpty() && isNumber(last))) return List.of();
+                if (!last.isEmpty() && !isNumber(last)) return List.of();
+
+                try {
+                    long start, end;
+                    if (first.isEmpty()) { // Suffix range: last n bytes.
+                        long suffix = Long.parseLong(last);
+                        if (suffix == 0 || length == 0) continue;
+                        start = Math.max(0, length - suffix);
+                        end = length - 1;
+                    } else {
+                        start = Long.parseLong(first);
+                        end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                        if (end < start) return List.of();
+                        if (start >= length) continue;
+                        end = Math.min(end, length - 1);
+                    }
+                    ranges.add(new Range(start, end));
+                } catch (NumberFormatException e) { // Doesn't fit in a long.
+                    return List.of();
+                }
+            }
+            return ranges.isEmpty() ? null : coalesce(ranges);
+        }
+
+        private static List<Range> coalesce(List<Range> ranges) {
+            if (ranges.size() == 1) return ranges;
+            ranges.sort(Comparator.comparingLong(Range::start));
+
+            List<Range> coalesced = new ArrayList<>(ranges.size());
+            Range current = ranges.getFirst();
+            for (Range range : ranges.subList(1, ranges.size())) {
+                if (range.start() <= current.end() + 1) {
+                    current = new Range(current.start(), Math.max(current.end(), range.end()));
+                } else {
+                    coalesced.add(current);
+                    current = range;
+                }
+            }
+            coalesced.add(current);
+            return coalesced;
+        }
+
+        private static boolean isNumber(String value) {
+            if (value.isEmpty()) return false;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package pl.magzik.media;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.magzik.model.Media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Resolves the {@link Media.MediaType} and the MIME type of media files.
+ * <p>
+ *     Extensions are looked up, ignoring the case, in a hash table built once at startup.
+ *     Built-in extensions can be extended with {@code media-types.extra}, e.g. {@code heic=image/heic,mkv=video/x-matroska},
+ *     the media type is derived from the MIME type. Files without an extension are recognized by their signature
+ *     (magic bytes), unless {@code media-types.sniff} is disabled.
+ * </p>
+ * <p>
+ *     Unsupported files are reported as empty results, never as exceptions,
+ *     so a single stray file can't break a listing.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see Media
+ * */
+@Component
+public class MediaTypeRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(MediaTypeRegistry.class);
+
+    private static final Map<String, String> BUILT_IN = Map.ofEntries(
+        Map.entry("jpg", "image/jpeg"),
+        Map.entry("jpeg", "image/jpeg"),
+        Map.entry("png", "image/png"),
+        Map.entry("gif", "image/gif"),
+        Map.entry("bmp", "image/bmp"),
+        Map.entry("webp", "image/webp"),
+        Map.entry("mp4", "video/mp4"),
+        Map.entry("webm", "video/webm"),
+        Map.entry("ogg", "video/ogg"),
+        Map.entry("avi", "video/x-msvideo"),
+        Map.entry("mov", "video/quicktime")
+    );
+
+    private static final int SIGNATURE_LENGTH = 12;
+
+    /**
+     * Registry of the built-in extensions, with sniffing enabled.
+     * */
+    public static final MediaTypeRegistry DEFAULTS = new MediaTypeRegistry(List.of(), true);
+
+    private final Map<String, Resolution> byExtension = new HashMap<>();
+
+    private final Map<String, Resolution> byMimeType = new HashMap<>();
+
+    private final boolean sniff;
+
+    public MediaTypeRegistry(
+        @Value("${media-types.extra:}") List<String> extra,
+        @Value("${media-types.sniff:true}") boolean sniff
+    ) {
+        this.sniff = sniff;
+        BUILT_IN.forEach(this::register);
+
+        for (String definition : extra) {
+            if (definition.isBlank()) continue;
+
+            String[] parts = definition.split("=", 2);
+            if (parts.length != 2)
+                throw new IllegalArgumentException("Expected 'extension=mime/type', got: " + definition);
+            register(parts[0].strip(), parts[1].strip());
+        }
+    }
+
+    /**
+     * Resolves the type of the file, by its extension, or its signature if it has no extension.
+     * @param name The name of the media, e.g. its path relative to the media directory.
+     * @param file The media file.
+     * @return An {@link Optional} of the media, or {@link Optional#empty()} if the file isn't supported.
+     * */
+    public Optional<Media> toMedia(String name, Path file) {
+        String fileName = file.getFileName().toString();
+        Resolution resolution = byFileName(fileName);
+        if (resolution == null && sniff && extensionOf(fileName) == null) resolution = bySignature(file);
+        if (resolution == null) return Optional.empty();
+
+        return Optional.of(new Media(name, resolution.type(), file.toString(), resolution.mimeType()));
+    }
+
+    /**
+     * Creates the media of an already known MIME type, e.g. one stored with its metadata. The file isn't accessed.
+     * @param name The name of the media, e.g. its path relative to the media directory.
+     * @param file The media file.
+     * @param mimeType The MIME type of the file.
+     * @return An {@link Optional} of the media, or {@link Optional#empty()} if the MIME type isn't supported (anymore).
+     * */
+    public Optional<Media> toMedia(String name, Path file, String mimeType) {
+        Resolution resolution = byMimeType.get(mimeType);
+        if (resolution == null) return Optional.empty();
+
+        return Optional.of(new Media(name, resolution.type(), file.toString(), resolution.mimeType()));
+    }
+
+    /**
+     * Resolves the type of the file by its extension only.
+     * @param fileName The name of the file.
+     * @return An {@link Optional} of the resolution, or {@link Optional#empty()} if the extension isn't supported.
+     * */
+    public Optional<Resolution> resolve(String fileName) {
+        return Optional.ofNullable(byFileName(fileName));
+    }
+
+    private Resolution byFileName(String fileName) {
+        String extension = extensionOf(fileName);
+        if (extension == null) return null;
+
+        Resolution resolution = byExtension.get(extension);
+        // Lower-casing allocates, so it's done only for the (rare) mixed case extensions.
+        return resolution != null ? resolution : byExtension.get(extension.toLowerCase(Locale.ROOT));
+    }
+
+    private Resolution bySignature(Path file) {
+        byte[] header = new byte[SIGNATURE_LENGTH];
+        int length;
+        try (InputStream input = Files.newInputStream(file)) {
+            length = input.readNBytes(header, 0, SIGNATURE_LENGTH);
+        } catch (IOException e) {
+            log.debug("Couldn't read the signature of '{}'.", file, e);
+            return null;
+        }
+
+        String mimeType = mimeTypeOf(header, length);
+        return mimeType == null ? null : byMimeType.get(mimeType);
+    }
+
+    private static String mimeTypeOf(byte[] header, int length) {
+        if (startsWith(header, length, 0, 0xFF, 0xD8, 0xFF)) return "image/jpeg";
+        if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return "image/png";
+        if (startsWith(header, length, 0, 'G', 'I', 'F', '8')) return "image/gif";
+        if (startsWith(header, length, 0, 'B', 'M')) return "image/bmp";
+        if (startsWith(header, length, 0, 'R', 'I', 'F', 'F')) {
+            if (startsWith(header, length, 8, 'W', 'E', 'B', 'P')) return "image/webp";
+            if (startsWith(header, length, 8, 'A', 'V', 'I', ' ')) return "video/x-msvideo";
+        }
+        if (startsWith(header, length, 4, 'f', 't', 'y', 'p')) {
+            return startsWith(header, length, 8, 'q', 't', ' ', ' ') ? "video/quicktime" : "video/mp4";
+        }
+        if (startsWith(header, length, 0, 0x1A, 0x45, 0xDF, 0xA3)) return "video/webm";
+        if (startsWith(header, length, 0, 'O', 'g', 'g', 'S')) return "video/ogg";
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, int... signature) {
+        if (length < offset + signature.length) return false;
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[offset + i] & 0xFF) != signature[i]) return false;
+        }
+        return true;
+    }
+
+    private static String extensionOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 || dot == fileName.length() - 1 ? null : fileName.substring(dot + 1);
+    }
+
+    private void register(String extension, String mimeType) {
+        Media.MediaType type;
+        if (mimeType.startsWith("image/")) type = Media.MediaType.IMAGE;
+        else if (mimeType.startsWith("video/")) type = Media.MediaType.VIDEO;
+        else throw new IllegalArgumentException("Only image and video MIME types are supported, got: " + mimeType);
+
+        Resolution resolution = new Resolution(type, mimeType.toLowerCase(Locale.ROOT));
+        byExtension.put(extension.toLowerCase(Locale.ROOT), resolution);
+        byMimeType.putIfAbsent(resolution.mimeType(), resolution);
+    }
+
+    /**
+     * Represents the resolved type of a file.
+     * @param type the type of the media.
+     * @param mimeType the MIME type of the file.
+     * */
+    public record Resolution(Media.MediaType type, String mimeType) {}
+}
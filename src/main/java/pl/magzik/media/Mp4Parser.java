@@ -0,0 +1,149 @@
+package pl.magzik.media;
+
+import pl.magzik.model.MediaMetadata;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads {@link VideoInfo} from ISO base media files (MP4, QuickTime).
+ * <p>
+ *     Only the box headers are read, boxes other than {@code moov} and its descendants are skipped by their size,
+ *     so the media data is never touched, even if {@code moov} is placed at the end of the file.
+ *     The duration comes from {@code mvhd}, the dimensions from the first {@code tkhd} with non-zero dimensions,
+ *     and the cover from the iTunes style {@code moov/udta/meta/ilst/covr} atom.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+final class Mp4Parser {
+
+    private static final int MAX_DEPTH = 8;
+
+    // Guards against corrupted files, valid files have a few hundred boxes at most.
+    private static final int MAX_BOXES = 10_000;
+
+    private final FileChannel channel;
+
+    private int boxes;
+
+    private long timescale, duration = MediaMetadata.UNKNOWN;
+
+    private int width = MediaMetadata.UNKNOWN, height = MediaMetadata.UNKNOWN;
+
+    private long coverOffset = MediaMetadata.UNKNOWN;
+
+    private int coverLength = MediaMetadata.UNKNOWN;
+
+    private Mp4Parser(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @param channel The channel of the file, starting with an {@code ftyp} box.
+     * @return The {@link VideoInfo} read.
+     * @throws IOException If the file couldn't be read.
+     * */
+    static VideoInfo parse(FileChannel channel) throws IOException {
+        Mp4Parser parser = new Mp4Parser(channel);
+        parser.walk(0, channel.size(), 0);
+
+        long durationMillis = parser.timescale > 0 && parser.duration > 0
+            ? parser.duration * 1000 / parser.timescale
+            : MediaMetadata.UNKNOWN;
+        return new VideoInfo(durationMillis, parser.width, parser.height, parser.coverOffset, parser.coverLength);
+    }
+
+    private void walk(long start, long end, int depth) throws IOException {
+        long position = start;
+        while (position + 8 <= end && boxes++ < MAX_BOXES) {
+            ByteBuffer header = read(position, (int) Math.min(16, end - position));
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(header.array(), 4, 4, StandardCharsets.ISO_8859_1);
+
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.limit() < 16) return;
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position; // The box extends to the end of the file.
+            }
+            if (size < headerSize || position + size > end) return; // Corrupted, or truncated.
+
+            long body = position + headerSize, bodyEnd = position + size;
+            if (depth < MAX_DEPTH) {
+                switch (type) {
+                    case "moov", "trak", "mdia", "minf", "udta", "ilst" -> walk(body, bodyEnd, depth + 1);
+                    case "meta" -> walk(metaChildren(body, bodyEnd), bodyEnd, depth + 1);
+                    case "mvhd" -> movieHeader(body, bodyEnd);
+                    case "tkhd" -> trackHeader(body, bodyEnd);
+                    case "covr" -> cover(body, bodyEnd);
+                    default -> {}
+                }
+            }
+            position = bodyEnd;
+        }
+    }
+
+    private long metaChildren(long body, long end) throws IOException {
+        // In ISO files 'meta' is a full box, with the version and flags before its children, in QuickTime files it isn't.
+        if (body + 8 > end) return end;
+        ByteBuffer buffer = read(body, 8);
+        boolean quickTime = new String(buffer.array(), 4, 4, StandardCharsets.ISO_8859_1).equals("hdlr");
+        return quickTime ? body : body + 4;
+    }
+
+    private void movieHeader(long body, long end) throws IOException {
+        ByteBuffer buffer = read(body, (int) Math.min(32, end - body));
+        int version = buffer.get(0);
+        if (version == 1 && buffer.limit() >= 32) {
+            timescale = buffer.getInt(20) & 0xFFFFFFFFL;
+            duration = buffer.getLong(24);
+        } else if (version == 0 && buffer.limit() >= 20) {
+            timescale = buffer.getInt(12) & 0xFFFFFFFFL;
+            long value = buffer.getInt(16) & 0xFFFFFFFFL;
+            duration = value == 0xFFFFFFFFL ? MediaMetadata.UNKNOWN : value;
+        }
+    }
+
+    private void trackHeader(long body, long end) throws IOException {
+        if (width != MediaMetadata.UNKNOWN) return;
+
+        ByteBuffer buffer = read(body, (int) Math.min(96, end - body));
+        int offset = buffer.get(0) == 1 ? 88 : 76;
+        if (buffer.limit() < offset + 8) return;
+
+        // Fixed point 16.16 numbers, audio tracks have zero dimensions.
+        int trackWidth = buffer.getInt(offset) >>> 16, trackHeight = buffer.getInt(offset + 4) >>> 16;
+        if (trackWidth > 0 && trackHeight > 0) {
+            width = trackWidth;
+            height = trackHeight;
+        }
+    }
+
+    private void cover(long body, long end) throws IOException {
+        // 'covr' holds 'data' boxes: the header, a type indicator, a locale, and the image itself.
+        if (coverOffset != MediaMetadata.UNKNOWN || body + 16 > end) return;
+
+        ByteBuffer buffer = read(body, 16);
+        long size = buffer.getInt(0) & 0xFFFFFFFFL;
+        String type = new String(buffer.array(), 4, 4, StandardCharsets.ISO_8859_1);
+        if (!type.equals("data") || size <= 16 || body + size > end || size - 16 > Integer.MAX_VALUE) return;
+
+        coverOffset = body + 16;
+        coverLength = (int) (size - 16);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,166 @@
+package pl.magzik.media;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Service generating and caching posters of {@link Media.MediaType#VIDEO} media,
+ * so the gallery can show video tiles without fetching the videos themselves.
+ * <p>
+ *     Decoding video frames is out of reach without native codecs, so the poster is the cover art embedded
+ *     in the container, if there is one (see {@link VideoInfo}). Otherwise, it's a placeholder
+ *     of the video's aspect ratio, which keeps the layout of the gallery stable.
+ * </p>
+ * <p>
+ *     Posters are rendered by the background jobs of the {@link pl.magzik.catalog.MediaCatalog} after a video is probed,
+ *     or on demand, and stored in a {@link DiskCache} located in the {@code cache-dir}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see MediaProbe
+ * */
+@Service
+public class PosterService {
+
+    private static final Logger log = LoggerFactory.getLogger(PosterService.class);
+
+    // Larger covers are most likely a corrupted container.
+    private static final int MAX_COVER_LENGTH = 16 * 1024 * 1024;
+
+    private static final Color BACKGROUND = new Color(0x20, 0x20, 0x20);
+
+    private final int size;
+
+    private final DiskCache cache;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    public PosterService(
+        @Value("${cache-dir}") String cacheDirectory,
+        @Value("${thumbnail-size:320}") int size,
+        @Value("${poster-cache-size:128MB}") DataSize cacheSize,
+        MeterRegistry meterRegistry
+    ) throws IOException {
+        this.size = size;
+        this.cache = new DiskCache(Path.of(cacheDirectory, "posters"), "jpg", cacheSize.toBytes());
+
+        this.hits = meterRegistry.counter("myhub.cache.requests", "cache", "posters", "result", "hit");
+        this.misses = meterRegistry.counter("myhub.cache.requests", "cache", "posters", "result", "miss");
+        Gauge.builder("myhub.cache.size", cache, DiskCache::totalBytes)
+                .tag("cache", "posters")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Finds the poster of the given video, rendering it first if needed.
+     * @param media The video.
+     * @param metadata The metadata of the video, or {@code null} if it hasn't been probed yet.
+     * @return An {@link Optional} of the poster, or {@link Optional#empty()} if the media isn't a video,
+     *         or the poster couldn't be rendered.
+     * */
+    public Optional<Thumbnail> find(Media media, MediaMetadata metadata) {
+        Objects.requireNonNull(media);
+        if (media.type() != Media.MediaType.VIDEO) return Optional.empty();
+
+        Path original = Path.of(media.path());
+        try {
+            String key = Images.key(original, size);
+            Optional<Path> cached = cache.get(key);
+            if (cached.isPresent()) {
+                hits.increment();
+                return Optional.of(new Thumbnail(cached.get(), key));
+            }
+            misses.increment();
+
+            // Concurrent renders of the same poster produce the same file, so the work isn't shared.
+            return Optional.of(new Thumbnail(cache.put(key, render(original, metadata)), key));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Couldn't render poster for '{}': {}", media.fileName(), e.toString());
+            return Optional.empty();
+        }
+    }
+
+    private Path render(Path original, MediaMetadata metadata) throws IOException {
+        BufferedImage poster = cover(original);
+        if (poster == null) poster = placeholder(metadata);
+
+        Path temp = cache.createTempFile();
+        try {
+            Images.writeJpeg(poster, temp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    private BufferedImage cover(Path original) throws IOException {
+        VideoInfo info = MediaProbe.readVideo(original);
+        if (!info.hasCover() || info.coverLength() > MAX_COVER_LENGTH) return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(info.coverLength());
+        try (FileChannel channel = FileChannel.open(original)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, info.coverOffset() + buffer.position()) < 0) return null;
+            }
+        }
+
+        BufferedImage cover = ImageIO.read(new ByteArrayInputStream(buffer.array()));
+        return cover == null ? null : Images.scale(cover, size);
+    }
+
+    private BufferedImage placeholder(MediaMetadata metadata) {
+        // 16:9 unless the dimensions are known.
+        double aspectRatio = metadata != null && metadata.width() > 0 && metadata.height() > 0
+            ? (double) metadata.width() / metadata.height()
+            : 16.0 / 9.0;
+        int width = aspectRatio >= 1 ? size : Math.max(1, (int) Math.round(size * aspectRatio));
+        int height = aspectRatio >= 1 ? Math.max(1, (int) Math.round(size / aspectRatio)) : size;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setColor(BACKGROUND);
+            graphics.fillRect(0, 0, width, height);
+
+            // Play symbol in the middle.
+            double side = Math.min(width, height) / 4.0, x = width / 2.0, y = height / 2.0;
+            Path2D triangle = new Path2D.Double();
+            triangle.moveTo(x - side / 3, y - side / 2);
+            triangle.lineTo(x + side * 2 / 3, y);
+            triangle.lineTo(x - side / 3, y + side / 2);
+            triangle.closePath();
+            graphics.setColor(Color.LIGHT_GRAY);
+            graphics.fill(triangle);
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+}
@@ -0,0 +1,18 @@
+package pl.magzik.media;
+
+import java.nio.file.Path;
+
+/**
+ * Represents a cached thumbnail of a {@link pl.magzik.model.Media} image, a poster of a video,
+ * or a downscaled variant of an image.
+ *
+ * @param path the path to the image file (always a JPEG image).
+ * @param key the content address of the image, suitable as a strong ETag.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ */
+public record Thumbnail(Path path, String key) {
+
+    public static final String MIME_TYPE = "image/jpeg";
+}
@@ -0,0 +1,212 @@
+package pl.magzik.media;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.Media;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+/**
+ * Service generating and caching thumbnails of {@link Media.MediaType#IMAGE} media.
+ * <p>
+ *     Thumbnails are rendered with {@code javax.imageio} on a bounded worker pool,
+ *     and stored in a {@link DiskCache} located in the {@code cache-dir}.
+ *     The key of every thumbnail is derived from the path, size and modification time of the original file,
+ *     as well as the thumbnail size, so a changed original never hits a stale thumbnail.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see DiskCache
+ * */
+@Service
+public class ThumbnailService {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailService.class);
+
+    private final int size;
+
+    private final long timeoutMillis;
+
+    private final DiskCache cache;
+
+    private final ThreadPoolExecutor executor;
+
+    // Thumbnails being rendered at the moment, so concurrent requests share the work.
+    private final Map<String, CompletableFuture<Thumbnail>> pending = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Timer renderTimer;
+
+    public ThumbnailService(
+        @Value("${cache-dir}") String cacheDirectory,
+        @Value("${thumbnail-size:320}") int size,
+        @Value("${thumbnail-cache-size:512MB}") DataSize cacheSize,
+        @Value("${thumbnail-threads:2}") int threads,
+        @Value("${thumbnail-queue-size:1000}") int queueSize,
+        @Value("${thumbnail-timeout-ms:10000}") long timeoutMillis,
+        MeterRegistry meterRegistry
+    ) throws IOException {
+        this.size = size;
+        this.timeoutMillis = timeoutMillis;
+        this.cache = new DiskCache(Path.of(cacheDirectory, "thumbnails"), "jpg", cacheSize.toBytes());
+        this.executor = new ThreadPoolExecutor(
+            threads, threads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            Thread.ofPlatform().name("thumbnail-", 0).daemon().factory()
+        );
+
+        this.hits = meterRegistry.counter("myhub.cache.requests", "cache", "thumbnails", "result", "hit");
+        this.misses = meterRegistry.counter("myhub.cache.requests", "cache", "thumbnails", "result", "miss");
+        this.renderTimer = Timer.builder("myhub.thumbnail.render")
+                .description("Time of rendering a thumbnail")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("myhub.cache.size", cache, DiskCache::totalBytes)
+                .tag("cache", "thumbnails")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("myhub.thumbnail.queue", executor, e -> e.getQueue().size())
+                .description("Number of thumbnails waiting for rendering")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules the thumbnail generation in the background, if it isn't cached yet.
+     * Does nothing for media other than images.
+     * @param media The media to render the thumbnail for.
+     * */
+    public void schedule(Media media) {
+        Objects.requireNonNull(media);
+        if (media.type() != Media.MediaType.IMAGE) return;
+
+        try {
+            render(media);
+        } catch (RejectedExecutionException e) {
+            log.debug("Thumbnail queue is full, '{}' will be rendered on demand.", media.fileName());
+        } catch (IOException e) {
+            log.warn("Couldn't schedule thumbnail for '{}'.", media.fileName(), e);
+        }
+    }
+
+    /**
+     * Finds the thumbnail of given media, rendering it first if needed.
+     * <p>
+     *     The caller waits at most {@code thumbnail-timeout-ms} for the rendering.
+     * </p>
+     * @param media The media to find the thumbnail for.
+     * @return An {@link Optional} of the thumbnail, or {@link Optional#empty()}
+     *         if the media isn't an image, or the thumbnail couldn't be rendered in time.
+     * */
+    public Optional<Thumbnail> find(Media media) {
+        Objects.requireNonNull(media);
+        if (media.type() != Media.MediaType.IMAGE) return Optional.empty();
+
+        try {
+            return Optional.of(render(media).get(timeoutMillis, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RejectedExecutionException | IOException e) {
+            log.warn("Couldn't render thumbnail for '{}': {}", media.fileName(), e.toString());
+        }
+        return Optional.empty();
+    }
+
+    private CompletableFuture<Thumbnail> render(Media media) throws IOException {
+        Path original = Path.of(media.path());
+        String key = Images.key(original, size);
+
+        Optional<Path> cached = cache.get(key);
+        if (cached.isPresent()) {
+            hits.increment();
+            return CompletableFuture.completedFuture(new Thumbnail(cached.get(), key));
+        }
+        misses.increment();
+
+        CompletableFuture<Thumbnail> created = new CompletableFuture<>();
+        CompletableFuture<Thumbnail> existing = pending.putIfAbsent(key, created);
+        if (existing != null) return existing;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    Path rendered = renderTimer.recordCallable(() -> resize(original));
+                    created.complete(new Thumbnail(cache.put(key, rendered), key));
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            throw e;
+        }
+        return created;
+    }
+
+    private Path resize(Path original) throws IOException {
+        BufferedImage thumbnail = Images.scale(read(original), size);
+
+        Path temp = cache.createTempFile();
+        try {
+            Images.writeJpeg(thumbnail, temp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    private BufferedImage read(Path original) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(original.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) throw new IOException("No image reader for: " + original);
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+
+                // Decode only every n-th pixel of large images, it saves both memory and time.
+                // The image is kept at least twice as large as the thumbnail, to preserve the quality.
+                int longerSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longerSide / (2 * size));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package pl.magzik.media;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.Media;
+import pl.magzik.utils.JobQueue;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Service building downscaled variants of {@link Media.MediaType#IMAGE} media, for screens smaller than the originals.
+ * <p>
+ *     Every variant belongs to a tier, given by its maximal width ({@code image-variants.widths}), and every tier
+ *     is stored in its own {@link DiskCache}, so each has its own share of the disk. Variants are JPEG images,
+ *     built by the background workers the first time they're requested, or right after an upload.
+ *     Until then, the original is served.
+ * </p>
+ * <p>
+ *     A variant is kept only if it's noticeably smaller than the original. Otherwise, like for transparent
+ *     and animated images, which JPEG can't represent, the original is served, and the decision is remembered.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see ThumbnailService
+ * */
+@Service
+public class VariantService {
+
+    private static final Logger log = LoggerFactory.getLogger(VariantService.class);
+
+    // Variants saving less than this fraction of the original's size aren't worth a separate file.
+    private static final double MIN_SAVING = 0.1;
+
+    // Variants not worth building, remembered so the originals aren't decoded on every request.
+    private static final int MAX_SKIPPED = 10_000;
+
+    private final int[] widths;
+
+    private final DiskCache[] caches;
+
+    private final JobQueue jobs;
+
+    private final Set<String> skipped = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SKIPPED;
+        }
+    });
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Timer renderTimer;
+
+    public VariantService(
+        @Value("${cache-dir}") String cacheDirectory,
+        @Value("${image-variants.enabled:true}") boolean enabled,
+        @Value("${image-variants.widths:480,960,1920}") int[] widths,
+        @Value("${image-variants.cache-size:256MB}") DataSize cacheSize,
+        @Value("${image-variants.threads:1}") int threads,
+        MeterRegistry meterRegistry
+    ) throws IOException {
+        this.widths = enabled ? Arrays.stream(widths).filter(w -> w > 0).sorted().distinct().toArray() : new int[0];
+        this.caches = new DiskCache[this.widths.length];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new DiskCache(Path.of(cacheDirectory, "variants", Integer.toString(this.widths[i])), "jpg", cacheSize.toBytes());
+            Gauge.builder("myhub.cache.size", caches[i], DiskCache::totalBytes)
+                    .tag("cache", "variants-" + this.widths[i])
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+        }
+        // Only urgent jobs are submitted, the capacity doesn't apply to them.
+        this.jobs = new JobQueue("image-variant-builder", threads, 1);
+
+        this.hits = meterRegistry.counter("myhub.cache.requests", "cache", "variants", "result", "hit");
+        this.misses = meterRegistry.counter("myhub.cache.requests", "cache", "variants", "result", "miss");
+        this.renderTimer = Timer.builder("myhub.variant.render")
+                .description("Time of building an image variant")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("myhub.variant.queue", jobs, JobQueue::size)
+                .description("Number of image variants waiting for building")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobs.close();
+    }
+
+    /**
+     * @return The widths of the variant tiers in ascending order, empty if variants are disabled.
+     * */
+    public int[] getWidths() {
+        return widths.clone();
+    }
+
+    /**
+     * Finds the smallest variant at least as wide as requested. If it isn't built yet, it's scheduled for building.
+     * @param media The image.
+     * @param width The width requested by the client.
+     * @return An {@link Optional} of the variant, or {@link Optional#empty()} if the original should be served,
+     *         because the media isn't an image, the width exceeds all tiers, or the variant isn't built (yet).
+     * */
+    public Optional<Thumbnail> find(Media media, int width) {
+        Objects.requireNonNull(media);
+        int tier = tier(width);
+        if (tier < 0 || media.type() != Media.MediaType.IMAGE) return Optional.empty();
+
+        try {
+            String key = Images.key(Path.of(media.path()), widths[tier]);
+            Optional<Path> cached = caches[tier].get(key);
+            if (cached.isPresent()) {
+                hits.increment();
+                return Optional.of(new Thumbnail(cached.get(), key));
+            }
+            misses.increment();
+            // Someone is waiting for it.
+            build(media, tier, key, JobQueue.Priority.UPLOAD);
+        } catch (IOException e) {
+            log.warn("Couldn't find variant of '{}': {}", media.fileName(), e.toString());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Schedules building of all variants of the given media, which aren't cached yet.
+     * Does nothing for media other than images.
+     * @param media The media to build the variants of.
+     * */
+    public void schedule(Media media) {
+        Objects.requireNonNull(media);
+        if (media.type() != Media.MediaType.IMAGE) return;
+
+        try {
+            for (int tier = 0; tier < widths.length; tier++) {
+                String key = Images.key(Path.of(media.path()), widths[tier]);
+                if (caches[tier].get(key).isEmpty()) build(media, tier, key, JobQueue.Priority.CHANGE);
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't schedule variants of '{}'.", media.fileName(), e);
+        }
+    }
+
+    private int tier(int width) {
+        for (int i = 0; i < widths.length; i++) {
+            if (widths[i] >= width) return i;
+        }
+        return -1;
+    }
+
+    private void build(Media media, int tier, String key, JobQueue.Priority priority) {
+        if (isSkipped(key)) return;
+
+        try {
+            jobs.submit(key, priority, () -> {
+                long start = System.nanoTime();
+                try {
+                    Path variant = transcode(media, caches[tier], widths[tier]);
+                    if (variant != null) caches[tier].put(key, variant);
+                    else skip(key);
+                } catch (IOException | RuntimeException e) {
+                    // Most likely a format javax.imageio can't read, there's no point in trying again.
+                    log.warn("Couldn't build {} px variant of '{}': {}", widths[tier], media.fileName(), e.toString());
+                    skip(key);
+                } finally {
+                    renderTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns null if the variant isn't worth storing.
+    private Path transcode(Media media, DiskCache cache, int width) throws IOException {
+        // Only the first frame of an animation would survive.
+        if ("image/gif".equals(media.getMimeType())) return null;
+
+        Path original = Path.of(media.path());
+        long originalSize = Files.size(original);
+        BufferedImage image;
+        try (ImageInputStream input = ImageIO.createImageInputStream(original.toFile())) {
+            if (input == null) throw new IOException("Couldn't open: " + original);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) throw new IOException("No image reader for: " + original);
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+
+                // Re-encoding a JPEG at the same size doesn't make it any smaller.
+                int originalWidth = reader.getWidth(0);
+                if (originalWidth <= width && "image/jpeg".equals(media.getMimeType())) return null;
+
+                // The same subsampling as of thumbnails, the image is kept at least twice as wide as the variant.
+                int subsampling = Math.max(1, originalWidth / (2 * width));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+        if (isTransparent(image)) return null;
+
+        Path temp = cache.createTempFile();
+        try {
+            Images.writeJpeg(Images.scaleToWidth(image, width), temp);
+            if (Files.size(temp) <= originalSize * (1 - MIN_SAVING)) return temp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.deleteIfExists(temp);
+        return null;
+    }
+
+    private static boolean isTransparent(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        if (!colorModel.hasAlpha()) return false;
+        if (colorModel instanceof IndexColorModel) return colorModel.getTransparency() != Transparency.OPAQUE;
+
+        // Images with an alpha channel are often opaque anyway, e.g. screenshots.
+        WritableRaster alpha = image.getAlphaRaster();
+        if (alpha == null) return true;
+        int opaque = (1 << colorModel.getComponentSize(colorModel.getNumComponents() - 1)) - 1;
+        int[] row = new int[alpha.getWidth()];
+        for (int y = 0; y < alpha.getHeight(); y++) {
+            alpha.getSamples(0, y, row.length, 1, 0, row);
+            for (int sample : row) {
+                if (sample < opaque) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSkipped(String key) {
+        synchronized (skipped) {
+            return skipped.contains(key);
+        }
+    }
+
+    private void skip(String key) {
+        synchronized (skipped) {
+            skipped.add(key);
+        }
+    }
+}
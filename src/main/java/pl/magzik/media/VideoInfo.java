@@ -0,0 +1,29 @@
+package pl.magzik.media;
+
+import pl.magzik.model.MediaMetadata;
+
+/**
+ * Properties of a video, read from the headers of its container.
+ * Unknown properties are set to {@link MediaMetadata#UNKNOWN}.
+ *
+ * @param durationMillis the duration of the video in milliseconds.
+ * @param width the width of the first video track in pixels.
+ * @param height the height of the first video track in pixels.
+ * @param coverOffset the position of the embedded cover art (e.g. an MP4 {@code covr} atom, or a Matroska attachment) in the file.
+ * @param coverLength the size of the embedded cover art in bytes.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record VideoInfo(long durationMillis, int width, int height, long coverOffset, int coverLength) {
+
+    public static final VideoInfo UNKNOWN = new VideoInfo(MediaMetadata.UNKNOWN, MediaMetadata.UNKNOWN, MediaMetadata.UNKNOWN,
+        MediaMetadata.UNKNOWN, MediaMetadata.UNKNOWN);
+
+    /**
+     * @return {@code true} if the container embeds a cover image.
+     * */
+    public boolean hasCover() {
+        return coverOffset >= 0 && coverLength > 0;
+    }
+}
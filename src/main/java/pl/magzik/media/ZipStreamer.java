@@ -0,0 +1,99 @@
+package pl.magzik.media;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import pl.magzik.model.Media;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a selection of {@link Media} files as a ZIP archive.
+ * <p>
+ *     The archive is written on the fly, file by file, so the memory used doesn't depend on the size of the files,
+ *     and nothing is written to the disk. Formats, which are compressed already (JPEG, PNG, MP4, WebM, ...),
+ *     are stored as they are, so archiving them costs little more than copying. Only the few uncompressed formats
+ *     (e.g. BMP, TIFF, SVG) are deflated.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see ZipWriter
+ * */
+@Component
+public class ZipStreamer {
+
+    private static final Logger log = LoggerFactory.getLogger(ZipStreamer.class);
+
+    private static final Set<String> COMPRESSIBLE = Set.of(
+        "image/bmp", "image/x-ms-bmp", "image/tiff", "image/svg+xml", "image/x-icon", "image/vnd.microsoft.icon",
+        "image/x-portable-anymap", "image/x-portable-bitmap", "image/x-portable-graymap", "image/x-portable-pixmap"
+    );
+
+    private final Timer timer;
+
+    private final Counter archivedBytes;
+
+    public ZipStreamer(MeterRegistry meterRegistry) {
+        this.timer = Timer.builder("myhub.media.archive")
+                .description("Time of streaming a ZIP archive of media")
+                .register(meterRegistry);
+        this.archivedBytes = Counter.builder("myhub.media.archive.bytes")
+                .description("Number of ZIP archive bytes served")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Writes the archive of the given media. Files removed in the meantime are skipped.
+     * @param media The media to archive, named after their names in the media directory.
+     * @param output The stream to write into, it's left open.
+     * @return Number of files archived.
+     * @throws IOException If a file couldn't be read, or the client disconnected.
+     * */
+    public int stream(Iterable<Media> media, OutputStream output) throws IOException {
+        Objects.requireNonNull(media);
+        Objects.requireNonNull(output);
+
+        long start = System.nanoTime();
+        int count = 0;
+        ZipWriter zip = new ZipWriter(output);
+        try {
+            for (Media m : media) {
+                Path path = Path.of(m.path());
+                // Opened before the entry is started, so a missing file doesn't leave a broken entry behind.
+                try (InputStream input = Files.newInputStream(path)) {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    zip.write(m.fileName(), attributes.lastModifiedTime().toMillis(), attributes.size(),
+                        isCompressible(m), input);
+                    count++;
+                } catch (NoSuchFileException e) {
+                    log.debug("Skipping '{}', removed before archiving.", m.fileName());
+                }
+            }
+            zip.close();
+            return count;
+        } finally {
+            archivedBytes.increment(zip.size());
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static boolean isCompressible(Media media) {
+        String mimeType = media.getMimeType();
+        return mimeType != null && COMPRESSIBLE.contains(mimeType.toLowerCase(Locale.ROOT));
+    }
+}
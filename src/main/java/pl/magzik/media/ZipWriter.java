@@ -0,0 +1,268 @@
+package pl.magzik.media;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a ZIP archive to a stream, without seeking back, and without buffering the entries.
+ * <p>
+ *     Unlike {@link java.util.zip.ZipOutputStream}, it writes stored (uncompressed) entries with a trailing
+ *     data descriptor, so their checksum is computed while they're copied, and files are read only once.
+ *     ZIP64 records are written whenever sizes, offsets, or the number of entries exceed the limits of the classic format.
+ * </p>
+ * <p>
+ *     Deflated entries get their own {@link Deflater}, ended as soon as the entry is written, or has failed,
+ *     so no native memory is held between entries, nor leaked by an archive which is never closed.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * */
+final class ZipWriter implements Closeable {
+
+    private static final int LOCAL_HEADER = 0x04034b50, DATA_DESCRIPTOR = 0x08074b50, CENTRAL_HEADER = 0x02014b50,
+        ZIP64_END = 0x06064b50, ZIP64_LOCATOR = 0x07064b50, END = 0x06054b50;
+
+    private static final int STORED = 0, DEFLATED = 8;
+
+    // Data descriptor follows the data, names are UTF-8.
+    private static final int FLAGS = 1 << 3 | 1 << 11;
+
+    private static final int VERSION = 20, VERSION_ZIP64 = 45, MADE_BY_UNIX = 3 << 8;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private static final int MAX_16 = 0xFFFF;
+
+    // Entries larger than this might exceed 4 GB once deflated, so they get ZIP64 sizes right away.
+    private static final long ZIP64_THRESHOLD = MAX_32 - (1 << 20);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CountingOutputStream output;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    ZipWriter(OutputStream output) {
+        this.output = new CountingOutputStream(output);
+    }
+
+    /**
+     * Writes an entry, copying the whole input.
+     * @param name The name of the entry, '/' separated.
+     * @param lastModified The modification time, in milliseconds since the epoch.
+     * @param expectedSize The expected size of the input, used to decide whether ZIP64 sizes are needed.
+     * @param compress Whether to deflate the content, or store it as is.
+     * @param input The content.
+     * @throws IOException If the input couldn't be read, or the output written.
+     * */
+    void write(String name, long lastModified, long expectedSize, boolean compress, InputStream input) throws IOException {
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        if (encodedName.length > MAX_16) throw new IOException("Entry name too long: " + name);
+
+        boolean zip64 = expectedSize >= ZIP64_THRESHOLD;
+        int method = compress ? DEFLATED : STORED;
+        long offset = output.count();
+        int dosTime = dosTime(lastModified);
+
+        ByteBuffer header = buffer(30 + encodedName.length + (zip64 ? 20 : 0));
+        header.putInt(LOCAL_HEADER)
+            .putShort((short) (zip64 ? VERSION_ZIP64 : VERSION))
+            .putShort((short) FLAGS)
+            .putShort((short) method)
+            .putInt(dosTime)
+            .putInt(0) // Checksum and sizes follow in the data descriptor.
+            .putInt(zip64 ? (int) MAX_32 : 0)
+            .putInt(zip64 ? (int) MAX_32 : 0)
+            .putShort((short) encodedName.length)
+            .putShort((short) (zip64 ? 20 : 0))
+            .put(encodedName);
+        if (zip64) header.putShort((short) 1).putShort((short) 16).putLong(0).putLong(0);
+        output.write(header.array());
+
+        CRC32 crc = new CRC32();
+        long size, start = output.count();
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try (OutputStream target = new DeflaterOutputStream(new Unclosable(output), deflater, BUFFER_SIZE)) {
+                size = copy(input, target, crc);
+            } finally {
+                deflater.end();
+            }
+        } else {
+            size = copy(input, output, crc);
+        }
+        long compressedSize = output.count() - start;
+        if (!zip64 && (size >= MAX_32 || compressedSize >= MAX_32)) {
+            throw new IOException("Entry '" + name + "' has grown over 4 GB while being written.");
+        }
+
+        ByteBuffer descriptor = buffer(zip64 ? 24 : 16);
+        descriptor.putInt(DATA_DESCRIPTOR).putInt((int) crc.getValue());
+        if (zip64) descriptor.putLong(compressedSize).putLong(size);
+        else descriptor.putInt((int) compressedSize).putInt((int) size);
+        output.write(descriptor.array());
+
+        entries.add(new Entry(encodedName, method, dosTime, crc.getValue(), compressedSize, size, offset, zip64));
+    }
+
+    /**
+     * Writes the central directory, and flushes the output, which is left open.
+     * @throws IOException If the output couldn't be written.
+     * */
+    @Override
+    public void close() throws IOException {
+        long directoryOffset = output.count();
+
+        for (Entry entry : entries) {
+            boolean largeSize = entry.zip64() || entry.size() >= MAX_32 || entry.compressedSize() >= MAX_32;
+            boolean largeOffset = entry.offset() >= MAX_32;
+            int extraLength = (largeSize ? 16 : 0) + (largeOffset ? 8 : 0);
+            int extraHeader = extraLength > 0 ? 4 : 0;
+
+            ByteBuffer header = buffer(46 + entry.name().length + extraHeader + extraLength);
+            header.putInt(CENTRAL_HEADER)
+                .putShort((short) (MADE_BY_UNIX | VERSION_ZIP64))
+                .putShort((short) (extraLength > 0 ? VERSION_ZIP64 : VERSION))
+                .putShort((short) FLAGS)
+                .putShort((short) entry.method())
+                .putInt(entry.dosTime())
+                .putInt((int) entry.crc())
+                .putInt(largeSize ? (int) MAX_32 : (int) entry.compressedSize())
+                .putInt(largeSize ? (int) MAX_32 : (int) entry.size())
+                .putShort((short) entry.name().length)
+                .putShort((short) (extraHeader + extraLength))
+                .putShort((short) 0) // Comment.
+                .putShort((short) 0) // Disk.
+                .putShort((short) 0) // Internal attributes.
+                .putInt(0100644 << 16) // Regular file, rw-r--r--.
+                .putInt(largeOffset ? (int) MAX_32 : (int) entry.offset())
+                .put(entry.name());
+            if (extraLength > 0) {
+                header.putShort((short) 1).putShort((short) extraLength);
+                if (largeSize) header.putLong(entry.size()).putLong(entry.compressedSize());
+                if (largeOffset) header.putLong(entry.offset());
+            }
+            output.write(header.array());
+        }
+
+        long directoryEnd = output.count(), directorySize = directoryEnd - directoryOffset;
+        boolean zip64 = entries.size() >= MAX_16 || directoryOffset >= MAX_32 || directorySize >= MAX_32;
+        if (zip64) {
+            ByteBuffer end = buffer(56 + 20);
+            end.putInt(ZIP64_END)
+                .putLong(44) // Size of the rest of the record.
+                .putShort((short) (MADE_BY_UNIX | VERSION_ZIP64))
+                .putShort((short) VERSION_ZIP64)
+                .putInt(0).putInt(0) // Disks.
+                .putLong(entries.size()).putLong(entries.size())
+                .putLong(directorySize)
+                .putLong(directoryOffset);
+            end.putInt(ZIP64_LOCATOR).putInt(0).putLong(directoryEnd).putInt(1);
+            output.write(end.array());
+        }
+
+        ByteBuffer end = buffer(22);
+        end.putInt(END)
+            .putShort((short) 0).putShort((short) 0) // Disks.
+            .putShort((short) Math.min(entries.size(), MAX_16))
+            .putShort((short) Math.min(entries.size(), MAX_16))
+            .putInt((int) Math.min(directorySize, MAX_32))
+            .putInt((int) Math.min(directoryOffset, MAX_32))
+            .putShort((short) 0); // Comment.
+        output.write(end.array());
+        output.flush();
+    }
+
+    /**
+     * @return Number of bytes written so far.
+     * */
+    long size() {
+        return output.count();
+    }
+
+    private long copy(InputStream input, OutputStream target, CRC32 crc) throws IOException {
+        long size = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            target.write(buffer, 0, read);
+            size += read;
+        }
+        return size;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) return (1 << 21) | (1 << 16); // 1980-01-01, the earliest DOS date.
+
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+            | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private record Entry(byte[] name, int method, int dosTime, long crc, long compressedSize, long size, long offset,
+                         boolean zip64) {}
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    // Closing the deflater stream finishes the entry, but mustn't close the archive.
+    private static final class Unclosable extends FilterOutputStream {
+
+        Unclosable(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
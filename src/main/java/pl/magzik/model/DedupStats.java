@@ -0,0 +1,15 @@
+package pl.magzik.model;
+
+/**
+ * Represents statistics of the deduplicating media storage.
+ *
+ * @param files the number of indexed files.
+ * @param blobs the number of distinct contents among the indexed files.
+ * @param duplicates the number of files sharing the content with another file.
+ * @param bytesSaved the number of bytes which would be needed to store the duplicates separately.
+ * @param pending the number of files waiting to be hashed by the background indexer.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record DedupStats(long files, long blobs, long duplicates, long bytesSaved, long pending) {}
@@ -0,0 +1,20 @@
+package pl.magzik.model;
+
+/**
+ * Represents the progress of the current, or the last scan of the media directory.
+ *
+ * @param running whether the scan is in progress.
+ * @param indexed the number of media files indexed by the scan so far.
+ * @param expected the number of media files expected, as found by the previous scan, or -1 if unknown.
+ * @param startedAt the time (in epoch milliseconds) the scan started at, or 0 if there hasn't been any scan yet.
+ * @param finishedAt the time (in epoch milliseconds) the scan finished at, or 0 if it's still in progress.
+ * @param rate the number of media files indexed per second.
+ * @param eta the estimated number of seconds left, or -1 if unknown.
+ * @param pendingProbes the number of media files waiting to be probed in the background.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record IndexingStatus(boolean running, long indexed, long expected, long startedAt, long finishedAt,
+                             double rate, long eta, int pendingProbes) {
+}
@@ -0,0 +1,41 @@
+package pl.magzik.model;
+
+/**
+ * Represents persisted metadata of a media file.
+ * Properties which couldn't be determined (yet) are set to {@link #UNKNOWN}, or {@code null} for the checksum.
+ *
+ * @param fileName the name of the media file.
+ * @param size the size of the file in bytes.
+ * @param lastModified the last modification time of the file in milliseconds since the epoch.
+ * @param sha256 the hex encoded SHA-256 checksum of the file, or {@code null} if not computed yet.
+ * @param width the width of the image or video in pixels.
+ * @param height the height of the image or video in pixels.
+ * @param durationMillis the duration of the video in milliseconds.
+ * @param mimeType the MIME type of the file.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see Media
+ */
+public record MediaMetadata(String fileName, long size, long lastModified, String sha256,
+                            int width, int height, long durationMillis, String mimeType) {
+
+    public static final int UNKNOWN = -1;
+
+    /**
+     * @return Copy of this metadata with the given checksum.
+     * */
+    public MediaMetadata withSha256(String sha256) {
+        return new MediaMetadata(fileName, size, lastModified, sha256, width, height, durationMillis, mimeType);
+    }
+
+    /**
+     * Checks whether the metadata still describes the file, using only its size and modification time.
+     * @param size The current size of the file.
+     * @param lastModified The current modification time of the file.
+     * @return {@code true} if the file hasn't changed since the metadata has been recorded.
+     * */
+    public boolean matches(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+}
@@ -0,0 +1,21 @@
+package pl.magzik.model;
+
+import java.util.List;
+
+/**
+ * Represents a single page of the {@link Media} catalog.
+ *
+ * @param media the media on this page, sorted by the file name.
+ * @param offset the position of the first media on this page in the whole catalog.
+ * @param nextCursor the opaque token pointing right after the last media on this page,
+ *                   or {@code null} if this is the last page.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record MediaPage(List<Media> media, long offset, String nextCursor) {
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,88 @@
+package pl.magzik.model;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Represents a query over the media catalog. Every criterion is optional, {@code null} means no restriction.
+ * Date and size criteria match the attributes of the files, read when they are indexed, so they apply before probing.
+ *
+ * @param type the type of media.
+ * @param modifiedFrom the lower, inclusive bound of the modification time, in milliseconds since the epoch.
+ * @param modifiedTo the upper, exclusive bound of the modification time, in milliseconds since the epoch.
+ * @param minSize the lower, inclusive bound of the file size in bytes.
+ * @param maxSize the upper, inclusive bound of the file size in bytes.
+ * @param text the text, which the file name has to contain, ignoring the case.
+ * @param sort the property to sort by.
+ * @param descending whether the order is descending.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * @see Media
+ */
+public record MediaQuery(Media.MediaType type, Long modifiedFrom, Long modifiedTo, Long minSize, Long maxSize,
+                         String text, Sort sort, boolean descending) {
+
+    public MediaQuery {
+        Objects.requireNonNull(sort);
+        if (text != null) {
+            text = text.strip().toLowerCase(Locale.ROOT);
+            if (text.isEmpty()) text = null;
+        }
+    }
+
+    /**
+     * Creates a query from the criteria sent by a client.
+     * @param type the type of media, {@code image} or {@code video}, or {@code null}.
+     * @param from the first day of modification, inclusive, or {@code null}.
+     * @param to the last day of modification, inclusive, or {@code null}.
+     * @param minSize the minimal size in bytes, or {@code null}.
+     * @param maxSize the maximal size in bytes, or {@code null}.
+     * @param text the text, which the file name has to contain, or {@code null}.
+     * @param sort the property to sort by, {@code name}, {@code modified} or {@code size}.
+     * @param order the order, {@code asc} or {@code desc}.
+     * @return The query.
+     * @throws IllegalArgumentException If any of the criteria is invalid.
+     * */
+    public static MediaQuery of(String type, LocalDate from, LocalDate to, Long minSize, Long maxSize, String text,
+                                String sort, String order) {
+        ZoneId zone = ZoneId.systemDefault();
+        return new MediaQuery(
+            type == null ? null : Media.MediaType.valueOf(type.toUpperCase(Locale.ROOT)),
+            from == null ? null : from.atStartOfDay(zone).toInstant().toEpochMilli(),
+            to == null ? null : to.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli(),
+            minSize,
+            maxSize,
+            text,
+            Sort.valueOf(sort.toUpperCase(Locale.ROOT)),
+            switch (order.toLowerCase(Locale.ROOT)) {
+                case "asc" -> false;
+                case "desc" -> true;
+                default -> throw new IllegalArgumentException("Unknown order: " + order);
+            }
+        );
+    }
+
+    /**
+     * @return {@code true} if the query restricts the modification time.
+     * */
+    public boolean hasModifiedRange() {
+        return modifiedFrom != null || modifiedTo != null;
+    }
+
+    /**
+     * @return {@code true} if the query restricts the file size.
+     * */
+    public boolean hasSizeRange() {
+        return minSize != null || maxSize != null;
+    }
+
+    /**
+     * Properties media can be sorted by.
+     */
+    public enum Sort {
+        NAME, MODIFIED, SIZE
+    }
+}
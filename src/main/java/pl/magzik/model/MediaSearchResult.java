@@ -0,0 +1,23 @@
+package pl.magzik.model;
+
+import java.util.List;
+
+/**
+ * Represents a single page of media matching a {@link MediaQuery}.
+ *
+ * @param media the media on this page, in the requested order.
+ * @param offset the position of the first media of this page, among all matching media.
+ * @param total the number of all matching media.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record MediaSearchResult(List<Media> media, long offset, long total) {
+
+    /**
+     * @return {@code true} if more matching media follow this page.
+     * */
+    public boolean hasNext() {
+        return offset + media.size() < total;
+    }
+}
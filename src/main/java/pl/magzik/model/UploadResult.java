@@ -0,0 +1,29 @@
+package pl.magzik.model;
+
+/**
+ * Represents the outcome of a single uploaded file.
+ *
+ * @param originalName the name of the file, as sent by the client.
+ * @param storedName the name of the file in the media directory, or {@code null} if the upload failed.
+ * @param size the number of bytes stored.
+ * @param sha256 the hex encoded SHA-256 checksum of the stored bytes, or {@code null} if the upload failed.
+ * @param deduplicated whether the content was already stored, and the file has been linked to it.
+ * @param error the reason of the failure, or {@code null} if the upload succeeded.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record UploadResult(String originalName, String storedName, long size, String sha256, boolean deduplicated, String error) {
+
+    public static UploadResult success(String originalName, String storedName, long size, String sha256, boolean deduplicated) {
+        return new UploadResult(originalName, storedName, size, sha256, deduplicated, null);
+    }
+
+    public static UploadResult failure(String originalName, String error) {
+        return new UploadResult(originalName, null, 0, null, false, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,24 @@
+package pl.magzik.model;
+
+/**
+ * Represents the state of a resumable upload session.
+ *
+ * @param id the identifier of the session.
+ * @param name the name of the file, as sent by the client.
+ * @param size the size of the whole file in bytes.
+ * @param chunkSize the size of every chunk but the last one.
+ * @param chunks the number of chunks.
+ * @param committedChunks the number of chunks already stored.
+ * @param offset the number of bytes stored without a gap from the start of the file, so the upload can resume from it.
+ * @param expiresAt the time (in epoch milliseconds) the session expires at, unless more chunks are sent.
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ */
+public record UploadStatus(String id, String name, long size, int chunkSize, int chunks, int committedChunks,
+                           long offset, long expiresAt) {
+
+    public boolean isComplete() {
+        return committedChunks == chunks;
+    }
+}
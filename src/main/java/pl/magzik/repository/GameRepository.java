@@ -1,22 +1,25 @@
 package pl.magzik.repository;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import pl.magzik.catalog.GameRegistry;
 import pl.magzik.model.Game;
-import pl.magzik.utils.FileUtils;
 
-import java.io.File;
 import java.util.*;
 
 /**
  * Repository class providing methods, to manage {@link Game} objects.
  *
+ * <p>
+ *     All queries are answered from the {@link GameRegistry},
+ *     so none of them touches the file system.
+ * </p>
+ *
  * @author Maksymilian Strzelczak
- * @version 1.1
+ * @version 1.2
  *
  * @see Game
+ * @see GameRegistry
  * */
 @Repository
 public class GameRepository {
@@ -28,10 +31,12 @@ public class GameRepository {
     *           Could be a solid step to RESTful API.
     *  */
 
-    private static final Logger log = LoggerFactory.getLogger(GameRepository.class);
+    private final GameRegistry gameRegistry;
 
-    @Value("${game-dir}")
-    private String gameDirectory;
+    @Autowired
+    public GameRepository(GameRegistry gameRegistry) {
+        this.gameRegistry = gameRegistry;
+    }
 
     /**
      * Finds a game with specified name.
@@ -41,49 +46,21 @@ public class GameRepository {
      * */
     public Optional<Game> findByName(String name) {
         Objects.requireNonNull(name);
-
-        return FileUtils.getFilesInDirectory(gameDirectory, this::isGameValid, Game::of)
-                .filter(game -> game.name().equalsIgnoreCase(name))
-                .findFirst();
+        return gameRegistry.get(name);
     }
 
     /**
-     * Find all games in the {@link GameRepository#gameDirectory}.
-     * @return {@link List} of games found.
+     * Find all games in the game directory.
+     * @return {@link List} of games found, sorted by the name.
      */
     public List<Game> findAll() {
-        return FileUtils.getFilesInDirectory(gameDirectory, this::isGameValid, Game::of).toList();
+        return gameRegistry.values();
     }
 
     /**
-     * Validates a single game directory.
-     * A valid game directory contains exactly one `.html` file and may include other assets.
-     *
-     * @param directory The directory to validate.
-     * @return {@code true} if the directory contains exactly one HTML file; {@code false} otherwise.
-     * @throws NullPointerException If the provided {@code directory} is {@code null}.
-     */
-    private boolean isGameValid(File directory) {
-        Objects.requireNonNull(directory);
-
-        if (!directory.isDirectory()) {
-            log.warn("Directory '{}' is not a directory.", directory);
-            return false;
-        }
-
-        File[] files = directory.listFiles();
-        if (files == null || files.length == 0) {
-            log.warn("Directory '{}' is empty.", directory);
-            return false;
-        }
-
-        long htmlFileCount = Arrays.stream(files)
-                .filter(file -> file.getName().endsWith(".html"))
-                .count();
-        if (htmlFileCount != 1) {
-            log.warn("Directory '{}' must contain exactly one HTML file. Found: {}.", directory, htmlFileCount);
-            return false;
-        }
-        return true;
+     * @return Version of the game registry, it changes whenever any game is added, changed or removed.
+     * */
+    public long version() {
+        return gameRegistry.version();
     }
 }
@@ -1,15 +1,30 @@
 package pl.magzik.repository;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
-import org.springframework.web.multipart.MultipartFile;
+import pl.magzik.catalog.MediaCatalog;
+import pl.magzik.media.PosterService;
+import pl.magzik.media.Thumbnail;
+import pl.magzik.media.ThumbnailService;
+import pl.magzik.media.VariantService;
+import pl.magzik.model.IndexingStatus;
 import pl.magzik.model.Media;
-import pl.magzik.utils.FileUtils;
+import pl.magzik.model.MediaMetadata;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.MediaSearchResult;
+import pl.magzik.model.UploadResult;
+import pl.magzik.upload.ChunkedUploads;
+import pl.magzik.upload.UploadPipeline;
+import pl.magzik.utils.JobQueue;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -17,16 +32,22 @@ import java.util.*;
 /**
  * Repository class providing methods, to manage {@link Media} objects.
  *
+ * <p>
+ *     All queries are answered from the {@link MediaCatalog} index,
+ *     so none of them touches the file system.
+ * </p>
+ *
  * @author Maksymilian Strzelczak
- * @version 1.1
+ * @version 1.7
  * @see Media
+ * @see MediaCatalog
  * */
 @Repository
 public class MediaRepository {
 
     /* TODO:
     *   No.1 Implement all CRUD operations.
-    *   No.2 Extent's persistence
+    *   No.2 Extent's persistence (metadata is persisted by the MetadataStore)
     * */
 
     private static final Logger log = LoggerFactory.getLogger(MediaRepository.class);
@@ -34,6 +55,48 @@ public class MediaRepository {
     @Value("${media-dir}")
     private String mediaDirectory;
 
+    private final MediaCatalog mediaCatalog;
+
+    private final ThumbnailService thumbnailService;
+
+    private final PosterService posterService;
+
+    private final VariantService variantService;
+
+    private final UploadPipeline uploadPipeline;
+
+    private final ChunkedUploads chunkedUploads;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Timer uploadTimer;
+
+    private final Counter uploadedBytes;
+
+    @Autowired
+    public MediaRepository(MediaCatalog mediaCatalog, ThumbnailService thumbnailService, PosterService posterService,
+                           VariantService variantService, UploadPipeline uploadPipeline, ChunkedUploads chunkedUploads,
+                           MeterRegistry meterRegistry) {
+        this.mediaCatalog = mediaCatalog;
+        this.thumbnailService = thumbnailService;
+        this.posterService = posterService;
+        this.variantService = variantService;
+        this.uploadPipeline = uploadPipeline;
+        this.chunkedUploads = chunkedUploads;
+        this.meterRegistry = meterRegistry;
+        this.uploadTimer = Timer.builder("myhub.media.upload")
+                .description("Time of storing all files of an upload request")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.uploadedBytes = Counter.builder("myhub.media.uploaded.bytes")
+                .description("Number of bytes uploaded")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+
+        // Posters of probed videos are rendered right away, by the catalog's background jobs.
+        mediaCatalog.addProbeListener(posterService::find);
+    }
+
     /**
      * Finds a media file with specified name.
      * @param name The name of the media file.
@@ -42,19 +105,94 @@ public class MediaRepository {
      */
     public Optional<Media> findByName(String name) {
         Objects.requireNonNull(name);
-        return FileUtils.getFilesInDirectory(mediaDirectory, this::isMediaValid, Media::of)
-                .filter(m -> m.fileName().equals(name))
-                .findFirst();
+        return mediaCatalog.get(name);
+    }
+
+    /**
+     * Finds the stored metadata of a media file, without accessing the file itself.
+     * @param name The name of the media file.
+     * @return An {@link Optional} of the metadata, or {@link Optional#empty()} if not known yet.
+     * @throws NullPointerException If given name is null.
+     */
+    public Optional<MediaMetadata> findMetadata(String name) {
+        return mediaCatalog.metadata(name);
+    }
+
+    /**
+     * Finds the poster of a video, rendering it first if needed.
+     * @param media The video.
+     * @return An {@link Optional} of the poster, or {@link Optional#empty()} if the media isn't a video,
+     *         or the poster couldn't be rendered.
+     * @throws NullPointerException If given media is null.
+     */
+    public Optional<Thumbnail> findPoster(Media media) {
+        Objects.requireNonNull(media);
+        return posterService.find(media, mediaCatalog.metadata(media.fileName()).orElse(null));
     }
 
     /**
      * Finds all media in the {@link MediaRepository#mediaDirectory}.
-     * @return {@link List} of media files found.
+     * @return Sorted {@link List} of media files found.
      */
     public List<Media> findAll() {
-        return FileUtils.getFilesInDirectory(mediaDirectory, this::isMediaValid, Media::of)
-                .sorted()
-                .toList();
+        return List.copyOf(mediaCatalog.values());
+    }
+
+    /**
+     * Finds a page of media, sorted by the file name.
+     * @param offset The position of the first media in the sorted catalog.
+     * @param limit The maximum size of the page.
+     * @return {@link List} of media files found.
+     * */
+    public List<Media> findPage(long offset, int limit) {
+        return mediaCatalog.slice(offset, limit);
+    }
+
+    /**
+     * Finds a page of media, whose names follow the given one.
+     * @param fileName The name of the last media seen, or {@code null} to get the first page.
+     * @param limit The maximum size of the page.
+     * @return {@link List} of media files found.
+     * */
+    public List<Media> findAfter(String fileName, int limit) {
+        return mediaCatalog.after(fileName, limit);
+    }
+
+    /**
+     * Finds a position of the given media name in the sorted catalog.
+     * @param fileName The name of the media.
+     * @return Position of the first media whose name is not less than the given one.
+     * @throws NullPointerException If given name is null.
+     * */
+    public long findPosition(String fileName) {
+        Objects.requireNonNull(fileName);
+        return mediaCatalog.positionOf(fileName);
+    }
+
+    /**
+     * Finds a page of media matching the query.
+     * @param query The query.
+     * @param offset The position of the first media returned, among all matching media.
+     * @param limit The maximum size of the page.
+     * @return {@link MediaSearchResult} with the page and the number of all matching media.
+     * @throws NullPointerException If given query is null.
+     * */
+    public MediaSearchResult search(MediaQuery query, long offset, int limit) {
+        Objects.requireNonNull(query);
+        return mediaCatalog.search(query, offset, limit);
+    }
+
+    /**
+     * Finds media matching the query, whose names follow the given one, in the order of the names.
+     * @param query The query, its order is ignored.
+     * @param fileName The name of the last media seen, or {@code null} to start from the beginning.
+     * @param limit The maximum number of media returned.
+     * @return {@link List} of media files found.
+     * @throws NullPointerException If given query is null.
+     * */
+    public List<Media> searchAfter(MediaQuery query, String fileName, int limit) {
+        Objects.requireNonNull(query);
+        return mediaCatalog.searchAfter(query, fileName, limit);
     }
 
     /**
@@ -62,36 +200,86 @@ public class MediaRepository {
      * @return Number of media files found.
      * */
     public long countAll() {
-        return FileUtils.getFilesInDirectory(mediaDirectory, this::isMediaValid, Media::of).count();
+        return mediaCatalog.size();
     }
 
     /**
-     * Saves a list of media files provided.
-     * @param files {@link List} of {@link MultipartFile} containing media files provided.
-     * @throws NullPointerException If the provided list is {@code null}.
+     * @return Progress of the current, or the last scan of the media directory.
+     * */
+    public IndexingStatus indexingStatus() {
+        return mediaCatalog.indexingStatus();
+    }
+
+    /**
+     * Schedules a scan of the media directory in the background.
+     * @return {@code false} if a scan is queued already.
+     * */
+    public boolean reindex() {
+        return mediaCatalog.reindex();
+    }
+
+    /**
+     * @return Version of the media catalog, it changes whenever any media, or its metadata is added, changed or removed.
+     * */
+    public long version() {
+        // Both only grow, so does the sum.
+        return mediaCatalog.version() + mediaCatalog.metadataVersion();
+    }
+
+    /**
+     * Saves media files of a {@code multipart/form-data} body, as they are received, see {@link UploadPipeline}.
+     * Thumbnails of saved images are rendered in the background.
+     * Saved files are probed before any other files waiting for it.
+     * @param body The body of the upload request.
+     * @param contentType The content type of the body.
+     * @return {@link List} of results, one per provided file.
+     * @throws NullPointerException If the provided body is {@code null}.
+     * @throws IllegalArgumentException If the body isn't {@code multipart/form-data}.
+     * @throws IOException If the media directory doesn't exist.
      */
-    public void saveAll(List<MultipartFile> files) throws IOException {
-        File uploadDirectory = new File(mediaDirectory);
-        if (!uploadDirectory.exists()) {
+    public List<UploadResult> saveAll(InputStream body, String contentType) throws IOException {
+        Objects.requireNonNull(body);
+
+        Path uploadDirectory = Path.of(mediaDirectory);
+        if (!Files.isDirectory(uploadDirectory)) {
             log.error("Directory '{}' doesn't exists.", uploadDirectory);
             throw new IOException("Media directory doesn't exists");
         }
 
-        for (MultipartFile file : files) {
-            String fileName = file.getOriginalFilename();
-            if (fileName == null || fileName.isEmpty()) { continue; }
+        List<UploadResult> results = uploadTimer.record(() -> uploadPipeline.store(body, contentType, uploadDirectory));
+        results.forEach(result -> register(result, uploadDirectory));
+        return results;
+    }
 
-            Path destinationPath = Path.of(mediaDirectory, String.format("%s_%s", UUID.randomUUID(), fileName));
-            Files.copy(file.getInputStream(), destinationPath);
-        }
+    /**
+     * Commits a complete resumable upload into the media directory, see {@link ChunkedUploads#commit(String, byte[])}.
+     * @param id The identifier of the upload session.
+     * @param sha256 The expected SHA-256 checksum of the whole file, or {@code null} to skip the check.
+     * @return The result of the upload.
+     * @throws NoSuchElementException If there's no such session.
+     * @throws IllegalStateException If chunks are missing, or still being written.
+     * @throws IOException If the file couldn't be committed.
+     * */
+    public UploadResult commitUpload(String id, byte[] sha256) throws IOException {
+        Objects.requireNonNull(id);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        UploadResult result = chunkedUploads.commit(id, sha256);
+        sample.stop(uploadTimer);
+        register(result, Path.of(mediaDirectory));
+        return result;
     }
 
-    private boolean isMediaValid(File file) {
-        Objects.requireNonNull(file);
+    private void register(UploadResult result, Path uploadDirectory) {
+        uploadedBytes.increment(result.size());
+        String outcome = !result.isSuccess() ? "failure" : result.deduplicated() ? "deduplicated" : "stored";
+        meterRegistry.counter("myhub.media.uploaded.files", "result", outcome).increment();
+        if (!result.isSuccess()) return;
 
-        if (!file.exists()) {
-            log.warn("File '{}' already exists", file);
-        }
-        return true;
+        Path path = uploadDirectory.resolve(result.storedName());
+        mediaCatalog.refresh(path, JobQueue.Priority.UPLOAD);
+        mediaCatalog.get(result.storedName()).ifPresent(media -> {
+            thumbnailService.schedule(media);
+            variantService.schedule(media);
+        });
     }
 }
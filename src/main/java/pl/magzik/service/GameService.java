@@ -40,4 +40,8 @@ public class GameService {
         Objects.requireNonNull(name);
         return gameRepository.findByName(name);
     }
+
+    public long getGamesVersion() {
+        return gameRepository.version();
+    }
 }
@@ -1,13 +1,33 @@
 package pl.magzik.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
+import pl.magzik.media.Thumbnail;
+import pl.magzik.media.ThumbnailService;
+import pl.magzik.media.VariantService;
+import pl.magzik.model.DedupStats;
+import pl.magzik.model.IndexingStatus;
 import pl.magzik.model.Media;
+import pl.magzik.model.MediaMetadata;
+import pl.magzik.model.MediaPage;
+import pl.magzik.model.MediaQuery;
+import pl.magzik.model.MediaSearchResult;
+import pl.magzik.model.UploadResult;
+import pl.magzik.model.UploadStatus;
 import pl.magzik.repository.MediaRepository;
+import pl.magzik.upload.ChunkedUploads;
+import pl.magzik.upload.DedupStore;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -15,7 +35,7 @@ import java.util.Optional;
  * Service class providing interface for {@link MediaRepository} class.
  *
  * @author Maksymilian Strzelczak
- * @version 1.1
+ * @version 1.5
  * @see MediaRepository
  * */
 @Service
@@ -26,11 +46,35 @@ public class MediaService {
      *           Another step into RESTful API.
      * */
 
+    private static final int SEARCH_BATCH_SIZE = 1000;
+
     private final MediaRepository mediaRepository;
 
+    private final ThumbnailService thumbnailService;
+
+    private final VariantService variantService;
+
+    private final DedupStore dedupStore;
+
+    private final ChunkedUploads chunkedUploads;
+
+    private final Timer offsetPageTimer;
+
+    private final Timer cursorPageTimer;
+
+    private final Timer searchTimer;
+
     @Autowired
-    public MediaService(MediaRepository mediaRepository) {
+    public MediaService(MediaRepository mediaRepository, ThumbnailService thumbnailService, VariantService variantService,
+                        DedupStore dedupStore, ChunkedUploads chunkedUploads, MeterRegistry meterRegistry) {
         this.mediaRepository = mediaRepository;
+        this.thumbnailService = thumbnailService;
+        this.variantService = variantService;
+        this.dedupStore = dedupStore;
+        this.chunkedUploads = chunkedUploads;
+        this.offsetPageTimer = pageTimer(meterRegistry, "offset");
+        this.cursorPageTimer = pageTimer(meterRegistry, "cursor");
+        this.searchTimer = pageTimer(meterRegistry, "search");
     }
 
     public Optional<Media> findMediaByName(String name) {
@@ -39,18 +83,190 @@ public class MediaService {
     }
 
     public List<Media> findAllMedia(int page, int n) {
-        return mediaRepository.findAll().stream()
-                .skip((long) page*n)
-                .limit(n)
-                .toList();
+        return offsetPageTimer.record(() -> mediaRepository.findPage((long) page*n, n));
+    }
+
+    /**
+     * Finds the page with given number, the page carries the cursor to the next one.
+     * @param page The number of the page, counted from zero.
+     * @param n The size of the page.
+     * @return The {@link MediaPage} found.
+     * */
+    public MediaPage findMediaPage(int page, int n) {
+        long offset = (long) page*n;
+        // Fetch one more element, to find out whether the next page exists.
+        return offsetPageTimer.record(() -> toPage(mediaRepository.findPage(offset, n + 1), offset, n));
+    }
+
+    /**
+     * Finds the page which starts right after the given cursor.
+     * @param cursor The cursor returned with the previous page, or {@code null} to get the first page.
+     * @param n The size of the page.
+     * @return The {@link MediaPage} found.
+     * @throws IllegalArgumentException If the cursor is malformed.
+     * */
+    public MediaPage findMediaPage(String cursor, int n) {
+        String after = cursor == null ? null : decodeCursor(cursor);
+        return cursorPageTimer.record(() -> {
+            List<Media> media = mediaRepository.findAfter(after, n + 1);
+
+            long offset = media.isEmpty() ? mediaRepository.countAll() : mediaRepository.findPosition(media.getFirst().fileName());
+            return toPage(media, offset, n);
+        });
+    }
+
+    /**
+     * Finds the page of media matching the query.
+     * @param query The query.
+     * @param page The number of the page, counted from zero.
+     * @param n The size of the page.
+     * @return The {@link MediaSearchResult} found.
+     * */
+    public MediaSearchResult searchMedia(MediaQuery query, int page, int n) {
+        Objects.requireNonNull(query);
+        return searchTimer.record(() -> mediaRepository.search(query, (long) page*n, n));
+    }
+
+    /**
+     * Returns all media matching the query, in the order of their names, whatever the order of the query is.
+     * The media are found as they're iterated, {@value #SEARCH_BATCH_SIZE} at a time,
+     * each batch continuing after the name of the last media of the previous one.
+     * @param query The query.
+     * @return {@link Iterable} of the media, every iteration searches again.
+     * */
+    public Iterable<Media> searchAllMedia(MediaQuery query) {
+        Objects.requireNonNull(query);
+        return () -> new Iterator<>() {
+
+            private Iterator<Media> batch = Collections.emptyIterator();
+
+            private String last;
+
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (!batch.hasNext() && !exhausted) {
+                    List<Media> media = mediaRepository.searchAfter(query, last, SEARCH_BATCH_SIZE);
+                    exhausted = media.size() < SEARCH_BATCH_SIZE;
+                    if (!media.isEmpty()) last = media.getLast().fileName();
+                    batch = media.iterator();
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public Media next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return batch.next();
+            }
+        };
+    }
+
+    public Optional<Thumbnail> findThumbnail(Media media) {
+        Objects.requireNonNull(media);
+        return thumbnailService.find(media);
+    }
+
+    /**
+     * Finds the variant of an image for the given width, see {@link VariantService#find(Media, int)}.
+     * @param media The image.
+     * @param width The width requested by the client.
+     * @return An {@link Optional} of the variant, or {@link Optional#empty()} if the original should be served.
+     * */
+    public Optional<Thumbnail> findVariant(Media media, int width) {
+        Objects.requireNonNull(media);
+        return variantService.find(media, width);
+    }
+
+    public int[] getVariantWidths() {
+        return variantService.getWidths();
+    }
+
+    public Optional<Thumbnail> findPoster(Media media) {
+        Objects.requireNonNull(media);
+        return mediaRepository.findPoster(media);
+    }
+
+    public DedupStats getDedupStats() {
+        return dedupStore.stats();
     }
 
     public long countAllMedia() {
         return mediaRepository.countAll();
     }
 
-    public void saveAll(List<MultipartFile> files) throws IOException {
-        Objects.requireNonNull(files);
-        mediaRepository.saveAll(files);
+    public long getMediaVersion() {
+        return mediaRepository.version();
+    }
+
+    public IndexingStatus getIndexingStatus() {
+        return mediaRepository.indexingStatus();
+    }
+
+    public boolean reindex() {
+        return mediaRepository.reindex();
+    }
+
+    public Optional<MediaMetadata> findMetadata(Media media) {
+        Objects.requireNonNull(media);
+        return mediaRepository.findMetadata(media.fileName());
+    }
+
+    public List<UploadResult> saveAll(InputStream body, String contentType) throws IOException {
+        Objects.requireNonNull(body);
+        return mediaRepository.saveAll(body, contentType);
+    }
+
+    public long getMaxUploadSize() {
+        return chunkedUploads.maxSize();
+    }
+
+    public UploadStatus createUpload(String name, long size) throws IOException {
+        Objects.requireNonNull(name);
+        return chunkedUploads.create(name, size);
+    }
+
+    public Optional<UploadStatus> findUpload(String id) {
+        Objects.requireNonNull(id);
+        return chunkedUploads.find(id);
+    }
+
+    public UploadStatus writeUploadChunk(String id, int index, byte[] sha256, InputStream input) throws IOException {
+        Objects.requireNonNull(id);
+        return chunkedUploads.write(id, index, sha256, input);
+    }
+
+    public UploadResult commitUpload(String id, byte[] sha256) throws IOException {
+        Objects.requireNonNull(id);
+        return mediaRepository.commitUpload(id, sha256);
+    }
+
+    public boolean abortUpload(String id) {
+        Objects.requireNonNull(id);
+        return chunkedUploads.abort(id);
+    }
+
+    private static Timer pageTimer(MeterRegistry meterRegistry, String mode) {
+        return Timer.builder("myhub.media.page")
+                .description("Time of fetching a page of media")
+                .tag("mode", mode)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static MediaPage toPage(List<Media> media, long offset, int n) {
+        if (media.size() <= n) return new MediaPage(media, offset, null);
+
+        List<Media> page = media.subList(0, n);
+        return new MediaPage(page, offset, encodeCursor(page.getLast().fileName()));
+    }
+
+    private static String encodeCursor(String fileName) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(fileName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeCursor(String cursor) {
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,402 @@
+package pl.magzik.upload;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.UploadResult;
+import pl.magzik.model.UploadStatus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resumable uploads of large files, sent in fixed-size chunks, in the spirit of the tus protocol.
+ * <p>
+ *     A session preallocates a hidden {@code .upload-<id>.part} file in the media directory, and every chunk
+ *     is written at its offset, through a {@link FileChannel}. A chunk is stored only if its SHA-256 checksum
+ *     matches the one sent by the client, and it's flushed to the disk before it's acknowledged.
+ *     So after a dropped connection, or a restart, the client resumes from the last acknowledged chunk.
+ *     Once all chunks are stored, the file is committed into the media directory by {@link DedupStore#commit},
+ *     i.e. atomically renamed, or linked to an identical file.
+ * </p>
+ * <p>
+ *     Sessions are persisted in {@code cache-dir/uploads}. Sessions idle for longer than {@code upload-sessions.expiry}
+ *     are removed in the background, together with their files.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * @see UploadPipeline
+ * */
+@Component
+public class ChunkedUploads {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedUploads.class);
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final String PART_PREFIX = ".upload-", PART_SUFFIX = ".part", SESSION_SUFFIX = ".session";
+
+    private final Path mediaDirectory;
+
+    private final Path sessionDirectory;
+
+    private final int chunkSize;
+
+    private final long maxSize;
+
+    private final long expiry;
+
+    private final DedupStore dedupStore;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(
+        Thread.ofPlatform().name("upload-session-cleaner").daemon().factory()
+    );
+
+    private final Counter storedChunks;
+
+    private final Counter rejectedChunks;
+
+    public ChunkedUploads(@Value("${media-dir}") String mediaDirectory, @Value("${cache-dir}") String cacheDirectory,
+                          @Value("${upload-sessions.chunk-size:8MB}") DataSize chunkSize,
+                          @Value("${upload-sessions.max-file-size:64GB}") DataSize maxSize,
+                          @Value("${upload-sessions.expiry:24h}") Duration expiry,
+                          DedupStore dedupStore, MeterRegistry meterRegistry) {
+        if (chunkSize.toBytes() <= 0 || chunkSize.toBytes() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Chunk size has to be between 1 byte and 2 GB.");
+        }
+        this.mediaDirectory = Path.of(mediaDirectory).toAbsolutePath();
+        this.sessionDirectory = Path.of(cacheDirectory, "uploads");
+        this.chunkSize = (int) chunkSize.toBytes();
+        this.maxSize = maxSize.toBytes();
+        this.expiry = expiry.toMillis();
+        this.dedupStore = dedupStore;
+
+        this.storedChunks = meterRegistry.counter("myhub.uploads.chunks", "result", "stored");
+        this.rejectedChunks = meterRegistry.counter("myhub.uploads.chunks", "result", "rejected");
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Files.createDirectories(sessionDirectory);
+        load();
+        removeOrphans();
+
+        long period = Math.max(1, Math.min(expiry / 4, Duration.ofHours(1).toMillis()));
+        cleaner.scheduleWithFixedDelay(this::removeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * @return The maximal size of a file uploaded in chunks.
+     * */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Number of open sessions.
+     * */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Opens a new session, and preallocates its file.
+     * @param name The name of the file, as sent by the client.
+     * @param size The size of the whole file.
+     * @return The status of the new session.
+     * @throws IllegalArgumentException If the name or size is invalid.
+     * @throws IOException If there's not enough space for the file, or it couldn't be created.
+     * */
+    public UploadStatus create(String name, long size) throws IOException {
+        UploadPipeline.destinationOf(mediaDirectory, name); // Validates the name early.
+        if (size < 0 || size > maxSize) throw new IllegalArgumentException("Size has to be between 0 and " + maxSize + " bytes.");
+
+        // Other sessions may still take the space, so it's a best effort check.
+        if (Files.getFileStore(mediaDirectory).getUsableSpace() < size) {
+            throw new IOException("Not enough space for " + size + " bytes.");
+        }
+
+        String id = UUID.randomUUID().toString();
+        Path file = mediaDirectory.resolve(PART_PREFIX + id + PART_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // Sets the length of the file, most file systems don't allocate the blocks until they're written.
+            if (size > 0) channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        UploadSession session = new UploadSession(id, name, size, chunkSize, file, new BitSet(), System.currentTimeMillis());
+        try {
+            save(session);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        sessions.put(id, session);
+
+        log.debug("Opened upload '{}' of '{}', {} bytes.", id, name, size);
+        return session.status(expiry);
+    }
+
+    /**
+     * Finds the status of a session.
+     * @param id The identifier of the session.
+     * @return An {@link Optional} of the status, or {@link Optional#empty()} if there's no such session.
+     * */
+    public Optional<UploadStatus> find(String id) {
+        Objects.requireNonNull(id);
+        return Optional.ofNullable(sessions.get(id)).map(session -> session.status(expiry));
+    }
+
+    /**
+     * Stores a chunk of the file. Chunks can be sent in any order, and in parallel.
+     * A chunk sent again, once it's stored, is ignored, so its verified content is kept.
+     * @param id The identifier of the session.
+     * @param index The index of the chunk, counted from zero.
+     * @param sha256 The SHA-256 checksum of the chunk.
+     * @param input The content of the chunk, read until its expected length.
+     * @return The status of the session, after the chunk has been stored.
+     * @throws NoSuchElementException If there's no such session.
+     * @throws IllegalArgumentException If there's no such chunk, its length is invalid, or the checksum doesn't match.
+     * @throws IllegalStateException If the session is already closed, or the chunk is being written by another request.
+     * @throws IOException If the chunk couldn't be read or written.
+     * */
+    public UploadStatus write(String id, int index, byte[] sha256, InputStream input) throws IOException {
+        Objects.requireNonNull(sha256);
+        Objects.requireNonNull(input);
+        UploadSession session = get(id);
+
+        long offset = session.offsetOf(index);
+        int length = session.lengthOf(index);
+        // Sent again, e.g. after a lost acknowledgement.
+        if (!session.beginWrite(index)) return session.status(expiry);
+
+        MessageDigest whole = null;
+        boolean stored = false;
+        try (FileChannel channel = FileChannel.open(session.file(), StandardOpenOption.WRITE)) {
+            whole = session.beginHashing(index);
+            MessageDigest digest = sha256();
+            byte[] buffer = new byte[Math.min(BUFFER_SIZE, Math.max(1, length))];
+            long position = offset;
+            int remaining = length;
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (read < 0) throw new EOFException("Chunk " + index + " is shorter than " + length + " bytes.");
+
+                digest.update(buffer, 0, read);
+                if (whole != null) whole.update(buffer, 0, read);
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while (bytes.hasRemaining()) position += channel.write(bytes, position);
+                remaining -= read;
+            }
+            if (input.read() >= 0) throw new IllegalArgumentException("Chunk " + index + " is longer than " + length + " bytes.");
+            if (!MessageDigest.isEqual(digest.digest(), sha256)) {
+                throw new IllegalArgumentException("Checksum of chunk " + index + " doesn't match.");
+            }
+
+            // Acknowledged chunks have to survive a crash.
+            channel.force(false);
+            stored = true;
+        } finally {
+            session.endWrite(index, stored, whole);
+            (stored ? storedChunks : rejectedChunks).increment();
+        }
+
+        save(session);
+        return session.status(expiry);
+    }
+
+    /**
+     * Commits the complete file into the media directory, and closes the session.
+     * @param id The identifier of the session.
+     * @param sha256 The expected SHA-256 checksum of the whole file, or {@code null} to skip the check.
+     *               If it doesn't match, the session is removed, as it can't be repaired by sending chunks again.
+     * @return The result of the upload.
+     * @throws NoSuchElementException If there's no such session.
+     * @throws IllegalStateException If chunks are missing, or still being written.
+     * @throws IOException If the file couldn't be committed, the session stays open then, and the commit can be retried.
+     * */
+    public UploadResult commit(String id, byte[] sha256) throws IOException {
+        UploadSession session = get(id);
+        MessageDigest digest = session.close();
+        try {
+            // Usually the whole file has been hashed as the chunks arrived.
+            long hashedOffset = session.hashedOffset();
+            if (hashedOffset < session.size()) hash(session.file(), hashedOffset, session.size(), digest);
+            byte[] checksum = digest.digest();
+
+            if (sha256 != null && !MessageDigest.isEqual(checksum, sha256)) {
+                remove(session);
+                return UploadResult.failure(session.name(), "Checksum of the file doesn't match.");
+            }
+
+            String hash = HexFormat.of().formatHex(checksum);
+            Path destination = UploadPipeline.destinationOf(mediaDirectory, session.name());
+            boolean deduplicated = dedupStore.commit(session.file(), destination, hash, session.size());
+            remove(session);
+
+            log.debug("Committed upload '{}' as '{}'.", id, destination.getFileName());
+            return UploadResult.success(session.name(), destination.getFileName().toString(), session.size(), hash, deduplicated);
+        } catch (IOException | RuntimeException e) {
+            if (sessions.containsKey(id)) session.reopen();
+            throw e;
+        }
+    }
+
+    /**
+     * Aborts a session, and removes its file.
+     * @param id The identifier of the session.
+     * @return {@code true} if the session has been removed, {@code false} if there's no such session, or it's busy.
+     * */
+    public boolean abort(String id) {
+        UploadSession session = sessions.get(id);
+        if (session == null || !session.expire(Long.MAX_VALUE)) return false;
+        remove(session);
+        return true;
+    }
+
+    private UploadSession get(String id) {
+        UploadSession session = sessions.get(Objects.requireNonNull(id));
+        if (session == null) throw new NoSuchElementException("Upload '" + id + "' not found.");
+        return session;
+    }
+
+    private void removeExpired() {
+        long idleSince = System.currentTimeMillis() - expiry;
+        for (UploadSession session : sessions.values()) {
+            if (session.expire(idleSince)) {
+                log.info("Removing expired upload '{}' of '{}'.", session.id(), session.name());
+                remove(session);
+            }
+        }
+    }
+
+    private void remove(UploadSession session) {
+        sessions.remove(session.id());
+        try {
+            Files.deleteIfExists(session.file());
+            Files.deleteIfExists(sessionFile(session.id()));
+        } catch (IOException e) {
+            log.warn("Couldn't remove files of upload '{}'.", session.id(), e);
+        }
+    }
+
+    private void hash(Path file, long from, long to, MessageDigest digest) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = from;
+            while (position < to) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new EOFException("File '" + file + "' is truncated.");
+                digest.update(buffer.flip());
+                position += read;
+            }
+        }
+    }
+
+    private Path sessionFile(String id) {
+        return sessionDirectory.resolve(id + SESSION_SUFFIX);
+    }
+
+    private void save(UploadSession session) throws IOException {
+        // Saves are serialized per session, so an older state never overwrites a newer one.
+        synchronized (session) {
+            if (!sessions.containsKey(session.id()) && Files.notExists(session.file())) return; // Removed in the meantime.
+
+            Properties properties = new Properties();
+            properties.setProperty("name", session.name());
+            properties.setProperty("size", Long.toString(session.size()));
+            properties.setProperty("chunk-size", Integer.toString(session.chunkSize()));
+            properties.setProperty("chunks", Base64.getEncoder().encodeToString(session.committedChunks()));
+            properties.setProperty("last-activity", Long.toString(session.lastActivity()));
+
+            Path temp = sessionDirectory.resolve(session.id() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(temp, sessionFile(session.id()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sessionDirectory, "*" + SESSION_SUFFIX)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                String id = fileName.substring(0, fileName.length() - SESSION_SUFFIX.length());
+                Path file = mediaDirectory.resolve(PART_PREFIX + id + PART_SUFFIX);
+
+                try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    Properties properties = new Properties();
+                    properties.load(reader);
+                    UploadSession session = new UploadSession(
+                        id,
+                        properties.getProperty("name"),
+                        Long.parseLong(properties.getProperty("size")),
+                        Integer.parseInt(properties.getProperty("chunk-size")),
+                        file,
+                        BitSet.valueOf(Base64.getDecoder().decode(properties.getProperty("chunks"))),
+                        Long.parseLong(properties.getProperty("last-activity"))
+                    );
+                    if (Files.size(file) != session.size()) throw new IOException("Size of the file doesn't match.");
+                    sessions.put(id, session);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Removing unreadable upload '{}': {}", id, e.toString());
+                    Files.deleteIfExists(file);
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        if (!sessions.isEmpty()) log.info("Resumed {} upload sessions.", sessions.size());
+    }
+
+    private void removeOrphans() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(mediaDirectory, PART_PREFIX + "*" + PART_SUFFIX)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                String id = fileName.substring(PART_PREFIX.length(), fileName.length() - PART_SUFFIX.length());
+                if (!sessions.containsKey(id)) {
+                    log.info("Removing file '{}' of an unknown upload.", path);
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            log.warn("Media directory '{}' doesn't exist.", mediaDirectory);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has to support SHA-256.
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package pl.magzik.upload;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import pl.magzik.model.DedupStats;
+import pl.magzik.utils.DirectoryScanner;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed index of the media directory, used to store identical uploads only once.
+ * <p>
+ *     Every stored file is registered with its SHA-256 checksum. When an upload with a known checksum arrives,
+ *     its final name becomes a hard link to the already stored file, so the content occupies the disk only once.
+ *     If the file system doesn't support hard links, the upload is stored as a regular file.
+ * </p>
+ * <p>
+ *     Every entry holds the size and the modification time of the file, as of hashing. A stored file is linked
+ *     only while both still match, so a file edited in place is never mistaken for its old content.
+ *     Changes reported by the {@link pl.magzik.catalog.MediaCatalog}'s watcher are passed to {@link #refresh(String)},
+ *     so changed files are hashed again, and removed ones are dropped.
+ * </p>
+ * <p>
+ *     The index is persisted in {@code cache-dir} as an append-only log of
+ *     {@code <hash>\t<size>\t<modification time>\t<file name>} lines, removals are logged as {@code -\t0\t0\t<file name>}.
+ *     The log is compacted at startup. Files missing in the index (e.g. because the log has been deleted)
+ *     are hashed in the background, and appended as they are hashed, so an interrupted rebuild continues where it stopped.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * */
+@Component
+public class DedupStore {
+
+    private static final Logger log = LoggerFactory.getLogger(DedupStore.class);
+
+    private static final String REMOVED = "-";
+
+    // The log of version 1.1, without modification times, it's replaced by a rebuilt one.
+    private static final String LEGACY_INDEX = "dedup.index";
+
+    private final Path mediaDirectory;
+
+    private final Path indexFile;
+
+    private final DirectoryScanner directoryScanner;
+
+    private final DirectoryScanner.Options scanOptions;
+
+    private final Map<String, Entry> entriesByName = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<String>> namesByHash = new ConcurrentHashMap<>();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final List<BiConsumer<String, String>> hashListeners = new CopyOnWriteArrayList<>();
+
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(
+        Thread.ofPlatform().name("dedup-indexer").daemon().priority(Thread.MIN_PRIORITY).factory()
+    );
+
+    private BufferedWriter writer;
+
+    public DedupStore(@Value("${media-dir}") String mediaDirectory, @Value("${cache-dir}") String cacheDirectory,
+                      @Value("${media-scan.max-depth:8}") int maxDepth, @Value("${media-scan.ignore:.*}") List<String> ignore,
+                      DirectoryScanner directoryScanner) {
+        this.mediaDirectory = Path.of(mediaDirectory).toAbsolutePath();
+        this.indexFile = Path.of(cacheDirectory, "dedup-v2.index");
+        this.directoryScanner = directoryScanner;
+        this.scanOptions = DirectoryScanner.Options.of(maxDepth, ignore);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        Files.deleteIfExists(indexFile.resolveSibling(LEGACY_INDEX));
+        load();
+        writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        indexer.execute(this::indexMissing);
+    }
+
+    @PreDestroy
+    public synchronized void stop() throws IOException {
+        indexer.shutdownNow();
+        if (writer != null) writer.close();
+    }
+
+    /**
+     * Moves the completely written temporary file to its destination.
+     * If a file with the same content is already stored, the destination becomes a hard link to it instead,
+     * and the temporary file is deleted.
+     *
+     * @param temp The temporary file, located in the media directory.
+     * @param destination The final path of the file.
+     * @param hash The hex encoded SHA-256 checksum of the file.
+     * @param size The size of the file.
+     * @return {@code true} if the file has been deduplicated, {@code false} if it has been stored as a new file.
+     * @throws IOException If the file couldn't be stored.
+     * */
+    public boolean commit(Path temp, Path destination, String hash, long size) throws IOException {
+        Objects.requireNonNull(temp);
+        Objects.requireNonNull(destination);
+        Objects.requireNonNull(hash);
+
+        boolean linked = findExisting(hash, size)
+                .map(existing -> link(destination, existing))
+                .orElse(false);
+        if (linked) Files.delete(temp);
+        else Files.move(temp, destination, StandardCopyOption.ATOMIC_MOVE);
+
+        // A link shares the modification time of the stored file.
+        long modified = Files.getLastModifiedTime(destination).toMillis();
+        register(destination.getFileName().toString(), new Entry(hash, size, modified));
+        return linked;
+    }
+
+    /**
+     * Updates the index after a file or a directory in the media directory has been changed, in the background.
+     * Files changed since they were hashed, or not indexed yet, are hashed again. Removed files are unregistered,
+     * so are all files of a removed directory.
+     * @param name The name of the file or the directory, relative to the media directory.
+     * */
+    public void refresh(String name) {
+        Objects.requireNonNull(name);
+        try {
+            indexer.execute(() -> refreshNow(name));
+        } catch (RejectedExecutionException e) {
+            log.debug("Dedup store is stopped, '{}' isn't refreshed.", name);
+        }
+    }
+
+    /**
+     * Adds a listener, notified whenever a file has been hashed, e.g. to store the checksum with other metadata.
+     * @param listener The listener, called with the name of the file, and its hex encoded SHA-256 checksum,
+     *                 on the thread registering the file, which might be the one storing an upload.
+     * */
+    public void addHashListener(BiConsumer<String, String> listener) {
+        hashListeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Removes a file from the index, e.g. after it has been deleted.
+     * @param fileName The name of the file.
+     * */
+    public void unregister(String fileName) {
+        Entry entry = entriesByName.remove(fileName);
+        if (entry == null) return;
+
+        namesByHash.computeIfPresent(entry.hash(), (hash, names) -> {
+            names.remove(fileName);
+            return names.isEmpty() ? null : names;
+        });
+        append(REMOVED, 0, 0, fileName);
+    }
+
+    /**
+     * Finds the checksum of the stored file.
+     * @param fileName The name of the file.
+     * @return An {@link Optional} of the hex encoded SHA-256 checksum, or {@link Optional#empty()} if not indexed yet.
+     * */
+    public Optional<String> findHash(String fileName) {
+        return Optional.ofNullable(entriesByName.get(fileName)).map(Entry::hash);
+    }
+
+    /**
+     * @return Current statistics of the store.
+     * */
+    public DedupStats stats() {
+        long files = 0, bytesSaved = 0;
+        for (Set<String> names : namesByHash.values()) {
+            int count = names.size();
+            files += count;
+            if (count > 1) {
+                Entry any = entriesByName.get(names.iterator().next());
+                if (any != null) bytesSaved += (count - 1) * any.size();
+            }
+        }
+        long blobs = namesByHash.size();
+        return new DedupStats(files, blobs, files - blobs, bytesSaved, pending.get());
+    }
+
+    private Optional<Path> findExisting(String hash, long size) {
+        Set<String> names = namesByHash.getOrDefault(hash, Set.of());
+        for (String name : List.copyOf(names)) {
+            Entry entry = entriesByName.get(name);
+            Path candidate = mediaDirectory.resolve(name);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(candidate, BasicFileAttributes.class);
+                if (entry != null && entry.size() == size && entry.matches(attributes)) return Optional.of(candidate);
+            } catch (IOException e) {
+                log.debug("Couldn't read candidate '{}'.", candidate, e);
+            }
+            // Deleted, or modified since it was hashed, the watcher may not have reported it yet.
+            unregister(name);
+            refresh(name);
+        }
+        return Optional.empty();
+    }
+
+    private void refreshNow(String name) {
+        Path file = mediaDirectory.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Gone, it might have been a directory.
+            unregister(name);
+            String prefix = name + "/";
+            List.copyOf(entriesByName.keySet()).stream()
+                    .filter(entryName -> entryName.startsWith(prefix))
+                    .forEach(this::unregister);
+            return;
+        }
+
+        if (!attributes.isRegularFile() || file.getFileName().toString().startsWith(".")) return;
+        Entry entry = entriesByName.get(name);
+        if (entry != null && entry.matches(attributes)) return;
+
+        try {
+            // Attributes read before hashing, if the file changes meanwhile, it's reported and hashed again.
+            register(name, new Entry(hash(file), attributes.size(), attributes.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            log.debug("Couldn't hash '{}'.", file, e);
+            unregister(name);
+        }
+    }
+
+    private static boolean link(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Couldn't link '{}' to '{}', storing a copy: {}", link, existing, e.toString());
+            return false;
+        }
+    }
+
+    private void register(String fileName, Entry entry) {
+        put(fileName, entry);
+        append(entry.hash(), entry.size(), entry.modified(), fileName);
+        hashListeners.forEach(listener -> listener.accept(fileName, entry.hash()));
+    }
+
+    private void put(String fileName, Entry entry) {
+        Entry previous = entriesByName.put(fileName, entry);
+        if (previous != null && !previous.hash().equals(entry.hash())) {
+            namesByHash.computeIfPresent(previous.hash(), (hash, names) -> {
+                names.remove(fileName);
+                return names.isEmpty() ? null : names;
+            });
+        }
+        namesByHash.computeIfAbsent(entry.hash(), hash -> ConcurrentHashMap.newKeySet()).add(fileName);
+    }
+
+    private synchronized void append(String hash, long size, long modified, String fileName) {
+        if (writer == null) return;
+        try {
+            writer.write(hash + "\t" + size + "\t" + modified + "\t" + fileName);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            log.warn("Couldn't append to dedup index '{}'.", indexFile, e);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(indexFile)) {
+            log.info("Dedup index '{}' not found, it will be rebuilt from '{}'.", indexFile, mediaDirectory);
+            return;
+        }
+
+        long lines = 0;
+        try (Stream<String> stream = Files.lines(indexFile, StandardCharsets.UTF_8)) {
+            for (String line : (Iterable<String>) stream::iterator) {
+                lines++;
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) continue; // Torn write at the end of the log.
+
+                if (parts[0].equals(REMOVED)) {
+                    Entry removed = entriesByName.remove(parts[3]);
+                    if (removed != null) {
+                        namesByHash.computeIfPresent(removed.hash(), (hash, names) -> {
+                            names.remove(parts[3]);
+                            return names.isEmpty() ? null : names;
+                        });
+                    }
+                } else {
+                    put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Dedup index '{}' is corrupted, it will be rebuilt.", indexFile);
+            entriesByName.clear();
+            namesByHash.clear();
+            Files.delete(indexFile);
+            return;
+        }
+
+        if (lines > entriesByName.size()) compact();
+        log.info("Loaded {} entries from dedup index '{}'.", entriesByName.size(), indexFile);
+    }
+
+    private void compact() throws IOException {
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entriesByName.entrySet()) {
+                out.write(e.getValue().hash() + "\t" + e.getValue().size() + "\t" + e.getValue().modified() + "\t" + e.getKey());
+                out.newLine();
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void indexMissing() {
+        // Names relative to the media directory, the same as used by the catalog.
+        Map<String, DirectoryScanner.Entry> present = new HashMap<>();
+        try (Stream<DirectoryScanner.Entry> entries = directoryScanner.scan(mediaDirectory, scanOptions)) {
+            entries.filter(entry -> entry.attributes().isRegularFile())
+                    .filter(entry -> !entry.path().getFileName().toString().startsWith("."))
+                    .forEach(entry -> present.put(entry.name(), entry));
+        } catch (IOException e) {
+            log.error("Couldn't list '{}' for the dedup index.", mediaDirectory, e);
+            return;
+        }
+
+        // Changed while the application was down, or by an older version, which didn't watch the files.
+        List.copyOf(entriesByName.keySet()).stream()
+                .filter(name -> {
+                    Entry entry = entriesByName.get(name);
+                    DirectoryScanner.Entry file = present.get(name);
+                    return entry != null && (file == null || !entry.matches(file.attributes()));
+                })
+                .forEach(this::unregister);
+
+        List<DirectoryScanner.Entry> missing = present.values().stream()
+                .filter(entry -> !entriesByName.containsKey(entry.name()))
+                .toList();
+        if (missing.isEmpty()) return;
+
+        log.info("Hashing {} files missing in the dedup index.", missing.size());
+        pending.set(missing.size());
+        for (DirectoryScanner.Entry entry : missing) {
+            if (Thread.currentThread().isInterrupted()) return;
+            Path file = entry.path();
+            try {
+                BasicFileAttributes attributes = entry.attributes();
+                if (!entriesByName.containsKey(entry.name())) {
+                    register(entry.name(), new Entry(hash(file), attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+            } catch (IOException e) {
+                log.debug("Couldn't hash '{}'.", file, e);
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+        log.info("Dedup index is complete, {} files indexed.", entriesByName.size());
+    }
+
+    private static String hash(Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[256 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) digest.update(buffer, 0, read);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has to support SHA-256.
+        }
+    }
+
+    private record Entry(String hash, long size, long modified) {
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.isRegularFile() && attributes.size() == size
+                && attributes.lastModifiedTime().toMillis() == modified;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package pl.magzik.upload;
+
+import org.springframework.http.ContentDisposition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Reads a {@code multipart/form-data} body part by part, as it is received.
+ * <p>
+ *     Nothing is buffered beyond a single read buffer, the content of a part is read from the body itself,
+ *     up to the next delimiter. Reading the next part skips whatever is left of the current one.
+ * </p>
+ * <p>
+ *     Every buffered byte is scanned for the delimiter only once, however small the reads are:
+ *     a search resumes where the previous one stopped, less the bytes which may begin a delimiter.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * @see UploadPipeline
+ * */
+final class MultipartStream {
+
+    /**
+     * A part of the body.
+     * @param name The name of the form field.
+     * @param fileName The name of the file, as sent by the client, or {@code null} if the part isn't a file.
+     * @param content The content of the part, valid until the next part is read.
+     * */
+    record Part(String name, String fileName, InputStream content) {}
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_HEADERS_SIZE = 16 * 1024;
+
+    private final InputStream input;
+
+    private final long maxSize;
+
+    private final byte[] delimiter;
+
+    private final byte[] buffer;
+
+    private int head, tail;
+
+    // No delimiter begins before this position of the buffer, other than the one found already.
+    private int scanned;
+
+    // Position of the delimiter found in the buffer, if it hasn't been consumed yet, -1 otherwise.
+    private int found = -1;
+
+    private long received;
+
+    private PartInputStream current;
+
+    private boolean finished;
+
+    private boolean broken;
+
+    /**
+     * @param input The body.
+     * @param boundary The boundary of the parts, from the {@code Content-Type} of the body.
+     * @param maxSize The maximum size of the body, in bytes.
+     * @throws NullPointerException If any of the params is null.
+     * */
+    MultipartStream(InputStream input, String boundary, long maxSize) {
+        this.input = Objects.requireNonNull(input);
+        this.maxSize = maxSize;
+        this.delimiter = ("\r\n--" + Objects.requireNonNull(boundary)).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(BUFFER_SIZE, 2 * delimiter.length)];
+
+        // The first delimiter isn't preceded by a line break, pretend it is, so it's found like the others.
+        buffer[tail++] = '\r';
+        buffer[tail++] = '\n';
+        // Anything before it is a preamble, skipped like the rest of a part.
+        this.current = new PartInputStream();
+    }
+
+    /**
+     * Extracts the boundary of the parts from the {@code Content-Type} of a body.
+     * @param contentType The content type.
+     * @return The boundary.
+     * @throws IllegalArgumentException If the body isn't {@code multipart/form-data}, or there's no boundary.
+     * */
+    static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            throw new IllegalArgumentException("Expected a multipart/form-data request.");
+        }
+
+        for (String parameter : contentType.split(";")) {
+            int separator = parameter.indexOf('=');
+            if (separator < 0 || !parameter.substring(0, separator).trim().equalsIgnoreCase("boundary")) continue;
+
+            String boundary = parameter.substring(separator + 1).trim();
+            if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            if (!boundary.isEmpty()) return boundary;
+        }
+        throw new IllegalArgumentException("Missing multipart boundary.");
+    }
+
+    /**
+     * Reads the headers of the next part, skipping the rest of the current one.
+     * @return The next part, or {@code null} if there are no more parts.
+     * @throws IOException If the body couldn't be read, is malformed, or too large.
+     * */
+    Part next() throws IOException {
+        if (finished) return null;
+        current.skipRest();
+
+        // The delimiter is followed by "--" after the last part, and by a line break otherwise.
+        if (!ensure(2)) throw new EOFException("Unexpected end of the multipart body.");
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        readLine(); // Rest of the delimiter line, it may contain padding.
+
+        String name = null, fileName = null;
+        int headersSize = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headersSize += line.length();
+            if (headersSize > MAX_HEADERS_SIZE) throw new IOException("Headers of a multipart part are too large.");
+
+            int separator = line.indexOf(':');
+            if (separator < 0 || !line.substring(0, separator).trim().equalsIgnoreCase("Content-Disposition")) continue;
+
+            try {
+                ContentDisposition disposition = ContentDisposition.parse(line.substring(separator + 1).trim());
+                name = disposition.getName();
+                fileName = disposition.getFilename();
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid Content-Disposition of a multipart part.", e);
+            }
+        }
+
+        current = new PartInputStream();
+        return new Part(name, fileName, current);
+    }
+
+    /**
+     * @return {@code true} if the body ended unexpectedly, couldn't be read, or is too large, so no more parts follow.
+     * */
+    boolean isBroken() {
+        return broken;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            if (!ensure(1)) throw new EOFException("Unexpected end of the multipart body.");
+
+            byte b = buffer[head++];
+            if (b == '\n') break;
+            if (line.size() > MAX_HEADERS_SIZE) throw new IOException("Headers of a multipart part are too large.");
+            line.write(b);
+        }
+
+        String value = line.toString(StandardCharsets.UTF_8);
+        return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    /**
+     * Makes sure at least the given number of bytes are buffered.
+     * @return {@code false} if the body ends before.
+     * */
+    private boolean ensure(int count) throws IOException {
+        while (tail - head < count) {
+            if (!fill()) return false;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            scanned = Math.max(0, scanned - head);
+            found = found >= head ? found - head : -1;
+            head = 0;
+        }
+
+        int read;
+        try {
+            read = input.read(buffer, tail, buffer.length - tail);
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+        // More is only read before the closing delimiter, so the body always ends unexpectedly.
+        if (read == -1) {
+            broken = true;
+            return false;
+        }
+
+        received += read;
+        if (received > maxSize) {
+            broken = true;
+            throw new IOException("The request is larger than " + maxSize + " bytes.");
+        }
+        tail += read;
+        return true;
+    }
+
+    private int indexOfDelimiter() {
+        if (found >= head) return found;
+
+        int from = Math.max(head, scanned), last = tail - delimiter.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buffer[i] != delimiter[0]) continue;
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) continue outer;
+            }
+            scanned = i;
+            return found = i;
+        }
+        // The last bytes may begin a delimiter, they're scanned again once more arrives.
+        scanned = Math.max(from, last + 1);
+        return found = -1;
+    }
+
+    private final class PartInputStream extends InputStream {
+
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (ended) return -1;
+            if (len == 0) return 0;
+
+            while (true) {
+                int found = indexOfDelimiter();
+                // Without a delimiter, the end of the buffer may be the beginning of one, it's kept until more arrives.
+                int available = found >= 0 ? found - head : tail - head - (delimiter.length - 1);
+                if (available > 0) {
+                    int count = Math.min(len, available);
+                    System.arraycopy(buffer, head, b, off, count);
+                    head += count;
+                    return count;
+                }
+                if (found >= 0) {
+                    head = found + delimiter.length;
+                    ended = true;
+                    return -1;
+                }
+                if (!fill()) throw new EOFException("Unexpected end of the multipart body.");
+            }
+        }
+
+        private void skipRest() throws IOException {
+            byte[] discarded = new byte[BUFFER_SIZE];
+            while (read(discarded, 0, discarded.length) != -1) {
+                // Skipped.
+            }
+        }
+    }
+}
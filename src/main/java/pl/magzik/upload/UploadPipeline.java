@@ -0,0 +1,221 @@
+package pl.magzik.upload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.UploadResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Stores uploaded files in the target directory.
+ * <p>
+ *     The {@code multipart/form-data} body of an upload request is read as it arrives, see {@link MultipartStream}.
+ *     Every file is written once, straight into a hidden temporary file in the target directory,
+ *     and hashed with SHA-256 as it is written. Once complete, it is atomically renamed to its final name,
+ *     so other readers (e.g. the {@link pl.magzik.catalog.MediaCatalog}) never see a partially written file.
+ *     Content already present in the directory is linked instead, see {@link DedupStore}.
+ * </p>
+ * <p>
+ *     Files of a request arrive one after another, but every file is committed by its own virtual thread,
+ *     while the next one is being received. The number of files being written or committed at the same time
+ *     is bounded by the {@code upload-io-permits} semaphore, shared across requests.
+ * </p>
+ * <p>
+ *     A failure of one file doesn't affect the others, every file gets its own {@link UploadResult}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.2
+ * @see ChunkedUploads
+ * */
+@Component
+public class UploadPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadPipeline.class);
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Semaphore ioPermits;
+
+    private final long maxFileSize;
+
+    private final long maxRequestSize;
+
+    private final DedupStore dedupStore;
+
+    public UploadPipeline(@Value("${upload-io-permits:4}") int ioPermits,
+                          @Value("${spring.servlet.multipart.max-file-size:1GB}") DataSize maxFileSize,
+                          @Value("${spring.servlet.multipart.max-request-size:10GB}") DataSize maxRequestSize,
+                          DedupStore dedupStore) {
+        this.ioPermits = new Semaphore(ioPermits, true);
+        // Negative sizes mean no limit, as in Spring's multipart settings.
+        this.maxFileSize = maxFileSize.isNegative() ? Long.MAX_VALUE : maxFileSize.toBytes();
+        this.maxRequestSize = maxRequestSize.isNegative() ? Long.MAX_VALUE : maxRequestSize.toBytes();
+        this.dedupStore = dedupStore;
+    }
+
+    /**
+     * Stores all files of a {@code multipart/form-data} body in the directory, as they are received.
+     * Parts without a file name are skipped.
+     *
+     * @param body The body of the request.
+     * @param contentType The content type of the body, with its boundary.
+     * @param directory The target directory.
+     * @return {@link List} of results, in the order of the files in the body.
+     *         If the body ends unexpectedly, the result of the file being received is a failure.
+     * @throws NullPointerException If the body or the directory is null.
+     * @throws IllegalArgumentException If the content type isn't {@code multipart/form-data} with a boundary.
+     * */
+    public List<UploadResult> store(InputStream body, String contentType, Path directory) {
+        Objects.requireNonNull(body);
+        Objects.requireNonNull(directory);
+        MultipartStream parts = new MultipartStream(body, MultipartStream.boundaryOf(contentType), maxRequestSize);
+
+        List<Future<UploadResult>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (!parts.isBroken() && !Thread.currentThread().isInterrupted()) {
+                MultipartStream.Part part;
+                try {
+                    part = parts.next();
+                } catch (IOException e) {
+                    log.warn("Upload request failed: {}", e.getMessage());
+                    futures.add(CompletableFuture.completedFuture(UploadResult.failure(null, e.getMessage())));
+                    break;
+                }
+                if (part == null) break;
+                // Other form fields, or a file input without a file selected.
+                if (part.fileName() == null || part.fileName().isEmpty()) continue;
+
+                futures.add(receive(part, directory, executor));
+            }
+
+            return futures.stream()
+                    .map(UploadPipeline::await)
+                    .toList();
+        }
+    }
+
+    private Future<UploadResult> receive(MultipartStream.Part part, Path directory, ExecutorService executor) {
+        String originalName = part.fileName();
+        Path temp = directory.resolve(".upload-" + UUID.randomUUID() + ".tmp");
+        try {
+            Path destination = destinationOf(directory, originalName);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            long size;
+            ioPermits.acquire();
+            try {
+                size = copy(part.content(), temp, digest, maxFileSize);
+            } finally {
+                ioPermits.release();
+            }
+            String hash = HexFormat.of().formatHex(digest.digest());
+
+            // Committed in the background, while the next file is received.
+            return executor.submit(() -> commit(originalName, temp, destination, hash, size));
+        } catch (IOException | NoSuchAlgorithmException | IllegalArgumentException e) {
+            log.warn("Upload of '{}' failed: {}", originalName, e.getMessage());
+            deleteQuietly(temp);
+            return CompletableFuture.completedFuture(UploadResult.failure(originalName, e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteQuietly(temp);
+            return CompletableFuture.completedFuture(UploadResult.failure(originalName, "Upload interrupted."));
+        }
+    }
+
+    private UploadResult commit(String originalName, Path temp, Path destination, String hash, long size) {
+        try {
+            ioPermits.acquire();
+            try {
+                boolean deduplicated = dedupStore.commit(temp, destination, hash, size);
+                return UploadResult.success(originalName, destination.getFileName().toString(), size, hash, deduplicated);
+            } finally {
+                ioPermits.release();
+            }
+        } catch (IOException e) {
+            log.warn("Upload of '{}' failed: {}", originalName, e.getMessage());
+            return UploadResult.failure(originalName, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return UploadResult.failure(originalName, "Upload interrupted.");
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Chooses a unique name of an uploaded file in the directory.
+     * @param directory The target directory.
+     * @param originalName The name of the file, as sent by the client.
+     * @return The path of the file in the directory.
+     * @throws IllegalArgumentException If the name is missing, invalid, or the name of a hidden file.
+     * */
+    static Path destinationOf(Path directory, String originalName) {
+        if (originalName == null || originalName.isBlank()) throw new IllegalArgumentException("Missing file name.");
+
+        try {
+            // Clients may send paths, only the last segment is used.
+            Path name = Path.of(originalName).getFileName();
+            if (name == null) throw new IllegalArgumentException("Missing file name.");
+            String fileName = name.toString();
+            if (fileName.startsWith(".")) throw new IllegalArgumentException("Hidden files are not allowed.");
+
+            return directory.resolve(String.format("%s_%s", UUID.randomUUID(), fileName));
+        } catch (InvalidPathException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    private static long copy(InputStream input, Path target, MessageDigest digest, long maxSize) throws IOException {
+        try (OutputStream output = new DigestOutputStream(Files.newOutputStream(target, StandardOpenOption.CREATE_NEW), digest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                size += read;
+                if (size > maxSize) throw new IOException("The file is larger than " + maxSize + " bytes.");
+                output.write(buffer, 0, read);
+            }
+            return size;
+        }
+    }
+
+    private static UploadResult await(Future<UploadResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return UploadResult.failure(null, "Upload interrupted.");
+        } catch (ExecutionException e) {
+            return UploadResult.failure(null, e.getCause().getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Couldn't delete temporary file '{}'.", path, e);
+        }
+    }
+}
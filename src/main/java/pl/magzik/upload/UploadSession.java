@@ -0,0 +1,206 @@
+package pl.magzik.upload;
+
+import pl.magzik.model.UploadStatus;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.BitSet;
+
+/**
+ * State of a single resumable upload, see {@link ChunkedUploads}.
+ * <p>
+ *     Chunks may arrive in any order, and in parallel. The SHA-256 checksum of the whole file is computed
+ *     as chunks arrive in order, so in the common case committing doesn't read the file again.
+ *     Chunks arriving out of order (e.g. after a restart) are hashed on commit.
+ * </p>
+ * <p>
+ *     A chunk is written by one request at a time, and never again, once it's stored,
+ *     so neither a parallel, nor a late request can change its verified content.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * */
+final class UploadSession {
+
+    private final String id;
+
+    private final String name;
+
+    private final long size;
+
+    private final int chunkSize;
+
+    private final int chunks;
+
+    private final Path file;
+
+    private final BitSet committed;
+
+    // Chunks being written.
+    private final BitSet writing = new BitSet();
+
+    private long lastActivity;
+
+    private int writers;
+
+    private boolean closed;
+
+    // Checksum of the first hashedChunks chunks.
+    private MessageDigest digest;
+
+    private int hashedChunks;
+
+    private boolean hashing;
+
+    UploadSession(String id, String name, long size, int chunkSize, Path file, BitSet committed, long lastActivity) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+        this.file = file;
+        this.committed = committed;
+        this.lastActivity = lastActivity;
+        this.digest = ChunkedUploads.sha256();
+    }
+
+    String id() {
+        return id;
+    }
+
+    String name() {
+        return name;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * @throws IllegalArgumentException If there's no chunk with the given index.
+     * */
+    long offsetOf(int index) {
+        if (index < 0 || index >= chunks) throw new IllegalArgumentException("Chunk " + index + " out of range.");
+        return (long) index * chunkSize;
+    }
+
+    /**
+     * @throws IllegalArgumentException If there's no chunk with the given index.
+     * */
+    int lengthOf(int index) {
+        return (int) Math.min(chunkSize, size - offsetOf(index));
+    }
+
+    /**
+     * Registers a chunk being written, unless it's stored already.
+     * @param index The index of the chunk.
+     * @return {@code false} if the chunk is stored already, so it mustn't be written again.
+     * @throws IllegalStateException If the session is already closed, or the chunk is being written by another request.
+     * */
+    synchronized boolean beginWrite(int index) {
+        if (closed) throw new IllegalStateException("Upload '" + id + "' is closed.");
+        lastActivity = System.currentTimeMillis();
+        if (committed.get(index)) return false;
+        if (writing.get(index)) throw new IllegalStateException("Chunk " + index + " of '" + id + "' is being written.");
+
+        writing.set(index);
+        writers++;
+        return true;
+    }
+
+    /**
+     * Starts hashing a chunk registered by {@link #beginWrite(int)} into the whole file checksum, if it's the next one.
+     * @param index The index of the chunk.
+     * @return A copy of the whole file checksum, to be updated with the chunk, or {@code null} if it's not the next one to hash.
+     * */
+    synchronized MessageDigest beginHashing(int index) {
+        if (hashing || index != hashedChunks) return null;
+        try {
+            MessageDigest copy = (MessageDigest) digest.clone();
+            hashing = true;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            return null; // Hashed on commit then.
+        }
+    }
+
+    /**
+     * Completes a chunk registered by {@link #beginWrite(int)}.
+     * @param index The index of the chunk.
+     * @param stored Whether the chunk has been stored and verified.
+     * @param updated The checksum returned by {@link #beginHashing(int)}, updated with the chunk, or {@code null}.
+     * */
+    synchronized void endWrite(int index, boolean stored, MessageDigest updated) {
+        writing.clear(index);
+        writers--;
+        lastActivity = System.currentTimeMillis();
+        if (updated != null) hashing = false;
+        if (!stored) return;
+
+        committed.set(index);
+        if (updated != null) {
+            digest = updated;
+            hashedChunks++;
+        }
+    }
+
+    /**
+     * Closes the session for writing, as all chunks are stored.
+     * @return The checksum of the first {@link #hashedOffset()} bytes of the file.
+     * @throws IllegalStateException If the session is closed, chunks are missing, or still being written.
+     * */
+    synchronized MessageDigest close() {
+        if (closed) throw new IllegalStateException("Upload '" + id + "' is closed.");
+        if (writers > 0) throw new IllegalStateException("Chunks of '" + id + "' are still being written.");
+        int missing = chunks - committed.cardinality();
+        if (missing > 0) throw new IllegalStateException(missing + " chunks of '" + id + "' are missing.");
+
+        closed = true;
+        return digest;
+    }
+
+    /**
+     * Opens the session closed by {@link #close()} again, e.g. after a failed commit.
+     * */
+    synchronized void reopen() {
+        closed = false;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Closes the session, if it's idle since the given time.
+     * @return {@code true} if the session has been closed by this call.
+     * */
+    synchronized boolean expire(long idleSince) {
+        if (closed || writers > 0 || lastActivity >= idleSince) return false;
+        closed = true;
+        return true;
+    }
+
+    synchronized long hashedOffset() {
+        return Math.min(size, (long) hashedChunks * chunkSize);
+    }
+
+    synchronized long lastActivity() {
+        return lastActivity;
+    }
+
+    synchronized byte[] committedChunks() {
+        return committed.toByteArray();
+    }
+
+    synchronized UploadStatus status(long expiry) {
+        int contiguous = committed.nextClearBit(0);
+        long offset = Math.min(size, (long) contiguous * chunkSize);
+        return new UploadStatus(id, name, size, chunkSize, chunks, committed.cardinality(), offset, lastActivity + expiry);
+    }
+}
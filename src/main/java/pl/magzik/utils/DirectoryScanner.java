@@ -0,0 +1,306 @@
+package pl.magzik.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Recursive, parallel scanner of directory trees.
+ * <p>
+ *     Every directory is listed by {@link Files#walkFileTree}, which reads attributes of all entries together with the listing,
+ *     and subdirectories are listed in parallel by a {@link ForkJoinPool}. Entries are streamed lazily, in batches,
+ *     through a bounded queue, so a slow consumer pauses the scan, instead of piling up the whole tree in memory.
+ * </p>
+ * <p>
+ *     Symbolic links are followed, the depth limit guards against link cycles.
+ *     Directories, which can't be read, are logged and skipped. Workers run with the minimal thread priority.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.1
+ * */
+@Component
+public class DirectoryScanner {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryScanner.class);
+
+    // Entries are handed over in batches, a hand-over per entry would cost more than reading it.
+    private static final int BATCH_SIZE = 256;
+
+    // Batches buffered ahead of the consumer, before the scan pauses.
+    private static final int QUEUE_CAPACITY = 16;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    // Marks the end of the scan in the queue.
+    private static final List<Entry> END = List.of();
+
+    private final ForkJoinPool pool;
+
+    private final Timer scanTimer;
+
+    public DirectoryScanner(@Value("${directory-scan.threads:4}") int threads, MeterRegistry meterRegistry) {
+        // Scans run in the background, they mustn't compete with serving requests.
+        this.pool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("directory-scanner-" + thread.getPoolIndex());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+        this.scanTimer = Timer.builder("myhub.directory.scan")
+                .description("Time of scanning a directory tree")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Scans the whole tree of the given directory.
+     * @see #scan(Path, Path, Options)
+     * */
+    public Stream<Entry> scan(Path root, Options options) throws IOException {
+        return scan(root, root, options);
+    }
+
+    /**
+     * Scans the subtree of the given directory lazily. Both files and directories are reported, in no particular order.
+     * Names, depths and ignore patterns are all relative to the root, so a subtree can be rescanned alone.
+     * <p>
+     *     The returned stream has to be closed, otherwise the scan stays paused until the application stops.
+     *     Closing it early cancels the scan.
+     * </p>
+     *
+     * @param root The root of the tree, relative to which entries are named.
+     * @param directory The directory to scan, the root, or a directory below it.
+     * @param options The depth limit and ignore patterns.
+     * @return {@link Stream} of entries found below the directory.
+     * @throws NotDirectoryException If the directory doesn't exist, or is not a directory.
+     * @throws NullPointerException If any of the params is null.
+     * */
+    public Stream<Entry> scan(Path root, Path directory, Options options) throws IOException {
+        Objects.requireNonNull(root);
+        Objects.requireNonNull(directory);
+        Objects.requireNonNull(options);
+        if (!Files.isDirectory(directory)) throw new NotDirectoryException(directory.toString());
+
+        Scan scan = new Scan(root.toAbsolutePath(), options);
+        Path start = directory.toAbsolutePath();
+        Timer.Sample sample = Timer.start();
+        pool.execute(() -> {
+            try {
+                if (scan.depthOf(start) < options.maxDepth()) new Walk(scan, start).invoke();
+            } catch (RuntimeException e) {
+                log.error("Scan of '{}' failed.", start, e);
+            } finally {
+                sample.stop(scanTimer);
+                scan.offer(END);
+            }
+        });
+
+        return StreamSupport.stream(scan, false).onClose(scan::cancel);
+    }
+
+    /**
+     * Converts the path relative to the root into an entry name, which uses '/' as the separator on every platform.
+     * @param relative The relative path.
+     * @return The name.
+     * */
+    public static String nameOf(Path relative) {
+        String separator = relative.getFileSystem().getSeparator();
+        String name = relative.toString();
+        return separator.equals("/") ? name : name.replace(separator, "/");
+    }
+
+    /**
+     * Represents a single file, or directory found.
+     * @param path The absolute path of the entry.
+     * @param name The path relative to the root, separated by '/'.
+     * @param depth The depth of the entry, entries directly in the root have the depth of 1.
+     * @param attributes The attributes read together with the listing.
+     * */
+    public record Entry(Path path, String name, int depth, BasicFileAttributes attributes) {}
+
+    /**
+     * Options of a scan.
+     * @param maxDepth The maximal depth of reported entries, 1 lists only the root.
+     * @param ignore Matchers of ignored entries. Ignored directories aren't descended into.
+     * */
+    public record Options(int maxDepth, List<PathMatcher> ignore) {
+
+        public Options {
+            if (maxDepth < 1) throw new IllegalArgumentException("Maximal depth must be positive, got: " + maxDepth);
+            ignore = List.copyOf(ignore);
+        }
+
+        /**
+         * Creates options from glob patterns. Patterns containing '/' match the path relative to the root
+         * (e.g. {@code raw/**}), others match the name of the entry alone (e.g. {@code .*} or {@code *.tmp}).
+         * @param maxDepth The maximal depth of reported entries.
+         * @param globs The glob patterns of ignored entries.
+         * @return The options.
+         * */
+        public static Options of(int maxDepth, Collection<String> globs) {
+            FileSystem fileSystem = FileSystems.getDefault();
+            return new Options(maxDepth, globs.stream()
+                    .filter(glob -> !glob.isBlank())
+                    .map(glob -> {
+                        PathMatcher matcher = fileSystem.getPathMatcher("glob:" + glob.strip());
+                        return glob.contains("/") ? matcher : (PathMatcher) path -> matcher.matches(path.getFileName());
+                    })
+                    .toList());
+        }
+
+        /**
+         * @param relative The path of the entry, relative to the root.
+         * @return {@code true} if the entry is ignored.
+         * */
+        public boolean ignores(Path relative) {
+            for (PathMatcher matcher : ignore) {
+                if (matcher.matches(relative)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * State of a single scan, shared by its tasks, and the {@link Spliterator} of its stream.
+     * */
+    private static final class Scan extends Spliterators.AbstractSpliterator<Entry> {
+
+        private final Path root;
+
+        private final Options options;
+
+        private final BlockingQueue<List<Entry>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        private volatile boolean cancelled;
+
+        private boolean done;
+
+        // Batch being consumed.
+        private Iterator<Entry> current = Collections.emptyIterator();
+
+        private Scan(Path root, Options options) {
+            super(Long.MAX_VALUE, Spliterator.DISTINCT | Spliterator.NONNULL);
+            this.root = root;
+            this.options = options;
+        }
+
+        private int depthOf(Path path) {
+            return root.equals(path) ? 0 : root.relativize(path).getNameCount();
+        }
+
+        /**
+         * Waits, until the consumer makes room for the batch.
+         * @return {@code false} if the scan has been cancelled.
+         * */
+        private boolean offer(List<Entry> batch) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+            }
+            return false;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            queue.clear(); // Wakes up the waiting tasks.
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Entry> action) {
+            while (!current.hasNext()) {
+                if (done) return false;
+
+                List<Entry> batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    return false;
+                }
+
+                if (batch == END) done = true;
+                else current = batch.iterator();
+            }
+
+            action.accept(current.next());
+            return true;
+        }
+    }
+
+    /**
+     * Lists a single directory, and forks a task for every subdirectory.
+     * */
+    private static final class Walk extends RecursiveAction {
+
+        private final Scan scan;
+
+        private final Path directory;
+
+        private Walk(Scan scan, Path directory) {
+            this.scan = scan;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (scan.cancelled) return;
+
+            List<Walk> subtrees = new ArrayList<>();
+            List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                // With the depth of 1, subdirectories are visited as files, with their attributes.
+                Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        Path relative = scan.root.relativize(file);
+                        if (scan.options.ignores(relative)) return FileVisitResult.CONTINUE;
+
+                        int depth = relative.getNameCount();
+                        batch.add(new Entry(file, nameOf(relative), depth, attributes));
+                        if (attributes.isDirectory() && depth < scan.options.maxDepth()) subtrees.add(new Walk(scan, file));
+
+                        if (batch.size() < BATCH_SIZE) return FileVisitResult.CONTINUE;
+                        boolean accepted = scan.offer(List.copyOf(batch));
+                        batch.clear();
+                        return accepted ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        log.debug("Couldn't read '{}'.", file, e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                log.warn("Couldn't scan directory '{}'.", directory, e);
+            }
+
+            if (!batch.isEmpty() && !scan.offer(batch)) return;
+            invokeAll(subtrees);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package pl.magzik.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Thin wrapper around {@link WatchService}, which dispatches file system events
+ * of the registered directories to the given {@link Listener} on a single daemon thread.
+ * <p>
+ *     Paths passed to the listener are always resolved against the watched directory,
+ *     so the listener doesn't have to keep track of registered keys.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+public class DirectoryWatcher implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private final WatchService watchService;
+
+    private final Listener listener;
+
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+
+    private final Thread thread;
+
+    /**
+     * Creates a new watcher. No directory is watched until {@link #register(Path)} is called.
+     *
+     * @param name The name of the dispatching thread.
+     * @param listener The listener notified about every event.
+     * @throws IOException If the {@link WatchService} couldn't be created.
+     * @throws NullPointerException If any of the params is null.
+     * */
+    public DirectoryWatcher(String name, Listener listener) throws IOException {
+        Objects.requireNonNull(name);
+        this.listener = Objects.requireNonNull(listener);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = Thread.ofPlatform()
+                            .name(name)
+                            .daemon()
+                            .unstarted(this::run);
+    }
+
+    /**
+     * Registers given directory for create, delete and modify events.
+     *
+     * @param directory The directory to watch.
+     * @throws IOException If the directory couldn't be registered.
+     * */
+    public void register(Path directory) throws IOException {
+        Objects.requireNonNull(directory);
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        directories.put(key, directory);
+    }
+
+    /**
+     * Starts dispatching events.
+     * */
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path directory = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == OVERFLOW || directory == null) {
+                        listener.onOverflow();
+                        continue;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    WatchEvent<Path> pathEvent = (WatchEvent<Path>) event;
+                    listener.onEvent(pathEvent.kind(), directory.resolve(pathEvent.context()));
+                } catch (RuntimeException e) {
+                    // A single broken event mustn't stop the watcher.
+                    log.warn("Couldn't handle event '{}' in '{}'.", event.kind(), directory, e);
+                }
+            }
+
+            if (!key.reset()) {
+                directories.remove(key);
+                if (directory != null) listener.onDirectoryInvalid(directory);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+
+    /**
+     * Receives events dispatched by the {@link DirectoryWatcher}.
+     * */
+    public interface Listener {
+
+        /**
+         * Called for every create, delete or modify event.
+         *
+         * @param kind The kind of the event.
+         * @param path The absolute path of the affected entry.
+         * */
+        void onEvent(WatchEvent.Kind<Path> kind, Path path);
+
+        /**
+         * Called when events have been lost, the listener should rescan the watched directories.
+         * */
+        void onOverflow();
+
+        /**
+         * Called when a watched directory is no longer accessible (e.g. it has been deleted).
+         *
+         * @param directory The directory which is no longer watched.
+         * */
+        default void onDirectoryInvalid(Path directory) {}
+    }
+}
@@ -0,0 +1,188 @@
+package pl.magzik.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded priority queue of background jobs, executed by a fixed number of low priority daemon threads.
+ * <p>
+ *     Jobs are taken by their {@link Priority}, and in the order of submission within the same priority.
+ *     Every job has a key, a job is never queued twice under the same key. Submitting a queued key
+ *     with a more urgent priority moves it forward.
+ * </p>
+ * <p>
+ *     Only {@link Priority#BACKGROUND} jobs are bounded, their submitters wait for the room in the queue,
+ *     so a scan of a large directory never piles up more than {@code capacity} jobs.
+ *     Other jobs are always accepted, they are bounded by the events producing them (e.g. uploads).
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+public class JobQueue implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(JobQueue.class);
+
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    private final PriorityQueue<Job> queue = new PriorityQueue<>();
+
+    private final Map<String, Job> queued = new HashMap<>();
+
+    private final List<Thread> workers = new ArrayList<>();
+
+    private long sequence;
+
+    private int background;
+
+    private boolean closed;
+
+    /**
+     * Creates the queue, and starts its workers.
+     *
+     * @param name The prefix of the worker thread names.
+     * @param threads The number of workers.
+     * @param capacity The maximal number of queued {@link Priority#BACKGROUND} jobs.
+     * */
+    public JobQueue(String name, int threads, int capacity) {
+        Objects.requireNonNull(name);
+        if (threads < 1 || capacity < 1) throw new IllegalArgumentException("Both threads and capacity must be positive.");
+        this.capacity = capacity;
+
+        Thread.Builder builder = Thread.ofPlatform().name(name + "-", 0).daemon().priority(Thread.MIN_PRIORITY);
+        for (int i = 0; i < threads; i++) workers.add(builder.start(this::run));
+    }
+
+    /**
+     * Queues the job, unless a job with the same key is queued already.
+     * {@link Priority#BACKGROUND} jobs wait until there is room in the queue.
+     *
+     * @param key The key of the job, e.g. the name of the processed file.
+     * @param priority The priority of the job.
+     * @param task The job.
+     * @return {@code true} if the job has been queued, {@code false} if the key is already queued, or the queue is closed.
+     * @throws InterruptedException If interrupted while waiting for the room in the queue.
+     * */
+    public boolean submit(String key, Priority priority, Runnable task) throws InterruptedException {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(priority);
+        Objects.requireNonNull(task);
+
+        lock.lockInterruptibly();
+        try {
+            if (priority == Priority.BACKGROUND) {
+                while (!closed && background >= capacity && !queued.containsKey(key)) notFull.await();
+            }
+            if (closed) return false;
+
+            Job existing = queued.get(key);
+            if (existing != null) {
+                if (priority.compareTo(existing.priority()) >= 0) return false;
+                // Move the job forward, keeping its task.
+                queue.remove(existing);
+                forget(existing);
+                task = existing.task();
+            }
+
+            Job job = new Job(key, priority, sequence++, task);
+            queue.add(job);
+            queued.put(key, job);
+            if (priority == Priority.BACKGROUND) background++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of queued jobs, not counting the running ones.
+     * */
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers. Queued jobs are discarded, running jobs are interrupted.
+     * */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            queued.clear();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void run() {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                while (!closed && queue.isEmpty()) notEmpty.await();
+                if (closed) return;
+                job = queue.poll();
+                forget(job);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                job.task().run();
+            } catch (RuntimeException e) {
+                // A single broken job mustn't stop the worker.
+                log.warn("Job '{}' failed.", job.key(), e);
+            }
+        }
+    }
+
+    // Requires the lock, the job has to be removed from the queue already.
+    private void forget(Job job) {
+        queued.remove(job.key());
+        if (job.priority() == Priority.BACKGROUND && --background < capacity) notFull.signal();
+    }
+
+    /**
+     * Priorities of jobs, the most urgent first.
+     * */
+    public enum Priority {
+        /** Files just uploaded by a user, who is likely to look at them right away. */
+        UPLOAD,
+        /** Files changed behind the application's back. */
+        CHANGE,
+        /** Files found by a scan of the whole directory. */
+        BACKGROUND
+    }
+
+    private record Job(String key, Priority priority, long sequence, Runnable task) implements Comparable<Job> {
+
+        @Override
+        public int compareTo(Job job) {
+            int byPriority = priority.compareTo(job.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, job.sequence);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package pl.magzik.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Filter shaping the bandwidth of downloads, such as media files and game assets, with {@link TokenBucket token buckets}.
+ * <p>
+ *     Every route has a limit of all its transfers in total, and a limit of the transfers of a single client
+ *     (by its remote address). Response bytes are sent in chunks, each reserved in both buckets first,
+ *     so concurrent transfers share the bandwidth equally, and a client pulling a whole library can't saturate
+ *     the uplink, no matter how many connections it opens.
+ * </p>
+ * <p>
+ *     Waiting blocks the request thread, which is cheap on virtual threads. Shaped requests don't use Tomcat's
+ *     {@code sendfile}, as it bypasses the response stream.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see TransferLimiter
+ * */
+public class BandwidthShaper extends OncePerRequestFilter {
+
+    // Bytes sent per reservation, small enough to keep the rate smooth, large enough to keep the overhead low.
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // Buckets of the clients not seen for the longest time are dropped first.
+    private static final int MAX_CLIENTS = 10_000;
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private final long clientBytesPerSecond;
+
+    // Null, if there's no limit.
+    private final TokenBucket bucket;
+
+    // Access ordered, so the eldest entry is always the least recently used one.
+    private final Map<String, TokenBucket> clients = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final Counter bytes;
+
+    private final Counter delay;
+
+    /**
+     * @param route The name of the shaped route, used in metrics.
+     * @param bytesPerSecond The limit of all transfers of the route together, or 0 for no limit.
+     * @param clientBytesPerSecond The limit of all transfers of a single client, or 0 for no limit.
+     * @param meterRegistry The registry of the metrics.
+     * */
+    public BandwidthShaper(String route, long bytesPerSecond, long clientBytesPerSecond, MeterRegistry meterRegistry) {
+        Objects.requireNonNull(route);
+        this.clientBytesPerSecond = Math.max(0, clientBytesPerSecond);
+        this.bucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+
+        Gauge.builder("myhub.bandwidth.limit", () -> Math.max(0, bytesPerSecond))
+                .description("Configured limit of the bandwidth in bytes per second, 0 if there's none")
+                .tags("route", route, "scope", "total")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("myhub.bandwidth.limit", () -> this.clientBytesPerSecond)
+                .description("Configured limit of the bandwidth in bytes per second, 0 if there's none")
+                .tags("route", route, "scope", "client")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("myhub.bandwidth.active", active, AtomicInteger::get)
+                .description("Number of shaped transfers in progress")
+                .tag("route", route)
+                .register(meterRegistry);
+        this.bytes = Counter.builder("myhub.bandwidth.bytes")
+                .description("Number of bytes sent by shaped transfers")
+                .tag("route", route)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        this.delay = Counter.builder("myhub.bandwidth.delay")
+                .description("Time shaped transfers spent waiting for the bandwidth")
+                .tag("route", route)
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return bucket == null && clientBytesPerSecond == 0;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        TokenBucket clientBucket = clientBytesPerSecond > 0 ? clientBucket(request.getRemoteAddr()) : null;
+
+        HttpServletRequest shapedRequest = new HttpServletRequestWrapper(request) {
+            @Override
+            public Object getAttribute(String name) {
+                return SENDFILE_SUPPORT.equals(name) ? Boolean.FALSE : super.getAttribute(name);
+            }
+        };
+
+        active.incrementAndGet();
+        try {
+            filterChain.doFilter(shapedRequest, new ShapedResponse(response, clientBucket));
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private TokenBucket clientBucket(String client) {
+        synchronized (clients) {
+            return clients.computeIfAbsent(client, c -> new TokenBucket(clientBytesPerSecond));
+        }
+    }
+
+    private void throttle(int length, TokenBucket clientBucket) throws IOException {
+        long wait = bucket == null ? 0 : bucket.reserve(length);
+        if (clientBucket != null) wait = Math.max(wait, clientBucket.reserve(length));
+        bytes.increment(length);
+        if (wait == 0) return;
+
+        delay.increment(wait / 1e9);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the bandwidth.");
+        }
+    }
+
+    private final class ShapedResponse extends HttpServletResponseWrapper {
+
+        private final TokenBucket clientBucket;
+
+        private ServletOutputStream output;
+
+        ShapedResponse(HttpServletResponse response, TokenBucket clientBucket) {
+            super(response);
+            this.clientBucket = clientBucket;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (output == null) output = new ShapedOutputStream(super.getOutputStream(), clientBucket);
+            return output;
+        }
+    }
+
+    private final class ShapedOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream output;
+
+        private final TokenBucket clientBucket;
+
+        ShapedOutputStream(ServletOutputStream output, TokenBucket clientBucket) {
+            this.output = output;
+            this.clientBucket = clientBucket;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            throttle(1, clientBucket);
+            output.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            while (len > 0) {
+                int chunk = Math.min(len, CHUNK_SIZE);
+                throttle(chunk, clientBucket);
+                output.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return output.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            output.setWriteListener(writeListener);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package pl.magzik.web;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.catalog.GameRegistry;
+import pl.magzik.model.Game;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Prepares game assets for delivery, in the background.
+ * <p>
+ *     Whenever a game is registered, or its directory changes, every asset of the game is hashed (SHA-256),
+ *     and compressible assets (scripts, styles, WebAssembly, etc.) get a gzip variant,
+ *     stored in {@code cache-dir/games} with the same relative path and a {@code .gz} suffix.
+ *     Assets which haven't changed since the last run are skipped.
+ * </p>
+ * <p>
+ *     The JDK has no Brotli encoder, so Brotli variants aren't generated.
+ *     However, {@code .br} files shipped inside the game bundle (as many game engines do) are served by the
+ *     {@link GameAssetResolver}.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see GameAssetResolver
+ * */
+@Component
+public class GameAssetCompressor {
+
+    private static final Logger log = LoggerFactory.getLogger(GameAssetCompressor.class);
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = Set.of(
+        "html", "htm", "js", "mjs", "css", "json", "map", "wasm", "svg", "xml", "txt", "csv", "data", "obj", "gltf"
+    );
+
+    private final GameRegistry gameRegistry;
+
+    private final Path cacheDirectory;
+
+    private final long minSize;
+
+    private final Map<Path, Digest> digests = new ConcurrentHashMap<>();
+
+    // Games waiting for processing, so bursts of watcher events end up in a single run.
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+        Thread.ofPlatform().name("game-asset-compressor").daemon().priority(Thread.MIN_PRIORITY).factory()
+    );
+
+    public GameAssetCompressor(
+        GameRegistry gameRegistry,
+        @Value("${cache-dir}") String cacheDirectory,
+        @Value("${game-assets.compression-min-size:1KB}") DataSize minSize
+    ) {
+        this.gameRegistry = gameRegistry;
+        this.cacheDirectory = Path.of(cacheDirectory, "games").toAbsolutePath();
+        this.minSize = minSize.toBytes();
+    }
+
+    @PostConstruct
+    public void start() {
+        gameRegistry.addListener(this::schedule);
+        gameRegistry.values().forEach(this::schedule);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules processing of all assets of the given game.
+     * @param game The game.
+     * */
+    public void schedule(Game game) {
+        Objects.requireNonNull(game);
+        if (!queued.add(game.name())) return;
+
+        executor.execute(() -> {
+            queued.remove(game.name());
+            process(gameRegistry.directoryOf(game));
+        });
+    }
+
+    /**
+     * Finds the up-to-date gzip variant of the asset.
+     * @param asset The absolute path of the original asset.
+     * @param attributes Current attributes of the original asset.
+     * @return An {@link Optional} of the compressed file, or {@link Optional#empty()} if there is none (yet).
+     * */
+    public Optional<Path> findGzip(Path asset, BasicFileAttributes attributes) {
+        Digest digest = digests.get(asset);
+        if (digest == null || !digest.compressed() || !digest.matches(attributes)) return Optional.empty();
+        return Optional.of(gzipPathOf(asset));
+    }
+
+    /**
+     * Finds the content hash of the asset.
+     * @param asset The absolute path of the original asset.
+     * @param attributes Current attributes of the original asset.
+     * @return An {@link Optional} of the hex encoded SHA-256, or {@link Optional#empty()} if it hasn't been hashed (yet).
+     * */
+    public Optional<String> findHash(Path asset, BasicFileAttributes attributes) {
+        Digest digest = digests.get(asset);
+        if (digest == null || !digest.matches(attributes)) return Optional.empty();
+        return Optional.of(digest.sha256());
+    }
+
+    private void process(Path gameDirectory) {
+        long start = System.nanoTime();
+        int processed = 0;
+
+        try (Stream<Path> files = Files.walk(gameDirectory)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                if (Thread.currentThread().isInterrupted()) return;
+                try {
+                    if (processFile(file.toAbsolutePath())) processed++;
+                } catch (IOException e) {
+                    log.warn("Couldn't process game asset '{}'.", file, e);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Couldn't walk game directory '{}'.", gameDirectory, e);
+        }
+
+        if (processed > 0) {
+            log.info("Processed {} assets of '{}' in {} ms.", processed, gameDirectory.getFileName(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private boolean processFile(Path asset) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(asset, BasicFileAttributes.class);
+        Digest current = digests.get(asset);
+        if (current != null && current.matches(attributes)) return false;
+
+        boolean compress = attributes.size() >= minSize && isCompressible(asset);
+        Path gzip = gzipPathOf(asset);
+        Path temp = null;
+
+        MessageDigest sha256 = sha256();
+        try (InputStream input = Files.newInputStream(asset)) {
+            OutputStream output = OutputStream.nullOutputStream();
+            if (compress) {
+                Files.createDirectories(gzip.getParent());
+                temp = Files.createTempFile(gzip.getParent(), ".", ".tmp");
+                output = new GZIPOutputStream(Files.newOutputStream(temp), 64 * 1024);
+            }
+
+            try (OutputStream out = output) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    sha256.update(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+            }
+
+            // Keep the variant only if it's worth it.
+            if (compress && Files.size(temp) < attributes.size() * 0.9) {
+                Files.move(temp, gzip, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                compress = false;
+                Files.deleteIfExists(gzip);
+            }
+        } finally {
+            if (temp != null) Files.deleteIfExists(temp);
+        }
+
+        digests.put(asset, new Digest(attributes.size(), attributes.lastModifiedTime(),
+            HexFormat.of().formatHex(sha256.digest()), compress));
+        return true;
+    }
+
+    private Path gzipPathOf(Path asset) {
+        Path relative = gameRegistry.directory().relativize(asset);
+        return cacheDirectory.resolve(relative + ".gz");
+    }
+
+    private static boolean isCompressible(Path asset) {
+        String name = asset.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM has to support SHA-256.
+        }
+    }
+
+    private record Digest(long size, FileTime lastModified, String sha256, boolean compressed) {
+
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime());
+        }
+    }
+}
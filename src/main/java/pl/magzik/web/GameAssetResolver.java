@@ -0,0 +1,177 @@
+package pl.magzik.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.resource.ResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * {@link ResourceResolver} choosing the best representation of a game asset.
+ * <p>
+ *     Depending on the {@code Accept-Encoding} header of the request, it picks a Brotli variant
+ *     shipped with the game ({@code <asset>.br}), the gzip variant prepared by the {@link GameAssetCompressor},
+ *     or the original file. The chosen representation carries a content hash based ETag.
+ * </p>
+ * <p>
+ *     Small representations are additionally kept in an in-memory LRU cache, bounded by the total size,
+ *     so the hottest assets are served without touching the disk.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see GameAssetCompressor
+ * */
+public class GameAssetResolver implements ResourceResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(GameAssetResolver.class);
+
+    private final GameAssetCompressor compressor;
+
+    private final long maxCachedFileSize;
+
+    private final long maxCacheSize;
+
+    // Access ordered, so the eldest entry is always the least recently used one.
+    private final LinkedHashMap<CacheKey, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long cacheSize;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final MeterRegistry meterRegistry;
+
+    public GameAssetResolver(GameAssetCompressor compressor, long maxCachedFileSize, long maxCacheSize, MeterRegistry meterRegistry) {
+        this.compressor = compressor;
+        this.maxCachedFileSize = maxCachedFileSize;
+        this.maxCacheSize = maxCacheSize;
+        this.meterRegistry = meterRegistry;
+
+        this.hits = meterRegistry.counter("myhub.cache.requests", "cache", "game-assets", "result", "hit");
+        this.misses = meterRegistry.counter("myhub.cache.requests", "cache", "game-assets", "result", "miss");
+        Gauge.builder("myhub.cache.size", this, r -> r.cacheSize())
+                .tag("cache", "game-assets")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Resource resolveResource(HttpServletRequest request, String requestPath,
+                                    List<? extends Resource> locations, ResourceResolverChain chain) {
+        Resource resource = chain.resolveResource(request, requestPath, locations);
+        if (resource == null || request == null || !resource.isFile()) return resource;
+
+        try {
+            return resolve(resource.getFile().toPath().toAbsolutePath(), request);
+        } catch (IOException e) {
+            log.debug("Couldn't resolve representation of '{}', serving it as is.", requestPath, e);
+            return resource;
+        }
+    }
+
+    @Override
+    public String resolveUrlPath(String resourcePath, List<? extends Resource> locations, ResourceResolverChain chain) {
+        return chain.resolveUrlPath(resourcePath, locations);
+    }
+
+    private Resource resolve(Path original, HttpServletRequest request) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(original, BasicFileAttributes.class);
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+
+        Path brotli = original.resolveSibling(original.getFileName() + ".br");
+        boolean hasBrotli = Files.isRegularFile(brotli);
+        Optional<Path> gzip = compressor.findGzip(original, attributes);
+
+        Path file = original;
+        String encoding = null;
+        if (hasBrotli && accepts(acceptEncoding, "br")) {
+            file = brotli;
+            encoding = "br";
+        } else if (gzip.isPresent() && accepts(acceptEncoding, "gzip")) {
+            file = gzip.get();
+            encoding = "gzip";
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long length = file == original ? attributes.size() : Files.size(file);
+        // Every representation needs its own strong ETag.
+        String suffix = encoding == null ? "" : "-" + encoding;
+        String eTag = compressor.findHash(original, attributes)
+                .map(hash -> hash + suffix)
+                .orElse(null);
+        boolean varies = hasBrotli || gzip.isPresent();
+        meterRegistry.counter("myhub.game.assets.served", "encoding", encoding == null ? "identity" : encoding).increment();
+
+        byte[] content = length <= maxCachedFileSize ? cached(file, lastModified, length) : null;
+        return new GameAssetResource(original, file, content, length, lastModified, encoding, eTag, varies);
+    }
+
+    private byte[] cached(Path file, long lastModified, long length) throws IOException {
+        CacheKey key = new CacheKey(file, lastModified, length);
+        synchronized (cache) {
+            byte[] content = cache.get(key);
+            if (content != null) {
+                hits.increment();
+                return content;
+            }
+        }
+        misses.increment();
+
+        byte[] content = Files.readAllBytes(file);
+        if (content.length != length) return null; // Changed while reading.
+
+        synchronized (cache) {
+            if (cache.put(key, content) == null) cacheSize += content.length;
+
+            var iterator = cache.entrySet().iterator();
+            while (cacheSize > maxCacheSize && iterator.hasNext()) {
+                Map.Entry<CacheKey, byte[]> eldest = iterator.next();
+                cacheSize -= eldest.getValue().length;
+                iterator.remove();
+            }
+        }
+        return content;
+    }
+
+    private long cacheSize() {
+        synchronized (cache) {
+            return cacheSize;
+        }
+    }
+
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) return false;
+
+        for (String token : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = token.trim().split(";");
+            if (!parts[0].trim().equals(coding)) continue;
+
+            // Only an explicit zero quality rejects the coding.
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private record CacheKey(Path file, long lastModified, long length) {}
+}
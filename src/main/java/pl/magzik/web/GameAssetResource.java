@@ -0,0 +1,106 @@
+package pl.magzik.web;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.resource.HttpResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A single representation of a game asset, as chosen by the {@link GameAssetResolver}.
+ * <p>
+ *     The representation may be the original file, or its compressed variant,
+ *     and its bytes may come from the disk, or from the in-memory cache.
+ *     The file name and the last modification time always describe the original asset,
+ *     so the content type and conditional requests are evaluated against it.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+public class GameAssetResource extends AbstractResource implements HttpResource {
+
+    private final Path original;
+
+    private final Path file;
+
+    private final byte[] content;
+
+    private final long contentLength;
+
+    private final long lastModified;
+
+    private final String encoding;
+
+    private final String eTag;
+
+    private final boolean varies;
+
+    /**
+     * @param original the original asset.
+     * @param file the file holding this representation.
+     * @param content the cached bytes of this representation, or {@code null} to read the file.
+     * @param contentLength the size of this representation.
+     * @param lastModified the last modification time of the original asset.
+     * @param encoding the content coding of this representation, or {@code null} if it isn't encoded.
+     * @param eTag the entity tag of this representation, or {@code null} if unknown.
+     * @param varies whether other encodings of the asset exist.
+     * */
+    GameAssetResource(Path original, Path file, byte[] content, long contentLength, long lastModified,
+                      String encoding, String eTag, boolean varies) {
+        this.original = original;
+        this.file = file;
+        this.content = content;
+        this.contentLength = contentLength;
+        this.lastModified = lastModified;
+        this.encoding = encoding;
+        this.eTag = eTag;
+        this.varies = varies;
+    }
+
+    public String eTag() {
+        return eTag;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return content != null ? new ByteArrayInputStream(content) : Files.newInputStream(file);
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getFilename() {
+        return original.getFileName().toString();
+    }
+
+    @Override
+    public String getDescription() {
+        return "game asset [" + file + "]" + (content != null ? " (cached)" : "");
+    }
+
+    @Override
+    public HttpHeaders getResponseHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        if (encoding != null) headers.set(HttpHeaders.CONTENT_ENCODING, encoding);
+        if (varies) headers.set(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        return headers;
+    }
+}
@@ -0,0 +1,159 @@
+package pl.magzik.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Filter caching rendered HTML pages, whose content depends only on the URL and the version of a catalog.
+ * <p>
+ *     Every cached path is registered with the version of the catalog it's rendered from. The version is a part
+ *     of the cache key, so any change of the catalog makes the cached pages unreachable, and they're removed
+ *     when the next page of that path is stored. The cache is an in-memory LRU, bounded by the total size of the pages.
+ * </p>
+ * <p>
+ *     Pages are served with a strong ETag derived from their content, so revalidation ends with {@code 304 Not Modified},
+ *     without rendering, as long as the catalog stays the same.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * */
+public class PageCache extends OncePerRequestFilter {
+
+    private final Map<String, LongSupplier> versions;
+
+    private final long maxSize;
+
+    // Access ordered, so the eldest entry is always the least recently used one.
+    private final LinkedHashMap<Key, Page> cache = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final Map<String, Long> latestVersions = new HashMap<>();
+
+    private long size;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    /**
+     * @param versions The cached paths, with the versions of the catalogs they're rendered from.
+     * @param maxSize The maximal total size of the cached pages in bytes.
+     * @param meterRegistry The registry of the metrics.
+     * */
+    public PageCache(Map<String, LongSupplier> versions, long maxSize, MeterRegistry meterRegistry) {
+        this.versions = Map.copyOf(versions);
+        this.maxSize = maxSize;
+
+        this.hits = meterRegistry.counter("myhub.cache.requests", "cache", "pages", "result", "hit");
+        this.misses = meterRegistry.counter("myhub.cache.requests", "cache", "pages", "result", "miss");
+        Gauge.builder("myhub.cache.size", this, PageCache::size)
+                .tag("cache", "pages")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"GET".equals(request.getMethod()) || !versions.containsKey(request.getRequestURI());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        // Read the version first, a change during the rendering makes the page stale on the next request.
+        String path = request.getRequestURI();
+        Key key = new Key(path, request.getQueryString(), versions.get(path).getAsLong());
+
+        Page page = get(key);
+        if (page != null) {
+            hits.increment();
+            serve(page, request, response);
+            return;
+        }
+        misses.increment();
+
+        ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        filterChain.doFilter(request, wrapper);
+
+        String contentType = wrapper.getContentType();
+        if (wrapper.getStatus() != HttpStatus.OK.value() || contentType == null || !contentType.startsWith("text/html")) {
+            wrapper.copyBodyToResponse();
+            return;
+        }
+
+        byte[] body = wrapper.getContentAsByteArray();
+        page = new Page(body, contentType, "\"" + DigestUtils.md5DigestAsHex(body) + "\"");
+        put(key, page);
+        serve(page, request, response);
+    }
+
+    private void serve(Page page, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noCache().getHeaderValue());
+        if (new ServletWebRequest(request, response).checkNotModified(page.eTag())) return;
+
+        response.setContentType(page.contentType());
+        response.setContentLength(page.body().length);
+        response.getOutputStream().write(page.body());
+    }
+
+    private Page get(Key key) {
+        synchronized (cache) {
+            return cache.get(key);
+        }
+    }
+
+    private void put(Key key, Page page) {
+        if (page.body().length > maxSize) return;
+
+        synchronized (cache) {
+            // Pages of older versions won't be requested anymore.
+            Long latest = latestVersions.get(key.path());
+            if (latest != null && latest > key.version()) return;
+            if (latest == null || latest < key.version()) {
+                latestVersions.put(key.path(), key.version());
+                cache.entrySet().removeIf(entry -> {
+                    boolean stale = entry.getKey().path().equals(key.path());
+                    if (stale) size -= entry.getValue().body().length;
+                    return stale;
+                });
+            }
+
+            Page previous = cache.put(key, page);
+            size += page.body().length - (previous == null ? 0 : previous.body().length);
+
+            var iterator = cache.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                size -= iterator.next().getValue().body().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private long size() {
+        synchronized (cache) {
+            return size;
+        }
+    }
+
+    private record Key(String path, String query, long version) {}
+
+    private record Page(byte[] body, String contentType, String eTag) {}
+}
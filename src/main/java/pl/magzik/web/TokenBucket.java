@@ -0,0 +1,48 @@
+package pl.magzik.web;
+
+/**
+ * Token bucket of bytes, refilled at a constant rate, up to one second worth of tokens.
+ * <p>
+ *     Tokens are reserved before the bytes are sent, and the bucket may go into debt. The caller waits until the debt
+ *     is paid off, so concurrent reservations are served in order, and every transfer reserving one chunk at a time
+ *     gets an equal share of the rate. Transfers slowed down by their clients reserve less often,
+ *     and leave their share to the others.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.0
+ * @see BandwidthShaper
+ * */
+final class TokenBucket {
+
+    private final double bytesPerNano;
+
+    private final long capacity;
+
+    private double tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond The rate, positive.
+     * */
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.capacity = bytesPerSecond;
+        this.tokens = capacity;
+    }
+
+    /**
+     * Reserves the tokens of the given number of bytes.
+     * @param bytes The number of bytes about to be sent.
+     * @return Nanoseconds to wait before sending them, 0 if they can be sent right away.
+     * */
+    synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * bytesPerNano);
+        refilledAt = now;
+
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / bytesPerNano);
+    }
+}
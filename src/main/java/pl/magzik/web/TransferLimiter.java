@@ -0,0 +1,193 @@
+package pl.magzik.web;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of concurrent long-running transfers, such as media downloads or uploads.
+ * <p>
+ *     Every limited request has to acquire a permit first. If none becomes available within the queue timeout,
+ *     the request is rejected with {@code 503 Service Unavailable} and a {@code Retry-After} header.
+ *     So slow clients occupy at most {@code permits} request threads, and page rendering is never starved by them.
+ * </p>
+ * <p>
+ *     On platform threads the timeout should stay short, as a waiting request blocks its thread.
+ *     On virtual threads waiting is cheap, so transfers can be queued for a while.
+ *     Transfers handed over to the container's sendfile complete after the permit is released,
+ *     they don't occupy a request thread anyway.
+ * </p>
+ * <p>
+ *     Optionally, the number of concurrent transfers of a single client (by its remote address) is limited as well.
+ *     Clients over their limit are rejected right away, with {@code 429 Too Many Requests}.
+ * </p>
+ * <p>
+ *     Limits apply before the body of the request is read, multipart uploads included, as long as
+ *     {@code spring.servlet.multipart.resolve-lazily} is set. Rejected requests with a body close the connection,
+ *     so their body is never received.
+ * </p>
+ *
+ * @author Maksymilian Strzelczak
+ * @version 1.3
+ * */
+public class TransferLimiter implements HandlerInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(TransferLimiter.class);
+
+    private final String name;
+
+    private final String permitAttribute;
+
+    private final String clientAttribute;
+
+    private final Semaphore permits;
+
+    private final int clientPermits;
+
+    private final Map<String, Integer> clients = new ConcurrentHashMap<>();
+
+    private final long timeoutNanos;
+
+    private final long retryAfterSeconds;
+
+    private final Set<String> methods;
+
+    private final Counter rejected;
+
+    /**
+     * @param name The name of the limited transfers, used in logs and metrics.
+     * @param permits The maximum number of concurrent transfers.
+     * @param timeout The maximum time a request waits for a permit.
+     * @param meterRegistry The registry of the metrics.
+     * @param methods The HTTP methods limited, or none to limit all of them.
+     * */
+    public TransferLimiter(String name, int permits, Duration timeout, MeterRegistry meterRegistry, String... methods) {
+        this(name, permits, 0, timeout, meterRegistry, methods);
+    }
+
+    /**
+     * @param name The name of the limited transfers, used in logs and metrics.
+     * @param permits The maximum number of concurrent transfers.
+     * @param clientPermits The maximum number of concurrent transfers of a single client, or 0 for no limit.
+     * @param timeout The maximum time a request waits for a permit.
+     * @param meterRegistry The registry of the metrics.
+     * @param methods The HTTP methods limited, or none to limit all of them.
+     * */
+    public TransferLimiter(String name, int permits, int clientPermits, Duration timeout, MeterRegistry meterRegistry,
+                           String... methods) {
+        this.name = Objects.requireNonNull(name);
+        this.permitAttribute = TransferLimiter.class.getName() + "." + name;
+        this.clientAttribute = permitAttribute + ".client";
+        this.permits = new Semaphore(permits, true);
+        this.clientPermits = clientPermits;
+        this.timeoutNanos = timeout.toNanos();
+        this.retryAfterSeconds = Math.max(1, timeout.toSeconds());
+        this.methods = Set.of(methods);
+
+        Gauge.builder("myhub.transfers.limit", () -> permits)
+                .description("Configured maximum number of concurrent transfers, 0 if there's none")
+                .tags("transfer", name, "scope", "total")
+                .register(meterRegistry);
+        Gauge.builder("myhub.transfers.limit", () -> clientPermits)
+                .description("Configured maximum number of concurrent transfers, 0 if there's none")
+                .tags("transfer", name, "scope", "client")
+                .register(meterRegistry);
+        Gauge.builder("myhub.transfers.active", this.permits, s -> permits - s.availablePermits())
+                .description("Number of transfers in progress")
+                .tag("transfer", name)
+                .register(meterRegistry);
+        Gauge.builder("myhub.transfers.queued", this.permits, Semaphore::getQueueLength)
+                .description("Number of transfers waiting for a permit")
+                .tag("transfer", name)
+                .register(meterRegistry);
+        this.rejected = Counter.builder("myhub.transfers.rejected")
+                .description("Number of transfers rejected, because of the limit")
+                .tag("transfer", name)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!methods.isEmpty() && !methods.contains(request.getMethod())) return true;
+
+        String client = request.getRemoteAddr();
+        if (clientPermits > 0) {
+            if (!acquireClient(client)) {
+                log.debug("Rejecting {} transfer '{}', client {} is over its limit.", name, request.getRequestURI(), client);
+                reject(request, response, HttpStatus.TOO_MANY_REQUESTS);
+                return false;
+            }
+            request.setAttribute(clientAttribute, client);
+        }
+
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+
+        if (!acquired) {
+            releaseClient(request);
+            log.debug("Rejecting {} transfer '{}', all permits are in use.", name, request.getRequestURI());
+            reject(request, response, HttpStatus.SERVICE_UNAVAILABLE);
+            return false;
+        }
+
+        request.setAttribute(permitAttribute, Boolean.TRUE);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        if (request.getAttribute(permitAttribute) == null) return;
+
+        request.removeAttribute(permitAttribute);
+        permits.release();
+        releaseClient(request);
+    }
+
+    private void reject(HttpServletRequest request, HttpServletResponse response, HttpStatus status) throws IOException {
+        rejected.increment();
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        // Otherwise the container would read the unread body, e.g. a whole upload, to keep the connection alive.
+        if (request.getContentLengthLong() != 0) response.setHeader(HttpHeaders.CONNECTION, "close");
+        response.sendError(status.value());
+    }
+
+    private boolean acquireClient(String client) {
+        boolean[] acquired = new boolean[1];
+        clients.compute(client, (key, count) -> {
+            int current = count == null ? 0 : count;
+            acquired[0] = current < clientPermits;
+            return acquired[0] ? current + 1 : count;
+        });
+        return acquired[0];
+    }
+
+    private void releaseClient(HttpServletRequest request) {
+        Object client = request.getAttribute(clientAttribute);
+        if (client == null) return;
+
+        request.removeAttribute(clientAttribute);
+        // Entries of idle clients are removed, so the map doesn't grow with every address seen.
+        clients.computeIfPresent((String) client, (key, count) -> count > 1 ? count - 1 : null);
+    }
+}
@@ -0,0 +1,88 @@
+package pl.magzik.media;
+
+import org.junit.jupiter.api.Test;
+import pl.magzik.media.MediaStreamer.Range;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MediaStreamerRangeTest {
+
+    private static final long LENGTH = 1000;
+
+    @Test
+    void parsesClosedRange() {
+        assertEquals(List.of(new Range(0, 499)), Range.parse("bytes=0-499", LENGTH));
+    }
+
+    @Test
+    void clampsEndToTheLastByte() {
+        assertEquals(List.of(new Range(900, 999)), Range.parse("bytes=900-5000", LENGTH));
+    }
+
+    @Test
+    void parsesSuffixRange() {
+        assertEquals(List.of(new Range(800, 999)), Range.parse("bytes=-200", LENGTH));
+        assertEquals(List.of(new Range(0, 999)), Range.parse("bytes=-5000", LENGTH));
+    }
+
+    @Test
+    void parsesOpenEndedRange() {
+        assertEquals(List.of(new Range(400, 999)), Range.parse("bytes=400-", LENGTH));
+    }
+
+    @Test
+    void unsatisfiableRangesYieldNull() {
+        assertNull(Range.parse("bytes=1000-", LENGTH));
+        assertNull(Range.parse("bytes=1000-1200, 2000-", LENGTH));
+        assertNull(Range.parse("bytes=-0", LENGTH));
+        assertNull(Range.parse("bytes=-10", 0));
+    }
+
+    @Test
+    void unsatisfiableRangesAreDroppedFromSatisfiableOnes() {
+        assertEquals(List.of(new Range(0, 9)), Range.parse("bytes=0-9, 2000-3000", LENGTH));
+    }
+
+    @Test
+    void malformedHeadersYieldEmptyList() {
+        assertEquals(List.of(), Range.parse("items=0-10", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=-", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=10", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=20-10", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=a-b", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=--5", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=+5-10", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=0-10, x", LENGTH));
+        assertEquals(List.of(), Range.parse("bytes=0-99999999999999999999", LENGTH));
+    }
+
+    @Test
+    void coalescesOverlappingRanges() {
+        assertEquals(List.of(new Range(0, 199)), Range.parse("bytes=0-99, 50-199", LENGTH));
+        assertEquals(List.of(new Range(0, 999)), Range.parse("bytes=0-, 0-, 0-, 0-", LENGTH));
+        assertEquals(List.of(new Range(100, 299)), Range.parse("bytes=100-299, 150-160", LENGTH));
+    }
+
+    @Test
+    void coalescesAdjacentRanges() {
+        assertEquals(List.of(new Range(0, 199)), Range.parse("bytes=0-99, 100-199", LENGTH));
+    }
+
+    @Test
+    void sortsDisjointRanges() {
+        assertEquals(List.of(new Range(0, 9), new Range(500, 509), new Range(990, 999)),
+            Range.parse("bytes=-10, 500-509, 0-9", LENGTH));
+    }
+
+    @Test
+    void coalescedRangesNeverExceedTheFile() {
+        StringBuilder header = new StringBuilder("bytes=0-");
+        for (int i = 0; i < 100; i++) header.append(", ").append(i).append("-");
+
+        List<Range> ranges = Range.parse(header.toString(), LENGTH);
+        assertEquals(List.of(new Range(0, 999)), ranges);
+    }
+}
@@ -0,0 +1,115 @@
+package pl.magzik.media;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZipWriterTest {
+
+    private static final long MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void storedEntriesRoundTrip() throws IOException {
+        byte[] photo = bytes(100_000, 7);
+        Path archive = write(zip -> {
+            zip.write("photo.jpg", MODIFIED, photo.length, false, new ByteArrayInputStream(photo));
+            zip.write("empty.png", MODIFIED, 0, false, InputStream.nullInputStream());
+        });
+
+        try (ZipFile file = new ZipFile(archive.toFile())) {
+            assertEquals(2, file.size());
+            assertEntry(file, "photo.jpg", ZipEntry.STORED, photo);
+            assertEntry(file, "empty.png", ZipEntry.STORED, new byte[0]);
+        }
+    }
+
+    @Test
+    void deflatedEntriesRoundTrip() throws IOException {
+        byte[] bitmap = new byte[200_000]; // Compresses well.
+        byte[] noise = bytes(50_000, 13);
+        Path archive = write(zip -> {
+            zip.write("bitmap.bmp", MODIFIED, bitmap.length, true, new ByteArrayInputStream(bitmap));
+            zip.write("noise.tiff", MODIFIED, noise.length, true, new ByteArrayInputStream(noise));
+            zip.write("zażółć.svg", MODIFIED, 5, true, new ByteArrayInputStream("<svg>".getBytes(StandardCharsets.UTF_8)));
+        });
+
+        try (ZipFile file = new ZipFile(archive.toFile())) {
+            assertEquals(3, file.size());
+            assertEntry(file, "bitmap.bmp", ZipEntry.DEFLATED, bitmap);
+            assertTrue(file.getEntry("bitmap.bmp").getCompressedSize() < bitmap.length / 10);
+            assertEntry(file, "noise.tiff", ZipEntry.DEFLATED, noise);
+            assertEntry(file, "zażółć.svg", ZipEntry.DEFLATED, "<svg>".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void moreEntriesThanTheClassicFormatAllowsRoundTrip() throws IOException {
+        int count = 70_000;
+        Path archive = write(zip -> {
+            for (int i = 0; i < count; i++) {
+                byte[] content = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+                zip.write("file-" + i + ".jpg", MODIFIED, content.length, i % 2 == 0, new ByteArrayInputStream(content));
+            }
+        });
+
+        try (ZipFile file = new ZipFile(archive.toFile())) {
+            assertEquals(count, file.size());
+            List<? extends ZipEntry> entries = Collections.list(file.entries());
+            assertEquals("file-0.jpg", entries.getFirst().getName());
+            assertEquals("file-" + (count - 1) + ".jpg", entries.getLast().getName());
+            for (int i : new int[] { 0, 1, 65_534, 65_535, 65_536, count - 1 }) {
+                assertEntry(file, "file-" + i + ".jpg", i % 2 == 0 ? ZipEntry.DEFLATED : ZipEntry.STORED,
+                    Integer.toString(i).getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    private Path write(Writer writer) throws IOException {
+        Path archive = directory.resolve("archive.zip");
+        try (OutputStream output = Files.newOutputStream(archive)) {
+            ZipWriter zip = new ZipWriter(output);
+            writer.write(zip);
+            zip.close();
+            assertEquals(Files.size(archive), zip.size());
+        }
+        return archive;
+    }
+
+    private static void assertEntry(ZipFile file, String name, int method, byte[] content) throws IOException {
+        ZipEntry entry = file.getEntry(name);
+        assertNotNull(entry, name);
+        assertEquals(method, entry.getMethod(), name);
+        assertEquals(content.length, entry.getSize(), name);
+        try (InputStream input = file.getInputStream(entry)) {
+            assertArrayEquals(content, input.readAllBytes(), name);
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(ZipWriter zip) throws IOException;
+    }
+}
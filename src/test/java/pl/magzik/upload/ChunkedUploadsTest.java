@@ -0,0 +1,154 @@
+package pl.magzik.upload;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import pl.magzik.model.UploadResult;
+import pl.magzik.model.UploadStatus;
+import pl.magzik.utils.DirectoryScanner;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedUploadsTest {
+
+    private static final byte[] CONTENT = "abcdefgh".getBytes(StandardCharsets.US_ASCII);
+
+    @TempDir
+    Path mediaDirectory;
+
+    @TempDir
+    Path cacheDirectory;
+
+    private DedupStore dedupStore;
+
+    private ChunkedUploads uploads;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        DirectoryScanner directoryScanner = new DirectoryScanner(1, new SimpleMeterRegistry());
+        dedupStore = new DedupStore(mediaDirectory.toString(), cacheDirectory.toString(), 8, List.of(".*"), directoryScanner);
+        dedupStore.start();
+        uploads = new ChunkedUploads(mediaDirectory.toString(), cacheDirectory.toString(), DataSize.ofBytes(4),
+            DataSize.ofMegabytes(1), Duration.ofHours(1), dedupStore, new SimpleMeterRegistry());
+        uploads.start();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        uploads.stop();
+        dedupStore.stop();
+    }
+
+    @Test
+    void resentChunkWithBadChecksumKeepsStoredContent() throws IOException {
+        String id = uploads.create("photo.jpg", CONTENT.length).id();
+        write(id, 0, "abcd");
+        write(id, 1, "efgh");
+
+        // Sent again, e.g. after a lost acknowledgement, but corrupted on the way.
+        UploadStatus status = uploads.write(id, 0, sha256("abcd"), stream("XXXX"));
+        assertEquals(2, status.committedChunks());
+
+        UploadResult result = uploads.commit(id, ChunkedUploads.sha256().digest(CONTENT));
+        assertTrue(result.isSuccess(), result.error());
+        assertArrayEquals(CONTENT, Files.readAllBytes(mediaDirectory.resolve(result.storedName())));
+    }
+
+    @Test
+    void resentChunkCutShortKeepsStoredContent() throws IOException {
+        String id = uploads.create("photo.jpg", CONTENT.length).id();
+        write(id, 0, "abcd");
+        write(id, 1, "efgh");
+
+        uploads.write(id, 1, sha256("efgh"), stream("e"));
+
+        UploadResult result = uploads.commit(id, null);
+        assertTrue(result.isSuccess(), result.error());
+        assertArrayEquals(CONTENT, Files.readAllBytes(mediaDirectory.resolve(result.storedName())));
+    }
+
+    @Test
+    void rejectedChunkIsNotCommitted() throws IOException {
+        String id = uploads.create("photo.jpg", CONTENT.length).id();
+        write(id, 0, "abcd");
+
+        assertThrows(IllegalArgumentException.class, () -> uploads.write(id, 1, sha256("efgh"), stream("XXXX")));
+        assertThrows(EOFException.class, () -> uploads.write(id, 1, sha256("efgh"), stream("ef")));
+        assertThrows(IllegalStateException.class, () -> uploads.commit(id, null));
+
+        write(id, 1, "efgh");
+        UploadResult result = uploads.commit(id, null);
+        assertTrue(result.isSuccess(), result.error());
+        assertArrayEquals(CONTENT, Files.readAllBytes(mediaDirectory.resolve(result.storedName())));
+    }
+
+    @Test
+    void parallelWritesOfTheSameChunkAreRejected() throws Exception {
+        String id = uploads.create("photo.jpg", CONTENT.length).id();
+
+        CountDownLatch reading = new CountDownLatch(1), release = new CountDownLatch(1);
+        InputStream slow = new InputStream() {
+
+            private final InputStream content = stream("abcd");
+
+            @Override
+            public int read() throws IOException {
+                return content.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return content.read(buffer, offset, length);
+            }
+        };
+        CompletableFuture<UploadStatus> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return uploads.write(id, 0, sha256("abcd"), slow);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        reading.await();
+        assertThrows(IllegalStateException.class, () -> uploads.write(id, 0, sha256("XXXX"), stream("XXXX")));
+        release.countDown();
+        assertEquals(1, first.get().committedChunks());
+
+        write(id, 1, "efgh");
+        UploadResult result = uploads.commit(id, ChunkedUploads.sha256().digest(CONTENT));
+        assertTrue(result.isSuccess(), result.error());
+    }
+
+    private void write(String id, int index, String chunk) throws IOException {
+        uploads.write(id, index, sha256(chunk), stream(chunk));
+    }
+
+    private static byte[] sha256(String chunk) {
+        return ChunkedUploads.sha256().digest(chunk.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static InputStream stream(String chunk) {
+        return new ByteArrayInputStream(chunk.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,211 @@
+package pl.magzik.upload;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartStreamTest {
+
+    private static final String BOUNDARY = "----boundary42";
+
+    private static final long MAX_SIZE = 1 << 20;
+
+    @Test
+    void readsPartsOfBody() throws IOException {
+        MultipartStream stream = stream(body(
+            part("title", null, "Holidays"),
+            part("file", "beach.jpg", "JPEG content")
+        ) + close());
+
+        assertPart(stream.next(), "title", null, "Holidays");
+        assertPart(stream.next(), "file", "beach.jpg", "JPEG content");
+        assertNull(stream.next());
+        assertFalse(stream.isBroken());
+    }
+
+    @Test
+    void skipsPreamble() throws IOException {
+        MultipartStream stream = stream("This is a preamble, ignored. The boundary --" + BOUNDARY + " is a delimiter only at the line start.\r\n"
+            + body(part("file", "a.png", "PNG")) + close());
+
+        assertPart(stream.next(), "file", "a.png", "PNG");
+        assertNull(stream.next());
+    }
+
+    @Test
+    void ignoresPaddingAfterDelimiter() throws IOException {
+        MultipartStream stream = stream("--" + BOUNDARY + " \t \r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"a.png\"\r\n\r\nPNG\r\n"
+            + "--" + BOUNDARY + "\t\r\n"
+            + "Content-Disposition: form-data; name=\"other\"\r\n\r\nvalue\r\n"
+            + close());
+
+        assertPart(stream.next(), "file", "a.png", "PNG");
+        assertPart(stream.next(), "other", null, "value");
+        assertNull(stream.next());
+    }
+
+    @Test
+    void findsDelimiterSplitAcrossReads() throws IOException {
+        String content = "x".repeat(100_000) + "\r\n--" + BOUNDARY.substring(0, 5) + "not a delimiter" + "y".repeat(70_000);
+        String body = body(part("file", "big.bmp", content)) + close();
+
+        for (int chunk : new int[] { 1, 3, BOUNDARY.length() + 3, 65_536 - 7 }) {
+            MultipartStream stream = new MultipartStream(new ChunkedInputStream(bytes(body), chunk), BOUNDARY, MAX_SIZE);
+
+            MultipartStream.Part part = stream.next();
+            assertEquals(content, readSlowly(part.content()), "chunk " + chunk);
+            assertNull(stream.next());
+        }
+    }
+
+    @Test
+    void smallReadsOfLargePart() throws IOException {
+        String content = "z".repeat(200_000);
+        MultipartStream stream = stream(body(part("file", "big.tiff", content)) + close());
+
+        MultipartStream.Part part = stream.next();
+        InputStream input = part.content();
+        int count = 0;
+        while (input.read() != -1) count++;
+        assertEquals(content.length(), count);
+        assertNull(stream.next());
+    }
+
+    @Test
+    void skipsUnreadContent() throws IOException {
+        MultipartStream stream = stream(body(
+            part("file", "a.png", "p".repeat(100_000)),
+            part("file", "b.png", "second")
+        ) + close());
+
+        assertEquals("a.png", stream.next().fileName());
+        assertPart(stream.next(), "file", "b.png", "second");
+    }
+
+    @Test
+    void missingClosingDelimiterBreaksTheStream() throws IOException {
+        // The last delimiter lacks the "--" which closes the body.
+        MultipartStream stream = stream(body(part("file", "a.png", "PNG")) + "--" + BOUNDARY);
+
+        assertPart(stream.next(), "file", "a.png", "PNG");
+        assertThrows(EOFException.class, stream::next);
+        assertTrue(stream.isBroken());
+    }
+
+    @Test
+    void truncatedContentBreaksTheStream() throws IOException {
+        MultipartStream stream = stream("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"a.png\"\r\n\r\nPNG, cut off");
+
+        MultipartStream.Part part = stream.next();
+        assertThrows(EOFException.class, () -> part.content().readAllBytes());
+        assertTrue(stream.isBroken());
+    }
+
+    @Test
+    void rejectsOversizedHeaders() {
+        String header = "X-Padding: " + "h".repeat(1000) + "\r\n";
+        MultipartStream stream = stream("--" + BOUNDARY + "\r\n" + header.repeat(20)
+            + "Content-Disposition: form-data; name=\"file\"\r\n\r\ncontent\r\n" + close());
+
+        IOException e = assertThrows(IOException.class, stream::next);
+        assertTrue(e.getMessage().contains("too large"), e.getMessage());
+    }
+
+    @Test
+    void rejectsOversizedHeaderLine() {
+        MultipartStream stream = stream("--" + BOUNDARY + "\r\n" + "h".repeat(100_000) + "\r\n\r\ncontent\r\n" + close());
+
+        IOException e = assertThrows(IOException.class, stream::next);
+        assertTrue(e.getMessage().contains("too large"), e.getMessage());
+    }
+
+    @Test
+    void rejectsOversizedBody() {
+        MultipartStream stream = new MultipartStream(new ByteArrayInputStream(bytes(
+            body(part("file", "a.png", "p".repeat(10_000))) + close())), BOUNDARY, 1_000);
+
+        IOException e = assertThrows(IOException.class, () -> stream.next().content().readAllBytes());
+        assertTrue(e.getMessage().contains("larger than"), e.getMessage());
+        assertTrue(stream.isBroken());
+    }
+
+    @Test
+    void extractsBoundary() {
+        assertEquals("abc", MultipartStream.boundaryOf("multipart/form-data; boundary=abc"));
+        assertEquals("a b", MultipartStream.boundaryOf("Multipart/Form-Data; charset=UTF-8; BOUNDARY=\"a b\""));
+        assertThrows(IllegalArgumentException.class, () -> MultipartStream.boundaryOf("multipart/form-data"));
+        assertThrows(IllegalArgumentException.class, () -> MultipartStream.boundaryOf("application/json; boundary=abc"));
+    }
+
+    private static MultipartStream stream(String body) {
+        return new MultipartStream(new ByteArrayInputStream(bytes(body)), BOUNDARY, MAX_SIZE);
+    }
+
+    private static String body(String... parts) {
+        return String.join("", parts);
+    }
+
+    private static String part(String name, String fileName, String content) {
+        return "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"" + name + "\"" + (fileName != null ? "; filename=\"" + fileName + "\"" : "") + "\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + "\r\n"
+            + content + "\r\n";
+    }
+
+    private static String close() {
+        return "--" + BOUNDARY + "--\r\nEpilogue, ignored.";
+    }
+
+    private static void assertPart(MultipartStream.Part part, String name, String fileName, String content) throws IOException {
+        assertNotNull(part);
+        assertEquals(name, part.name());
+        assertEquals(fileName, part.fileName());
+        assertEquals(content, new String(part.content().readAllBytes(), StandardCharsets.ISO_8859_1));
+    }
+
+    private static String readSlowly(InputStream input) throws IOException {
+        StringBuilder content = new StringBuilder();
+        byte[] buffer = new byte[7];
+        int read;
+        while ((read = input.read(buffer, 0, buffer.length)) != -1) {
+            content.append(new String(buffer, 0, read, StandardCharsets.ISO_8859_1));
+        }
+        return content.toString();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // Returns at most the given number of bytes per read, as a slow network would.
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final InputStream input;
+
+        private final int chunk;
+
+        ChunkedInputStream(byte[] content, int chunk) {
+            this.input = new ByteArrayInputStream(content);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return input.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return input.read(b, off, Math.min(len, chunk));
+        }
+    }
+}